@@ -0,0 +1,157 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.opencsv.CSVWriter;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time reading and writing a download information CSV, from a fresh ledger to one covering years of posts.
+ * <p>
+ * After each iteration of {@link #fromCSV()} and {@link #loadIndex()}, the heap the last load retains is measured
+ * (used heap after a full GC, with and without the result) and printed to the benchmark's output as
+ * <code>retained heap</code>. The <code>gc</code> profiler's <code>gc.alloc.rate.norm</code> is what a load
+ * allocates, most of which is garbage by the time it returns. <code>-Xmx</code> is enough for {@link #fromCSV()} to
+ * hold the largest file, at roughly 850 bytes per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx14g")
+public class PersistentDownloadDataBenchmark {
+    private static final LocalDateTime START = LocalDateTime.of(2022, 1, 1, 0, 0);
+
+    @Param({"10000", "1000000", "10000000"})
+    public int rows;
+
+    private Path csvPath;
+    /**
+     * Result of the last load, kept until its size is measured.
+     */
+    private Object retained;
+
+    /**
+     * Generate the rows of a ledger, the same ones for the same <code>random</code> seed.
+     */
+    private static @NotNull PersistentDownloadData row(@NotNull Random random, int i) {
+        String redditID = Integer.toString(60_000_000 + i / 3, Character.MAX_RADIX);
+        byte[] digest = new byte[32];
+        random.nextBytes(digest);
+        return new PersistentDownloadData(
+            redditID,
+            Path.of("downloads", redditID, "link" + i % 3),
+            i % 3,
+            URI.create("https://drive.google.com/drive/folders/" + Long.toString(random.nextLong() >>> 1, 36)),
+            START.plusSeconds(i),
+            false,
+            random.nextInt(10) == 0 ? null : HexFormat.of().formatHex(digest)
+        );
+    }
+
+    /**
+     * Used heap after collecting everything that can be, in bytes.
+     */
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) { // a single System.gc() may leave garbage behind
+            memory.gc();
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        csvPath = Files.createTempFile("downloads", ".csv");
+        try (Writer writer = Files.newBufferedWriter(csvPath, StandardCharsets.UTF_8);
+             CSVWriter csvWriter = new CSVWriter(writer)) {
+            csvWriter.writeNext(PersistentDownloadData.FIELDS);
+            for (int i = 0; i < rows; i++) {
+                csvWriter.writeNext(row(random, i).toCsvRow());
+            }
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void measureRetainedHeap(BenchmarkParams params) {
+        if (retained == null) {
+            return; // not a load
+        }
+        long withResult = usedHeapAfterGc();
+        retained = null;
+        long withoutResult = usedHeapAfterGc();
+        System.out.printf("%nretained heap: %s of %d rows retains %.1f MiB (%.1f bytes per row)%n",
+            params.getBenchmark(), rows, (withResult - withoutResult) / (1024.0 * 1024),
+            (double) (withResult - withoutResult) / rows);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csvPath);
+    }
+
+    @Benchmark
+    public Object fromCSV() throws IOException {
+        return retained = PersistentDownloadData.fromCSV(csvPath.toFile());
+    }
+
+    @Benchmark
+    public Object loadIndex() throws IOException {
+        return retained = PersistentDownloadDataIndex.load(csvPath);
+    }
+
+    @Benchmark
+    public void toCsvRow(Rows records, Blackhole blackhole) {
+        for (PersistentDownloadData row : records.data) {
+            blackhole.consume(row.toCsvRow());
+        }
+    }
+
+    /**
+     * The rows of the file as records, only built for {@link #toCsvRow(Rows, Blackhole)}, so that they don't take
+     * up heap while loads are measured.
+     */
+    @State(Scope.Benchmark)
+    public static class Rows {
+        private PersistentDownloadData[] data;
+
+        @Setup
+        public void setUp(PersistentDownloadDataBenchmark benchmark) {
+            Random random = new Random(42);
+            data = new PersistentDownloadData[benchmark.rows];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = row(random, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import com.github.a2435191.download_musical_scores.util.FileUtils;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download a folder of many small files from a local HTTP server, once through {@link URLFileNodeWithKnownName}
+ * (which uses the shared client of {@link URLFileNode}) and once with a new {@link HttpClient} per file, as every node
+ * used to build. The <code>connections</code> counter is the number of connections the server saw opened per
+ * operation; against a real file host each one is a TLS handshake.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+// without TCP_NODELAY, the stand-in's replies on a kept-alive connection wait out the client's delayed ACK
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class HandshakeBenchmark {
+    private static final byte[] CONTENTS = new byte[4096];
+
+    @Param({"100"})
+    public int files;
+
+    /**
+     * Remote addresses of every connection the server has seen, so a new one shows up as a new element.
+     */
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private LocalServer server;
+    private String baseUrl;
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = LocalServer.start("/", this::serve);
+        baseUrl = server.baseUrl() + "/";
+        directory = Files.createTempDirectory("handshake");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        FileUtils.delete(directory);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            connections.add(exchange.getRemoteAddress());
+            exchange.sendResponseHeaders(200, CONTENTS.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(CONTENTS);
+            }
+        }
+    }
+
+    @Benchmark
+    public void sharedClient(Counters counters) throws IOException {
+        int before = connections.size();
+        Path target = Files.createTempDirectory(directory, "shared");
+        for (int i = 0; i < files; i++) {
+            new URLFileNodeWithKnownName("score" + i + ".pdf", baseUrl + "score" + i + ".pdf").saveToDisk(target);
+        }
+        counters.connections += connections.size() - before;
+    }
+
+    @Benchmark
+    public void clientPerFile(Counters counters) throws IOException, InterruptedException {
+        int before = connections.size();
+        Path target = Files.createTempDirectory(directory, "perFile");
+        for (int i = 0; i < files; i++) {
+            HttpClient client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.ALWAYS).build();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "score" + i + ".pdf")).GET().build();
+            client.send(request, HttpResponse.BodyHandlers.ofFile(target.resolve("score" + i + ".pdf")));
+        }
+        counters.connections += connections.size() - before;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long connections;
+    }
+}
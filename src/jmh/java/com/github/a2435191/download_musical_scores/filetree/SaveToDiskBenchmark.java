@@ -0,0 +1,115 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import com.github.a2435191.download_musical_scores.util.ContentIndex;
+import com.github.a2435191.download_musical_scores.util.FileUtils;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time {@link AbstractFileNodeStreamDownloader#saveToDisk(Path, MessageDigest)} of a
+ * {@link URLFileNodeWithKnownName} against a local HTTP server, so that what is measured is the copy to disk and the
+ * hashing rather than the network. The server answers <code>Range</code> requests, as file hosts do, so segmented
+ * downloads can be compared with single-stream ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SaveToDiskBenchmark {
+    private static final Pattern RANGE_REGEX = Pattern.compile("^bytes=(\\d+)-(\\d*)$");
+    private static final String NAME = "score.pdf";
+    private static final String ETAG = "\"benchmark\"";
+
+    @Param({"1048576", "33554432"})
+    public int fileSize;
+    @Param({"1", "4"})
+    public int segments;
+
+    private byte[] contents;
+    private LocalServer server;
+    private URI url;
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        contents = new byte[fileSize];
+        new Random(42).nextBytes(contents);
+
+        server = LocalServer.start("/" + NAME, this::serve);
+        url = server.url("/" + NAME);
+        directory = Files.createTempDirectory("save-to-disk");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        FileUtils.delete(directory);
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+
+            int start = 0;
+            int end = contents.length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            Matcher matcher = RANGE_REGEX.matcher(range == null ? "" : range);
+            if (matcher.matches() && (ifRange == null || ifRange.equals(ETAG))) {
+                start = Integer.parseInt(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Integer.parseInt(matcher.group(2)));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + contents.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders()
+                    .set("Content-Range", "bytes " + start + "-" + end + "/" + contents.length);
+            }
+
+            exchange.sendResponseHeaders(status, end - start + 1);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(contents, start, end - start + 1);
+            }
+        }
+    }
+
+    @Benchmark
+    public byte[] saveToDisk() throws IOException, NoSuchAlgorithmException {
+        Files.deleteIfExists(directory.resolve(NAME));
+        MessageDigest digest = MessageDigest.getInstance(ContentIndex.ALGORITHM);
+        new URLFileNodeWithKnownName(NAME, url).setSegments(segments).saveToDisk(directory, digest);
+        return digest.digest();
+    }
+}
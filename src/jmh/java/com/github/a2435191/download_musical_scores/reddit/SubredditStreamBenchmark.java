@@ -0,0 +1,108 @@
+package com.github.a2435191.download_musical_scores.reddit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Parse a page of PushShift search results with {@link SubredditStream#forEachPost(JSONTokener, Set, Consumer)}
+ * straight from the response bytes, and the way pages used to be parsed: the body as a string, then the whole page
+ * as a DOM. Posts have long selftexts and fields that aren't kept, as pages do when PushShift ignores
+ * <code>fields</code>.
+ * <p>
+ * Allocation per page is <code>gc.alloc.rate.norm</code>, reported by the <code>gc</code> profiler
+ * (see build.gradle).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubredditStreamBenchmark {
+    private static final Set<String> FIELDS = Set.of(
+        "permalink", "link_flair_text", "id", "created_utc", "url", "is_self", "selftext", "title");
+
+    /**
+     * Posts per page, the <code>size</code> of the request.
+     */
+    @Param({"100", "1000"})
+    public int size;
+
+    private byte[] page;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < size; i++) {
+            String id = Integer.toString(100_000_000 + i, Character.MAX_RADIX);
+            StringBuilder selftext = new StringBuilder();
+            for (int line = 0, lines = 5 + random.nextInt(60); line < lines; line++) {
+                selftext.append("Vocal score and pit parts, scanned at 600dpi, act ").append(line)
+                    .append(": [link](https://drive.google.com/file/d/1ZyXwVuTsRqPoNmLkJiHgFeDc")
+                    .append(random.nextInt(1_000_000)).append("/view)\n\n");
+            }
+            data.put(new JSONObject()
+                .put("permalink", "/r/MusicalScores/comments/" + id + "/some_show_full_score/")
+                .put("link_flair_text", "Submission")
+                .put("id", id)
+                .put("created_utc", 1_650_000_000L - i * 600L)
+                .put("url", "https://www.reddit.com/r/MusicalScores/comments/" + id + "/")
+                .put("is_self", true)
+                .put("selftext", selftext.toString())
+                .put("title", "Some Show (Full Score) " + i)
+                .put("author", "user" + random.nextInt(10_000))
+                .put("author_flair_richtext", new JSONArray().put(new JSONObject().put("e", "text").put("t", "Pit")))
+                .put("all_awardings", new JSONArray())
+                .put("num_comments", random.nextInt(50))
+                .put("score", random.nextInt(500))
+                .put("selftext_html", "<div class=\"md\">" + selftext + "</div>")
+                .put("thumbnail", "self"));
+        }
+        page = new JSONObject()
+            .put("data", data)
+            .put("metadata", new JSONObject().put("total_results", size).put("shards", new JSONObject()))
+            .toString()
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) {
+        InputStreamReader body = new InputStreamReader(new ByteArrayInputStream(page), StandardCharsets.UTF_8);
+        SubredditStream.forEachPost(new JSONTokener(body), FIELDS, blackhole::consume);
+    }
+
+    @Benchmark
+    public void stringAndDom(Blackhole blackhole) {
+        JSONArray data = new JSONObject(new String(page, StandardCharsets.UTF_8)).getJSONArray("data");
+        for (int i = 0; i < data.length(); i++) {
+            JSONObject post = data.getJSONObject(i);
+            JSONObject kept = new JSONObject();
+            for (String field : FIELDS) {
+                kept.putOpt(field, post.opt(field));
+            }
+            blackhole.consume(kept);
+        }
+    }
+}
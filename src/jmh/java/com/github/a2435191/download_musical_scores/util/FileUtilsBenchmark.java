@@ -0,0 +1,67 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time {@link FileUtils#zipDirectory(Path, Path)} on folders of score-sized PDFs.
+ * PDFs are mostly compressed streams already, so random bytes stand in for them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileUtilsBenchmark {
+    /**
+     * A single vocal score, or a folder of pit parts.
+     */
+    @Param({"1", "25"})
+    public int files;
+    @Param({"2097152"})
+    public int fileSize;
+
+    private Path directory;
+    private Path zip;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        directory = Files.createTempDirectory("scores");
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(contents);
+            Files.write(directory.resolve("part-" + i + ".pdf"), contents);
+        }
+        zip = Files.createTempFile("scores", ".zip");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.delete(directory);
+        Files.deleteIfExists(zip);
+    }
+
+    @Benchmark
+    public long zipDirectory() throws IOException {
+        FileUtils.zipDirectory(directory, zip);
+        return Files.size(zip);
+    }
+}
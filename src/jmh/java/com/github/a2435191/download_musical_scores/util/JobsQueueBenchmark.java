@@ -0,0 +1,83 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measure the overhead {@link JobsQueue} adds per job: adding it, starting it once a permit is free, recycling the
+ * permit when it completes and collecting its result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JobsQueueBenchmark {
+    private static final int JOBS = 10_000;
+
+    /**
+     * <code>20</code> is what {@link com.github.a2435191.download_musical_scores.Main} uses.
+     */
+    @Param({"1", "20"})
+    public int maxJobsRunningAtOnce;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Jobs that are done as soon as they start, so each one recycles its permit on the adding thread.
+     */
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public List<Integer> completedJobs() {
+        JobsQueue<Integer> queue = new JobsQueue<>(maxJobsRunningAtOnce);
+        for (int i = 0; i < JOBS; i++) {
+            final int result = i;
+            queue.add(() -> CompletableFuture.completedFuture(result), null);
+        }
+        queue.joinAll();
+        return queue.getAll();
+    }
+
+    /**
+     * Jobs that complete on other threads, so permits are recycled concurrently with jobs being added.
+     */
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public List<Integer> asyncJobs() {
+        JobsQueue<Integer> queue = new JobsQueue<>(maxJobsRunningAtOnce);
+        for (int i = 0; i < JOBS; i++) {
+            final int result = i;
+            queue.add(() -> CompletableFuture.supplyAsync(() -> result, executor), null);
+        }
+        queue.joinAll();
+        return queue.getAll();
+    }
+}
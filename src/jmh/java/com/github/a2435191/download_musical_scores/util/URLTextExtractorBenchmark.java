@@ -0,0 +1,106 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time {@link URLTextExtractor#extractURLsFromRedditPost(JSONObject, String)} on posts shaped like the ones in
+ * r/MusicalScores: score requests and shares with a few lines of prose around markdown links, bare links, bold links,
+ * links broken up by spaces and the occasional Base64-encoded link.
+ * Every self post has at least one URL in its selftext, so reddit.com is never queried.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class URLTextExtractorBenchmark {
+    private static final int POSTS = 1000;
+    private static final String SUBREDDIT = "MusicalScores";
+
+    private static final String[] PROSE = {
+        "Here's the full vocal score, enjoy!",
+        "Does anyone have the pit parts for this? Looking for Reed 2 specifically.",
+        "Piano/conductor score from the 2019 revival, scanned at 600dpi.",
+        "Let me know if any of the links die and I'll reupload.",
+        "**EDIT:** added the libretto too",
+        "Thanks to u/someone for sending me these a while ago &amp; sorry for the wait.",
+        "Rehearsal tracks are in the same folder. Some pages are missing from act 2 :(",
+        "",
+    };
+    private static final String[] URLS = {
+        "https://drive.google.com/drive/folders/1AbCdEfGhIjKlMnOpQrStUvWxYz012345",
+        "https://drive.google.com/file/d/1ZyXwVuTsRqPoNmLkJiHgFeDcBa98765/view?usp=sharing",
+        "https://www.dropbox.com/sh/abcdefghijklmno/AAB1c2d3e4f5g6h7i8j9k0lm?dl=0",
+        "https://mega.nz/folder/AbCdEfGh#IjKlMnOpQrStUvWxYz0123",
+        "https://we.tl/t-AbCdEf1234",
+        "https://www.sendspace.com/file/abc123",
+    };
+
+    private final List<JSONObject> posts = new ArrayList<>(POSTS);
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < POSTS; i++) {
+            JSONObject post = new JSONObject();
+            post.put("id", Integer.toString(100_000_000 + i, Character.MAX_RADIX));
+            if (random.nextInt(5) == 0) {
+                post.put("is_self", false);
+                post.put("url", URLS[random.nextInt(URLS.length)]);
+            } else {
+                post.put("is_self", true);
+                post.put("selftext", selftext(random));
+            }
+            posts.add(post);
+        }
+    }
+
+    private static String selftext(Random random) {
+        StringBuilder selftext = new StringBuilder();
+        int links = 1 + random.nextInt(4);
+        for (int i = 0; i < links; i++) {
+            selftext.append(PROSE[random.nextInt(PROSE.length)]).append("\n\n");
+            String url = URLS[random.nextInt(URLS.length)];
+            switch (random.nextInt(5)) {
+                case 0 -> selftext.append("[").append(url).append("](").append(url).append(")");
+                case 1 -> selftext.append("Act ").append(i + 1).append(": [").append(url).append("](")
+                    .append(url).append(")");
+                case 2 -> selftext.append("**").append(url).append("**");
+                case 3 -> selftext.append(url, 0, url.length() / 2).append(" ").append(url.substring(url.length() / 2));
+                default -> selftext.append(
+                    Base64.getEncoder().encodeToString(url.getBytes(StandardCharsets.UTF_8)));
+            }
+            selftext.append("\n\n");
+        }
+        selftext.append(PROSE[random.nextInt(PROSE.length)]);
+        return selftext.toString();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POSTS)
+    public void extractURLsFromRedditPost(Blackhole blackhole) throws BadRequestStatusException {
+        for (JSONObject post : posts) {
+            blackhole.consume(URLTextExtractor.extractURLsFromRedditPost(post, SUBREDDIT));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.opencsv.CSVWriter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends {@link PersistentDownloadData} rows to a CSV file as they are produced, on a background thread.
+ * <p>
+ * The file is only ever appended to. Rows are written in batches and synced to disk (group commit) once
+ * <code>commitRecords</code> rows are unsynced or the oldest unsynced row is <code>commitInterval</code> old,
+ * so a crash loses at most that much. A row cut off by a crash is removed when the file is next opened,
+ * see {@link #repair(Path)}. The same key may appear more than once; {@link PersistentDownloadData#fromCSV(java.io.File)}
+ * keeps the last row.
+ */
+@ThreadSafe
+public final class DownloadLedgerWriter implements AutoCloseable {
+    /**
+     * Default number of unsynced rows that triggers a sync.
+     */
+    public static final int DEFAULT_COMMIT_RECORDS = 256;
+    /**
+     * Default maximum time a row stays unsynced.
+     */
+    public static final @NotNull Duration DEFAULT_COMMIT_INTERVAL = Duration.ofSeconds(1);
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int REPAIR_CHUNK_SIZE = 8 * 1024;
+
+    private final @NotNull Queue<@NotNull PersistentDownloadData> source;
+    private final @NotNull FileChannel channel;
+    private final int commitRecords;
+    private final long commitIntervalNanos;
+    private final @NotNull Thread writer;
+    private volatile boolean closing = false;
+    private volatile @Nullable IOException failure = null;
+
+    /**
+     * Start writing with the default group commit settings.
+     *
+     * @param csvPath CSV file to append to. Created (with a header) if it doesn't exist.
+     * @param source  Queue to drain, e.g. {@link MusicalScoresDownloader#outData}.
+     * @throws IOException if the file can't be opened or repaired.
+     */
+    public DownloadLedgerWriter(@NotNull Path csvPath,
+                                @NotNull Queue<@NotNull PersistentDownloadData> source) throws IOException {
+        this(csvPath, source, DEFAULT_COMMIT_RECORDS, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Start writing.
+     *
+     * @param csvPath        CSV file to append to. Created (with a header) if it doesn't exist.
+     * @param source         Queue to drain, e.g. {@link MusicalScoresDownloader#outData}.
+     * @param commitRecords  Number of unsynced rows that triggers a sync.
+     * @param commitInterval Maximum time a row stays unsynced.
+     * @throws IOException if the file can't be opened or repaired.
+     */
+    public DownloadLedgerWriter(@NotNull Path csvPath,
+                                @NotNull Queue<@NotNull PersistentDownloadData> source,
+                                int commitRecords,
+                                @NotNull Duration commitInterval) throws IOException {
+        if (commitRecords < 1) {
+            throw new IllegalArgumentException("commitRecords must be positive");
+        }
+        this.source = source;
+        this.commitRecords = commitRecords;
+        this.commitIntervalNanos = commitInterval.toNanos();
+        this.channel = FileChannel.open(
+            csvPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            repair(this.channel);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.writer = new Thread(this::run, "ledger-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Make a CSV file safe to read and append to: create it with a header if it is missing or empty, and
+     * cut off a last row that a crash left unterminated.
+     *
+     * @param csvPath CSV file to repair.
+     * @throws IOException if the file can't be opened, read or written.
+     */
+    public static void repair(@NotNull Path csvPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+            csvPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            repair(channel);
+        }
+    }
+
+    /**
+     * See {@link #repair(Path)}. Leaves <code>channel</code> positioned at its end.
+     */
+    private static void repair(@NotNull FileChannel channel) throws IOException {
+        long end = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(REPAIR_CHUNK_SIZE);
+        long validEnd = 0;
+        search:
+        while (end > 0) {
+            long start = Math.max(0, end - REPAIR_CHUNK_SIZE);
+            buffer.clear().limit((int) (end - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("File shrank while being repaired");
+                }
+            }
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    validEnd = start + i + 1;
+                    break search;
+                }
+            }
+            end = start;
+        }
+
+        if (validEnd < channel.size()) {
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+        if (validEnd == 0) {
+            write(channel, toCsv(PersistentDownloadData.FIELDS));
+        }
+        channel.force(false);
+    }
+
+    private static @NotNull String toCsv(@NotNull String @NotNull [] row) {
+        StringWriter text = new StringWriter();
+        CSVWriter csv = new CSVWriter(text);
+        csv.writeNext(row);
+        return text.toString();
+    }
+
+    private static void write(@NotNull FileChannel channel, @NotNull CharSequence text) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(text.toString());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void run() {
+        final StringWriter text = new StringWriter();
+        final CSVWriter csv = new CSVWriter(text);
+        int unsynced = 0;
+        long oldestUnsyncedNanos = 0;
+
+        try {
+            while (true) {
+                final boolean lastRound = this.closing; // read before draining, so nothing added before close is missed
+
+                int batch = 0;
+                PersistentDownloadData data;
+                while (batch < this.commitRecords && (data = this.source.poll()) != null) {
+                    csv.writeNext(data.toCsvRow());
+                    batch++;
+                }
+                if (batch > 0) {
+                    csv.flush();
+                    write(this.channel, text.getBuffer());
+                    text.getBuffer().setLength(0);
+                    if (unsynced == 0) {
+                        oldestUnsyncedNanos = System.nanoTime();
+                    }
+                    unsynced += batch;
+                }
+
+                if (unsynced > 0 && (unsynced >= this.commitRecords
+                                     || System.nanoTime() - oldestUnsyncedNanos >= this.commitIntervalNanos
+                                     || (lastRound && batch == 0))) {
+                    this.channel.force(false);
+                    unsynced = 0;
+                }
+
+                if (batch == 0) {
+                    if (lastRound && unsynced == 0) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, IDLE_POLL_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            this.failure = e;
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Write and sync everything added to the source queue so far, then close the file.
+     *
+     * @throws IOException if a write or sync failed at any point.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closing = true;
+        LockSupport.unpark(this.writer);
+        boolean interrupted = false;
+        while (this.writer.isAlive()) {
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.channel.close();
+        IOException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
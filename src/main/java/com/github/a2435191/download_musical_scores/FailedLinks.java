@@ -0,0 +1,163 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.github.a2435191.download_musical_scores.reddit.HighWaterMark;
+import com.github.a2435191.download_musical_scores.reddit.RedditPostInfo;
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import com.opencsv.CSVWriter;
+import com.opencsv.RFC4180Parser;
+import com.opencsv.exceptions.CsvValidationException;
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Links whose download failed, kept in a CSV file so that the next run retries them. This lets the
+ * {@link HighWaterMark} move past a post even if one of its links is broken, instead of every later run fetching
+ * everything since that post again.
+ * <p>
+ * Each row is one link: the post's <code>id</code>, <code>timestamp</code>, <code>redditURLPath</code> and
+ * <code>title</code>, the link number, then every score URL of the post (see {@link RedditPostInfo}).
+ * The file is replaced atomically, so it's either the old or the new list after a crash. It's read with an
+ * RFC 4180 parser, which (unlike the default one) takes backslashes in titles and URLs literally, as
+ * {@link CSVWriter} writes them.
+ */
+@ThreadSafe
+public final class FailedLinks {
+    private static final int FIXED_COLUMNS = 5;
+
+    private final @NotNull Map<@NotNull String, @NotNull Post> posts = new ConcurrentHashMap<>();
+
+    /**
+     * Read the links a run failed to download.
+     *
+     * @param path File the links are kept in.
+     * @return The links. Empty if the file doesn't exist.
+     * @throws IOException if the file can't be read, or has a row that isn't a link (e.g. too few columns, or a link
+     *                     number that isn't one of the post's links).
+     */
+    public static @NotNull FailedLinks read(@NotNull Path path) throws IOException {
+        FailedLinks out = new FailedLinks();
+        if (!Files.exists(path)) {
+            return out;
+        }
+        try (CSVReader reader = new CSVReaderBuilder(Files.newBufferedReader(path, StandardCharsets.UTF_8))
+                                    .withCSVParser(new RFC4180Parser())
+                                    .build()) {
+            String[] row;
+            for (int rowNumber = 1; (row = reader.readNext()) != null; rowNumber++) {
+                addRow(out, row, path, rowNumber);
+            }
+        } catch (CsvValidationException e) {
+            throw new IOException("Malformed CSV in " + path, e);
+        }
+        return out;
+    }
+
+    private static void addRow(@NotNull FailedLinks out, @NotNull String @NotNull [] row, @NotNull Path path,
+                               int rowNumber) throws IOException {
+        if (row.length < FIXED_COLUMNS) {
+            throw new IOException("Row " + rowNumber + " of " + path + " has " + row.length
+                                      + " columns, expected at least " + FIXED_COLUMNS);
+        }
+        final long timestamp;
+        final int linkNumber;
+        try {
+            timestamp = Long.parseLong(row[1]);
+            linkNumber = Integer.parseInt(row[4]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Row " + rowNumber + " of " + path + " has a malformed timestamp or link number", e);
+        }
+        String[] scoreURLs = Arrays.copyOfRange(row, FIXED_COLUMNS, row.length);
+        if (linkNumber < 0 || linkNumber >= scoreURLs.length) {
+            throw new IOException("Row " + rowNumber + " of " + path + " has link number " + linkNumber
+                                      + " but " + scoreURLs.length + " links");
+        }
+        out.add(new RedditPostInfo(row[0], timestamp, row[2], row[3], scoreURLs), linkNumber);
+    }
+
+    /**
+     * Record a link whose download failed.
+     *
+     * @param info       Post the link is from.
+     * @param linkNumber Index of the link in {@link RedditPostInfo#scoreURLs()}.
+     */
+    public void add(@NotNull RedditPostInfo info, int linkNumber) {
+        posts.computeIfAbsent(info.id(), $ -> new Post(info, ConcurrentHashMap.newKeySet()))
+            .linkNumbers.add(linkNumber);
+    }
+
+    /**
+     * Whether any link of a post failed.
+     *
+     * @param redditID Id of the post.
+     * @return if the post has a failed link.
+     */
+    public boolean containsPost(@NotNull String redditID) {
+        return posts.containsKey(redditID);
+    }
+
+    /**
+     * Whether a link failed.
+     *
+     * @param redditID   Id of the post.
+     * @param linkNumber Index of the link in {@link RedditPostInfo#scoreURLs()}.
+     * @return if the link failed.
+     */
+    public boolean contains(@NotNull String redditID, int linkNumber) {
+        Post post = posts.get(redditID);
+        return post != null && post.linkNumbers.contains(linkNumber);
+    }
+
+    /**
+     * Get the posts with failed links, newest first.
+     *
+     * @return A snapshot of the posts.
+     */
+    public @NotNull List<@NotNull RedditPostInfo> getPosts() {
+        return posts.values().stream()
+            .map(Post::info)
+            .sorted(Comparator.comparingLong(RedditPostInfo::timestamp).reversed())
+            .toList();
+    }
+
+    /**
+     * Replace the file the links are kept in with the links recorded so far.
+     *
+     * @param path File the links are kept in.
+     * @throws IOException if the file can't be written.
+     */
+    public void write(@NotNull Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (CSVWriter writer = new CSVWriter(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+            for (RedditPostInfo info : getPosts()) {
+                for (int linkNumber : new TreeSet<>(posts.get(info.id()).linkNumbers)) {
+                    String[] row = new String[FIXED_COLUMNS + info.scoreURLs().length];
+                    row[0] = info.id();
+                    row[1] = "" + info.timestamp();
+                    row[2] = info.redditURLPath();
+                    row[3] = info.title();
+                    row[4] = "" + linkNumber;
+                    System.arraycopy(info.scoreURLs(), 0, row, FIXED_COLUMNS, info.scoreURLs().length);
+                    writer.writeNext(row);
+                }
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private record Post(@NotNull RedditPostInfo info, @NotNull Set<@NotNull Integer> linkNumbers) {
+    }
+}
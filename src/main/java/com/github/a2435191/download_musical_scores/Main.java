@@ -1,55 +1,91 @@
 package com.github.a2435191.download_musical_scores;
 
 
-import java.io.File;
+import com.github.a2435191.download_musical_scores.downloaders.AbstractFileDownloader;
+import com.github.a2435191.download_musical_scores.reddit.HighWaterMark;
+import com.github.a2435191.download_musical_scores.reddit.PrefetchingSubredditStream;
+import com.github.a2435191.download_musical_scores.reddit.SubredditStream;
+import com.github.a2435191.download_musical_scores.util.ContentIndex;
+import com.github.a2435191.download_musical_scores.util.JobsQueue;
+import com.github.a2435191.download_musical_scores.util.Metrics;
+import com.github.a2435191.download_musical_scores.util.MetricsServer;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Path;
-import java.util.concurrent.CompletableFuture;
+import java.util.List;
 
 public final class Main {
 
-    public static final String DOWNLOAD_CSV_PATH = "downloads_test.csv";
+    public static final String DOWNLOAD_CSV_PATH = "downloads.csv";
+    /**
+     * File the newest processed post's timestamp is kept in, see {@link HighWaterMark}.
+     * Only posts newer than it are fetched, unless the program is run with {@link #FULL_SYNC_FLAG}.
+     */
+    public static final String HIGH_WATER_MARK_PATH = "high-water-mark.txt";
+    /**
+     * File the links that failed to download are kept in, so that the next run retries them, see {@link FailedLinks}.
+     */
+    public static final String FAILED_LINKS_PATH = "failed-links.csv";
+    /**
+     * Argument to walk the whole subreddit instead of only the posts since the last run.
+     */
+    public static final String FULL_SYNC_FLAG = "--full";
+    /**
+     * Port the metrics are served on, on the loopback address only, see {@link MetricsServer}.
+     */
+    public static final int METRICS_PORT = 9464;
+
+    /**
+     * Serve {@link Metrics#getShared()} on {@link #METRICS_PORT}.
+     *
+     * @return The running server, or <code>null</code> if the port can't be bound (e.g. another run is using it),
+     * in which case the run goes on without it.
+     */
+    private static @Nullable MetricsServer startMetricsServer() {
+        try {
+            return MetricsServer.start(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), Metrics.getShared());
+        } catch (IOException e) {
+            System.err.println("can't serve metrics on port " + METRICS_PORT + ", continuing without them: " + e);
+            return null;
+        }
+    }
 
     @SuppressWarnings("RedundantThrows")
     public static void main(String[] args) throws Throwable {
+        Path csvPath = Path.of(DOWNLOAD_CSV_PATH);
+        DownloadLedgerWriter.repair(csvPath);
+
         MusicalScoresDownloader downloader = new MusicalScoresDownloader(
-            "MusicalScores", Path.of("downloads"), new File("downloads.csv"));
-
-
-        CompletableFuture<Void> downloadFuture = CompletableFuture.runAsync(
-            () -> downloader.downloadAll(20, 0, -1).joinAll()
-        );
-
-//        CompletableFuture<Void> savePermanentData = CompletableFuture.runAsync(
-//            () -> {
-//                try (
-//                    FileWriter fileWriterToErase = new FileWriter(DOWNLOAD_CSV_PATH, false);
-//                    FileWriter fileWriter = new FileWriter(DOWNLOAD_CSV_PATH, true);
-//                    CSVWriter writer = new CSVWriter(fileWriter)
-//                ) {
-//                    fileWriterToErase.write("");
-//                    fileWriterToErase.flush();
-//
-//                    writer.writeNext(PersistentDownloadData.FIELDS);
-//                    writer.flush();
-//                    while (!downloadFuture.isDone()) {
-//                        MusicalScoresDownloader.sleep(500);
-//                        @Nullable PersistentDownloadData data = downloader.outData.poll();
-//                        if (data != null) {
-//                            writer.writeNext(data.toCsvRow());
-//                            writer.flush();
-//                        }
-//                    }
-//
-//
-//                } catch (IOException ex) {
-//                    throw new RuntimeException(ex);
-//                }
-//            }
-//        );
-//        savePermanentData.join();
-        downloadFuture.join();
-        System.out.println(downloader.outData);
+            "MusicalScores", Path.of("downloads"), csvPath.toFile());
+
+        Path markPath = Path.of(HIGH_WATER_MARK_PATH);
+        Path failedLinksPath = Path.of(FAILED_LINKS_PATH);
+        boolean fullSync = List.of(args).contains(FULL_SYNC_FLAG);
+        Long after = fullSync ? null : HighWaterMark.read(markPath);
+        // a full sync walks the posts of failed links again anyway
+        FailedLinks retries = fullSync ? new FailedLinks() : FailedLinks.read(failedLinksPath);
+        SubredditStream posts = new SubredditStream(downloader.subredditName, after);
 
+        Metrics.getShared().registerMBean();
+        try (MetricsServer ignoredServer = startMetricsServer(); // a null resource isn't closed
+             DownloadLedgerWriter ignored = new DownloadLedgerWriter(csvPath, downloader.outData);
+             ContentIndex ignoredIndex = downloader.contentIndex;
+             AbstractFileDownloader.DownloaderManager ignoredManager = downloader.manager) {
+            JobsQueue<Void> jobs = downloader.downloadAll(
+                posts, retries, 20, 0, -1, (info, idx) -> true, PrefetchingSubredditStream.DEFAULT_DEPTH);
+            jobs.joinAll();
 
+            // failed links are saved to be retried next time (before the mark moves past them), so they don't hold
+            // the mark back
+            downloader.failedLinks.write(failedLinksPath);
+            Long newest = posts.getNewestTimestamp();
+            if (posts.isDone() && newest != null) {
+                HighWaterMark.write(markPath, newest);
+            }
+        }
     }
 }
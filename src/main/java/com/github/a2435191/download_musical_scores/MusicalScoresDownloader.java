@@ -2,42 +2,86 @@ package com.github.a2435191.download_musical_scores;
 
 import com.github.a2435191.download_musical_scores.downloaders.AbstractFileDownloader;
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.filetree.AbstractFileNodeStreamDownloader;
+import com.github.a2435191.download_musical_scores.filetree.RemoteValidators;
 import com.github.a2435191.download_musical_scores.reddit.RedditPostInfo;
+import com.github.a2435191.download_musical_scores.reddit.PrefetchingSubredditStream;
 import com.github.a2435191.download_musical_scores.reddit.SubredditStream;
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.ContentIndex;
+import com.github.a2435191.download_musical_scores.util.DownloadExecutors;
 import com.github.a2435191.download_musical_scores.util.FileUtils;
 import com.github.a2435191.download_musical_scores.util.JobsQueue;
+import com.github.a2435191.download_musical_scores.util.Metrics;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
+import java.util.zip.ZipOutputStream;
 
 @ThreadSafe
 public final class MusicalScoresDownloader {
     private static final String SUBMISSION_PREFIX = "[SUBMISSION]";
+    /**
+     * Default maximum number of files downloaded at once from a single file tree.
+     */
+    public static final int DEFAULT_TREE_PARALLELISM = 4;
+    /**
+     * Name of the file in {@link #downloadDir} the default {@link #contentIndex} is kept in.
+     */
+    public static final String CONTENT_INDEX_NAME = ".content-index.tsv";
     public final @NotNull ConcurrentLinkedQueue<@NotNull PersistentDownloadData> outData
         = new ConcurrentLinkedQueue<>();
+    /**
+     * Links whose download has failed so far, to be retried by the next run.
+     */
+    public final @NotNull FailedLinks failedLinks = new FailedLinks();
     public final AbstractFileDownloader.DownloaderManager manager;
     public final @NotNull String subredditName;
     public final @NotNull Path downloadDir;
     public final @NotNull Predicate<@Nullable PersistentDownloadData> overwritePredicate;
     public final @NotNull BiPredicate<@NotNull RedditPostInfo, @NotNull Integer> zipPredicate;
-    public final @NotNull Map<Map.Entry<@NotNull String, @NotNull Integer>, @NotNull PersistentDownloadData>
-        persistentDownloadDataMap;
+    public final @NotNull PersistentDownloadDataIndex persistentDownloadDataIndex;
+    /**
+     * Maximum number of files downloaded at once from a single file tree (e.g. a Google Drive folder).
+     */
+    public final int treeParallelism;
+    /**
+     * Runs every (blocking) download. Should not bound its number of threads: concurrency is already capped by
+     * the <code>batchSize</code> of {@link #downloadAll(int, int, int)} and by {@link #treeParallelism},
+     * and downloads wait on files of their own tree, which could deadlock a bounded pool.
+     *
+     * @see DownloadExecutors#newDefault()
+     */
+    public final @NotNull Executor executor;
+    /**
+     * Deduplicates downloaded files by contents. <code>null</code> to keep every copy.
+     */
+    public final @Nullable ContentIndex contentIndex;
 
     private final @NotNull Map<@NotNull String, @NotNull Integer> redditIDCounter
         = new HashMap<>();
@@ -51,12 +95,14 @@ public final class MusicalScoresDownloader {
             .addWeTransferDownloader(60)
             .addStackStorageDownloader(60)
             .addGoogleDriveDownloader(60)
-            .addMegaDownloader()
+            .addMegaDownloader(60)
             .addDropboxDownloader();
 
 
         try {
-            this.persistentDownloadDataMap = PersistentDownloadData.fromCSV(persistentDataCSV);
+            this.persistentDownloadDataIndex = PersistentDownloadDataIndex.load(persistentDataCSV.toPath());
+            Files.createDirectories(downloadDir);
+            this.contentIndex = new ContentIndex(downloadDir.resolve(CONTENT_INDEX_NAME));
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -65,6 +111,8 @@ public final class MusicalScoresDownloader {
         this.zipPredicate = (info, idx) -> false;
         this.subredditName = subredditName;
         this.downloadDir = downloadDir;
+        this.treeParallelism = DEFAULT_TREE_PARALLELISM;
+        this.executor = DownloadExecutors.newDefault();
 
     }
 
@@ -73,13 +121,22 @@ public final class MusicalScoresDownloader {
                                    AbstractFileDownloader.DownloaderManager manager,
                                    @NotNull Predicate<@Nullable PersistentDownloadData> overwritePredicate,
                                    @NotNull BiPredicate<RedditPostInfo, Integer> zipPredicate,
-                                   @NotNull Map<Map.Entry<String, Integer>, PersistentDownloadData> persistentDownloadDataMap) {
+                                   @NotNull PersistentDownloadDataIndex persistentDownloadDataIndex,
+                                   int treeParallelism,
+                                   @NotNull Executor executor,
+                                   @Nullable ContentIndex contentIndex) {
+        if (treeParallelism < 1) {
+            throw new IllegalArgumentException("treeParallelism must be positive");
+        }
         this.subredditName = subredditName;
         this.downloadDir = downloadDir;
         this.manager = manager;
         this.overwritePredicate = overwritePredicate;
         this.zipPredicate = zipPredicate;
-        this.persistentDownloadDataMap = persistentDownloadDataMap;
+        this.persistentDownloadDataIndex = persistentDownloadDataIndex;
+        this.treeParallelism = treeParallelism;
+        this.executor = executor;
+        this.contentIndex = contentIndex;
 
     }
 
@@ -97,58 +154,110 @@ public final class MusicalScoresDownloader {
         return escapedTitle;
     }
 
-    private static void zipAndDeleteOnExceptions(Path targetPath) {
-        if (!Files.exists(targetPath)) {
-            return;
-        }
-        Path zipDownloadPath = Path.of(targetPath + ".zip");
-        try {
-            FileUtils.zipDirectory(targetPath, zipDownloadPath);
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-        } finally {
-            try {
-                if (targetPath.toFile().exists()) {
-                    FileUtils.delete(targetPath);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-
-    static void sleep(@SuppressWarnings("SameParameterValue") long millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-    }
-
-    @Contract("_, _, _, _, _ -> new")
+    @Contract("_, _, _, _, _, _, _, _ -> new")
     private static @NotNull PersistentDownloadData createPersistentDataToBeSaved(
-        String redditID, boolean zipped, Path saveLocation, int linkNumber, String url) {
+        String redditID, boolean zipped, Path saveLocation, int linkNumber, String url, @Nullable String sha256,
+        boolean overwrite, @NotNull RemoteValidators validators) {
         return new PersistentDownloadData(
             redditID,
             zipped ? Path.of(saveLocation + ".zip") : saveLocation,
             linkNumber,
             URI.create(url),
             LocalDateTime.now(),
-            false
+            overwrite,
+            sha256,
+            validators
         );
     }
 
+    private static @NotNull MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ContentIndex.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every JVM has SHA-256
+        }
+    }
+
+    /**
+     * Digest identifying everything downloaded from one link: the file's own digest if the link is a single file,
+     * otherwise the digest of a manifest with a <code>digest  relative/path</code> line per file, sorted by path.
+     */
+    private static @NotNull String combinedDigest(@NotNull AbstractFileNode root,
+                                                  @NotNull Path parentDir,
+                                                  @NotNull Collection<@NotNull SavedFile> files) {
+        if (!root.isDirectory() && files.size() == 1) {
+            return files.iterator().next().sha256;
+        }
+        StringBuilder manifest = new StringBuilder();
+        files.stream()
+            .map(file -> Map.entry(parentDir.relativize(file.path).toString().replace('\\', '/'), file.sha256))
+            .sorted(Map.Entry.comparingByKey())
+            .forEachOrdered(entry -> manifest.append(entry.getValue()).append("  ").append(entry.getKey()).append('\n'));
+        return ContentIndex.toHex(newDigest().digest(manifest.toString().getBytes(StandardCharsets.UTF_8)));
+    }
 
-    public void downloadAndDeleteOnExceptions(String url, Path targetPath) {
+
+    /**
+     * Get the validators to make a new download of a link conditional on, if it's a single file whose earlier download
+     * is still intact in <code>parentDir</code>.
+     *
+     * @return <code>null</code> if the link has to be downloaded unconditionally.
+     */
+    private static @Nullable RemoteValidators getRevalidatable(@NotNull AbstractFileNode root,
+                                                               @NotNull Path parentDir,
+                                                               @Nullable PersistentDownloadData previous)
+        throws IOException {
+        if (previous == null || previous.sha256() == null || !previous.validators().canRevalidate()
+                || root.isDirectory() || !(root instanceof AbstractFileNodeStreamDownloader)
+                || !previous.saveLocation().equals(parentDir) || !Files.isDirectory(parentDir)) {
+            return null;
+        }
+        final List<Path> onDisk;
+        try (Stream<Path> paths = Files.list(parentDir)) {
+            onDisk = paths.filter(path -> !AbstractFileNodeStreamDownloader.isPartialDownload(path)).toList();
+        }
+        if (onDisk.size() != 1 || !Files.isRegularFile(onDisk.get(0))) {
+            return null;
+        }
+        long contentLength = previous.validators().contentLength();
+        if (contentLength >= 0 && Files.size(onDisk.get(0)) != contentLength) {
+            return null; // damaged since, a 304 wouldn't fix it
+        }
+        return previous.validators();
+    }
+
+
+    /**
+     * {@link #download(String, Path)}, deleting what was downloaded (except partial downloads) if it fails.
+     *
+     * @return See {@link #download(String, Path)}.
+     */
+    public @NotNull String downloadAndDeleteOnExceptions(String url, Path targetPath) {
+        return downloadAndDeleteOnExceptions(url, targetPath, null).sha256();
+    }
+
+    /**
+     * {@link #download(String, Path, PersistentDownloadData)}, deleting what was downloaded (except partial downloads)
+     * if it fails. Nothing is deleted if <code>previous</code> was saved to <code>targetPath</code>, since it then
+     * holds an earlier complete download.
+     *
+     * @return See {@link #download(String, Path, PersistentDownloadData)}.
+     */
+    public @NotNull Downloaded downloadAndDeleteOnExceptions(String url,
+                                                             Path targetPath,
+                                                             @Nullable PersistentDownloadData previous) {
         try {
-            download(url, targetPath);
+            return download(url, targetPath, previous);
         } catch (Exception | AssertionError e) {
             e.printStackTrace();
-            System.out.println("deleting " + targetPath + " for " + url);
+            if (previous != null && previous.saveLocation().equals(targetPath)) {
+                throw new RuntimeException(e);
+            }
+            System.out.println("deleting " + targetPath + " for " + url + " (keeping partial downloads)");
             if (targetPath.toFile().exists()) {
                 try {
-                    FileUtils.delete(targetPath);
+                    // partial downloads are resumed by the next attempt
+                    FileUtils.deleteExcept(targetPath, AbstractFileNodeStreamDownloader::isPartialDownload);
                 } catch (IOException ex) {
                     throw new RuntimeException("failed to delete " + targetPath, ex);
                 }
@@ -158,30 +267,215 @@ public final class MusicalScoresDownloader {
 
     }
 
-    public void download(@NotNull String url, @NotNull Path parentDir) throws IOException {
+    /**
+     * Download a URL as a zip archive, writing each file into the archive as it arrives.
+     * Nothing is staged on disk (except for nodes that can only save to disk, see
+     * {@link AbstractFileNode#saveToZip(ZipOutputStream, String)}), and if anything fails no archive is left behind.
+     *
+     * @param url        URL to download
+     * @param targetPath Path of the archive, without the <code>.zip</code> extension.
+     * @throws IOException if the download fails
+     */
+    public void downloadZipped(@NotNull String url, @NotNull Path targetPath) throws IOException {
+        final AbstractFileDownloader downloader = getDownloader(url);
+        AbstractFileNode root = downloader.resolve(url);
+        final long start = System.nanoTime();
+
+        final Path zipPath = Path.of(targetPath + ".zip");
+        final Path tempPath = Path.of(targetPath + ".zip.tmp");
+        boolean done = false;
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+                Deque<NodeAndEntry> stack = new ArrayDeque<>();
+                stack.push(new NodeAndEntry(root, ""));
+                while (!stack.isEmpty()) {
+                    NodeAndEntry nodeAndEntry = stack.pop();
+                    String entry = nodeAndEntry.node.saveToZip(zip, nodeAndEntry.parentEntry);
+                    for (AbstractFileNode child : nodeAndEntry.node.getChildren()) {
+                        stack.push(new NodeAndEntry(child, entry));
+                    }
+                }
+            }
+            Files.move(tempPath, zipPath);
+            done = true;
+            recordTransfer(downloader, url, start, Files.size(zipPath));
+        } finally {
+            if (!done) {
+                System.out.println("deleting " + tempPath + " for " + url);
+                Files.deleteIfExists(tempPath);
+            }
+        }
+    }
 
+    private @NotNull AbstractFileDownloader getDownloader(@NotNull String url) {
         final AbstractFileDownloader downloader = this.manager.getInstanceFromUrl(URI.create(url)); // threadsafe so ok
 
         if (downloader == null) {
             throw new RuntimeException("no downloader found for url " + url + "!");
         }
 
-        AbstractFileNode root = downloader.getFileTreeRoot(url);
-        Stack<NodeAndPath> stack = new Stack<>();
-        stack.add(new NodeAndPath(root, parentDir));
+        return downloader;
+    }
 
-        while (!stack.isEmpty()) {
-            NodeAndPath nodeAndDownloadDir = stack.pop();
+    /**
+     * Record a finished download in the shared {@link Metrics}: its duration by downloader, and its size by the host
+     * of the link (whose rate is the download throughput).
+     *
+     * @param startNanos {@link System#nanoTime()} when the transfer started: after the URL was resolved for a single
+     *                   file, when the lookup started for a tree, whose files download while it is listed.
+     */
+    private static void recordTransfer(@NotNull AbstractFileDownloader downloader,
+                                       @NotNull String url,
+                                       long startNanos,
+                                       long bytes) {
+        Metrics metrics = Metrics.getShared();
+        metrics.histogram(
+            "downloader_transfer_seconds",
+            "Time taken to download everything behind a URL once resolved, by downloader",
+            Metrics.DEFAULT_SECONDS_BUCKETS,
+            "downloader", downloader.getClass().getSimpleName()
+        ).observeSince(startNanos);
+        metrics.counter(
+            "downloaded_bytes_total",
+            "Bytes saved, by host of the link",
+            "host", Objects.requireNonNullElse(URI.create(url).getHost(), "")
+        ).add(bytes);
+    }
 
+    /**
+     * Download a URL into a directory, keeping the structure of its file tree.
+     * Files start downloading as soon as the lookup finds them, while the rest of the tree is still being listed.
+     * Each file is hashed as it is written, and deduplicated with {@link #contentIndex} if there is one.
+     *
+     * @param url       URL to download
+     * @param parentDir Directory to download into. Its parent must exist.
+     * @return Lowercase hex SHA-256 digest of what was downloaded, see {@link PersistentDownloadData#sha256()}.
+     * @throws IOException if the download fails
+     */
+    public @NotNull String download(@NotNull String url, @NotNull Path parentDir) throws IOException {
+        return download(url, parentDir, null).sha256();
+    }
 
-            if (!nodeAndDownloadDir.downloadDir.toFile().exists()) {
-                Files.createDirectory(nodeAndDownloadDir.downloadDir);
-            }
-            Path downloadPath = nodeAndDownloadDir.node.saveToDisk(nodeAndDownloadDir.downloadDir);
-            for (AbstractFileNode child : nodeAndDownloadDir.node.getChildren()) {
-                stack.add(new NodeAndPath(child, downloadPath));
+    /**
+     * Like {@link #download(String, Path)}, but if <code>previous</code> saved the same single file to
+     * <code>parentDir</code>, it's still there, and the server sent validators for it, the file is only downloaded
+     * again if it has changed (see {@link AbstractFileNodeStreamDownloader#saveToDiskIfModified}). If the file in
+     * <code>parentDir</code> can't be revalidated (e.g. it's been damaged since), it's downloaded again and replaces
+     * what was there.
+     *
+     * @param url       URL to download
+     * @param parentDir Directory to download into. Its parent must exist.
+     * @param previous  The last download of the link, or <code>null</code>.
+     * @return What was downloaded.
+     * @throws IOException if the download fails
+     */
+    public @NotNull Downloaded download(@NotNull String url,
+                                        @NotNull Path parentDir,
+                                        @Nullable PersistentDownloadData previous) throws IOException {
+        final AbstractFileDownloader downloader = getDownloader(url);
+        final long lookupStart = System.nanoTime();
+        final TreeDownload tree = new TreeDownload(parentDir);
+        final AbstractFileNode root;
+        try {
+            root = downloader.resolve(url, tree);
+        } catch (IOException | RuntimeException e) {
+            tree.cancel(e);
+            throw e;
+        }
+        final Collection<SavedFile> saved = tree.finish();
+        if (root.isDirectory()) {
+            recordTransfer(downloader, url, lookupStart, saved.stream().mapToLong(SavedFile::size).sum());
+            return new Downloaded(combinedDigest(root, parentDir, saved), RemoteValidators.NONE, true);
+        }
+        final long start = System.nanoTime();
+
+        final @Nullable RemoteValidators previousValidators = getRevalidatable(root, parentDir, previous);
+        if (previousValidators != null) {
+            assert previous.sha256() != null;
+            @Nullable SavedFile file = saveFile(new NodeAndPath(root, parentDir), previousValidators);
+            if (file == null) {
+                return new Downloaded(previous.sha256(), previousValidators, false);
             }
+            recordTransfer(downloader, url, start, file.size);
+            return new Downloaded(file.sha256, file.validators, true);
+        }
+        if (root instanceof AbstractFileNodeStreamDownloader streamRoot
+                && previous != null && previous.saveLocation().equals(parentDir) && Files.isDirectory(parentDir)) {
+            // the earlier copy can't be revalidated (e.g. it's been damaged since), so replace it unconditionally
+            SavedFile file = replaceFile(streamRoot, parentDir);
+            recordTransfer(downloader, url, start, file.size);
+            return new Downloaded(file.sha256, file.validators, true);
+        }
+
+        if (!parentDir.toFile().exists()) {
+            Files.createDirectory(parentDir);
+        }
+        final @Nullable SavedFile file = saveFile(new NodeAndPath(root, parentDir), RemoteValidators.NONE);
+        final List<SavedFile> files = file == null ? List.of() : List.of(file);
+        recordTransfer(downloader, url, start, file == null ? 0 : file.size);
+        return new Downloaded(combinedDigest(root, parentDir, files),
+            file == null ? RemoteValidators.NONE : file.validators, true);
+    }
+
+    /**
+     * Save a file node, hashing it and deduplicating it with {@link #contentIndex}.
+     *
+     * @param previous See {@link AbstractFileNodeStreamDownloader#saveToDiskIfModified}.
+     * @return the saved file and its digest, or <code>null</code> if the node didn't save a regular file
+     * (or the file hasn't changed since <code>previous</code>).
+     */
+    private @Nullable SavedFile saveFile(@NotNull NodeAndPath file, @NotNull RemoteValidators previous)
+        throws IOException {
+        MessageDigest digest = newDigest();
+        if (file.node instanceof AbstractFileNodeStreamDownloader streamNode) {
+            AbstractFileNodeStreamDownloader.Saved result =
+                streamNode.saveToDiskIfModified(file.downloadDir, digest, previous);
+            return indexSavedFile(result.path(), result.validators(), digest);
+        }
+        return indexSavedFile(file.node.saveToDisk(file.downloadDir, digest), RemoteValidators.NONE, digest);
+    }
+
+    /**
+     * Download a link that is a single file again, replacing the earlier copy in <code>parentDir</code> and anything
+     * else there (e.g. the earlier copy under another name), hashing it and deduplicating it with
+     * {@link #contentIndex}. Partial downloads are kept, see
+     * {@link AbstractFileNodeStreamDownloader#isPartialDownload(Path)}.
+     *
+     * @return the saved file and its digest.
+     */
+    private @NotNull SavedFile replaceFile(@NotNull AbstractFileNodeStreamDownloader node, @NotNull Path parentDir)
+        throws IOException {
+        MessageDigest digest = newDigest();
+        AbstractFileNodeStreamDownloader.Saved result = node.saveToDiskReplacing(parentDir, digest);
+        final Path saved = result.path();
+        assert saved != null;
+        FileUtils.deleteExcept(parentDir,
+            path -> path.equals(saved) || AbstractFileNodeStreamDownloader.isPartialDownload(path));
+        SavedFile savedFile = indexSavedFile(saved, result.validators(), digest);
+        if (savedFile == null) {
+            throw new IOException("expected a regular file at " + saved);
         }
+        return savedFile;
+    }
+
+    /**
+     * Hash a saved file and deduplicate it with {@link #contentIndex}.
+     *
+     * @return the saved file and its digest, or <code>null</code> if <code>saved</code> isn't a regular file.
+     */
+    private @Nullable SavedFile indexSavedFile(@Nullable Path saved,
+                                               @NotNull RemoteValidators validators,
+                                               @NotNull MessageDigest digest) throws IOException {
+        if (saved == null || !Files.isRegularFile(saved)) {
+            return null;
+        }
+        byte[] sha256 = digest.digest();
+        long size = Files.size(saved);
+        if (contentIndex != null) {
+            contentIndex.deduplicate(saved, sha256);
+        }
+        return new SavedFile(saved, ContentIndex.toHex(sha256), size, validators);
     }
 
     public @NotNull JobsQueue<Void> downloadAll(int batchSize, int skip, int limit) {
@@ -189,26 +483,85 @@ public final class MusicalScoresDownloader {
     }
 
     public @NotNull JobsQueue<Void> downloadAll(int batchSize, int skip, int limit, BiPredicate<RedditPostInfo, Integer> filter) {
+        return downloadAll(batchSize, skip, limit, filter, PrefetchingSubredditStream.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Download every link in the subreddit.
+     *
+     * @param batchSize     Maximum number of links downloaded at once.
+     * @param skip          Number of (filtered) links to skip.
+     * @param limit         Maximum number of (filtered) links to download. Negative for no limit.
+     * @param filter        Which links to download, by post and link number.
+     * @param prefetchDepth Number of PushShift pages fetched ahead while the current one is processed.
+     * @return The queue of downloads, which continue in the background.
+     */
+    public @NotNull JobsQueue<Void> downloadAll(int batchSize, int skip, int limit,
+                                                BiPredicate<RedditPostInfo, Integer> filter,
+                                                int prefetchDepth) {
+        return downloadAll(new SubredditStream(subredditName), batchSize, skip, limit, filter, prefetchDepth);
+    }
+
+    /**
+     * Download every link in a stream of posts, e.g. only the posts since the last run
+     * (see {@link SubredditStream#SubredditStream(String, Long)}).
+     * <p>
+     * The stream has been read to the end (or to <code>limit</code>) when this returns, so its
+     * {@link SubredditStream#getNewestTimestamp()} can be saved once the returned queue is done.
+     *
+     * @param posts         Posts to download the links of. Must not be used by anything else.
+     * @param batchSize     Maximum number of links downloaded at once.
+     * @param skip          Number of (filtered) links to skip.
+     * @param limit         Maximum number of (filtered) links to download. Negative for no limit.
+     * @param filter        Which links to download, by post and link number.
+     * @param prefetchDepth Number of PushShift pages fetched ahead while the current one is processed.
+     * @return The queue of downloads, which continue in the background.
+     */
+    public @NotNull JobsQueue<Void> downloadAll(@NotNull SubredditStream posts,
+                                                int batchSize, int skip, int limit,
+                                                BiPredicate<RedditPostInfo, Integer> filter,
+                                                int prefetchDepth) {
+        return downloadAll(posts, new FailedLinks(), batchSize, skip, limit, filter, prefetchDepth);
+    }
+
+    /**
+     * Download the links an earlier run failed to download, then every link in a stream of posts.
+     * Links that fail are recorded in {@link #failedLinks}.
+     *
+     * @param posts         Posts to download the links of. Must not be used by anything else.
+     * @param retries       Links to retry, e.g. read with {@link FailedLinks#read(Path)}. Only these links of their
+     *                      posts are downloaded, and <code>filter</code> doesn't apply to them.
+     * @param batchSize     Maximum number of links downloaded at once.
+     * @param skip          Number of (filtered) links to skip.
+     * @param limit         Maximum number of (filtered) links to download. Negative for no limit.
+     * @param filter        Which links to download, by post and link number.
+     * @param prefetchDepth Number of PushShift pages fetched ahead while the current one is processed.
+     * @return The queue of downloads, which continue in the background.
+     * @see #downloadAll(SubredditStream, int, int, int, BiPredicate, int)
+     */
+    public @NotNull JobsQueue<Void> downloadAll(@NotNull SubredditStream posts,
+                                                @NotNull FailedLinks retries,
+                                                int batchSize, int skip, int limit,
+                                                BiPredicate<RedditPostInfo, Integer> filter,
+                                                int prefetchDepth) {
         System.out.println("called downloadAll");
-        final List<Map.Entry<CompletableFuture<Void>, String>> out = new ArrayList<>();
 
-        SubredditStream stream = new SubredditStream(subredditName);
+        final PrefetchingSubredditStream stream = new PrefetchingSubredditStream(posts, prefetchDepth);
 
         Stream<@NotNull RedditPostInfo> infoStream = Stream.generate(() -> {
                 try {
                     return stream.getNextPostData();
                 } catch (BadRequestStatusException badRequestStatusException) {
-                    if (badRequestStatusException.getResponse().statusCode() == 429) { // too many requests
-                        System.out.println("waiting on 429");
-                        sleep(60_000);
-                    }
+                    // on 429 the shared HostRateLimiter holds the retry back for as long as Pushshift asks
                     badRequestStatusException.printStackTrace(System.err);
                     return null;
                 }
             })
             .takeWhile($ -> !stream.isDone())
             .filter(Objects::nonNull)
-            .flatMap(Stream::of);
+            .flatMap(Stream::of)
+            .filter(info -> !retries.containsPost(info.id())); // already queued as a retry
+        infoStream = Stream.concat(retries.getPosts().stream(), infoStream);
 
 
         final Stream<DownloadUrlAndInfoStruct> downloadUrlStream = infoStream.flatMap(info -> {
@@ -219,73 +572,251 @@ public final class MusicalScoresDownloader {
                 }
                 return Stream.of(arr);
             })
-            .filter(struct -> filter.test(struct.info, struct.linkNumber))
+            .filter(struct -> retries.containsPost(struct.info.id())
+                                  ? retries.contains(struct.info.id(), struct.linkNumber)
+                                  : filter.test(struct.info, struct.linkNumber))
             .skip(skip)
             .limit(limit >= 0 ? limit : Long.MAX_VALUE);
 
 
         JobsQueue<Void> queue = new JobsQueue<>(batchSize);
-        downloadUrlStream.forEach(struct -> {
-            final int linkNumber = struct.linkNumber;
-            final RedditPostInfo info = struct.info;
-            final String url = struct.url;
-
-            final Path targetPath;
-            {
-                final String title = escapeTitle(info.title());
-                final int alreadyExistingFiles = this.redditIDCounter.getOrDefault(title, 0);
-                this.redditIDCounter.put(title, alreadyExistingFiles + 1);
-                final String titleSuffix = alreadyExistingFiles == 0
-                                               ? ""
-                                               : " (" + alreadyExistingFiles + ")";
-                targetPath = downloadDir.resolve(title + titleSuffix);
-            }
+        Metrics.getShared().gauge("jobs_running", "Downloads in progress", queue::getRunning);
+        Metrics.getShared().gauge("jobs_waiting", "Downloads waiting for a free slot", queue::getWaiting);
+        try (stream) {
+            downloadUrlStream.forEach(struct -> {
+                final int linkNumber = struct.linkNumber;
+                final RedditPostInfo info = struct.info;
+                final String url = struct.url;
+
+                final Path targetPath;
+                {
+                    final String title = escapeTitle(info.title());
+                    final int alreadyExistingFiles = this.redditIDCounter.getOrDefault(title, 0);
+                    this.redditIDCounter.put(title, alreadyExistingFiles + 1);
+                    final String titleSuffix = alreadyExistingFiles == 0
+                                                   ? ""
+                                                   : " (" + alreadyExistingFiles + ")";
+                    targetPath = downloadDir.resolve(title + titleSuffix);
+                }
 
-            @Nullable PersistentDownloadData persistentDownloadData =
-                persistentDownloadDataMap.get(Map.entry(info.id(), linkNumber));
+                @Nullable PersistentDownloadData persistentDownloadData =
+                    persistentDownloadDataIndex.get(info.id(), linkNumber);
 
-            final boolean overwrite = overwritePredicate.test(persistentDownloadData);
-            final boolean zip = zipPredicate.test(info, linkNumber);
+                final boolean overwrite = overwritePredicate.test(persistentDownloadData);
+                final boolean zip = zipPredicate.test(info, linkNumber);
 
 
-            System.out.println("downloading " + info.title() + " at " + url);
+                System.out.println("downloading " + info.title() + " at " + url);
+
+                Supplier<CompletableFuture<Void>> futureSupplier = () -> {
+                    if (overwrite && Files.exists(targetPath)) {
+                        if (zip || persistentDownloadData == null
+                                || !persistentDownloadData.validators().canRevalidate()) {
+                            return CompletableFuture.runAsync(() -> {
+                            }, executor);
+                        }
+                        // re-download only if it has changed since
+                        return CompletableFuture.supplyAsync(
+                            () -> this.downloadAndDeleteOnExceptions(url, targetPath, persistentDownloadData), executor
+                        ).whenCompleteAsync((downloaded, ex) -> {
+                                if (ex == null && downloaded.modified()) {
+                                    outData.add(createPersistentDataToBeSaved(
+                                        info.id(), false, targetPath, linkNumber, url, downloaded.sha256(),
+                                        persistentDownloadData.overwrite(), downloaded.validators())
+                                    );
+                                }
+                            }, executor
+                        ).thenApply($ -> null);
+                    }
+
+                    // can't or won't zip
+                    if (!zip || (overwrite && Files.exists(Path.of(targetPath + ".zip")))) {
+                        return CompletableFuture.supplyAsync(
+                            () -> this.downloadAndDeleteOnExceptions(url, targetPath, null), executor
+                        ).whenCompleteAsync((downloaded, ex) -> {
+                                if (ex == null) {
+                                    outData.add(createPersistentDataToBeSaved(
+                                        info.id(), false, targetPath, linkNumber, url, downloaded.sha256(),
+                                        false, downloaded.validators())
+                                    );
+                                }
+                            }, executor
+                        ).thenApply($ -> null);
+                    }
 
-            Supplier<CompletableFuture<Void>> futureSupplier = () -> {
-                final CompletableFuture<Void> future;
-                if (overwrite && Files.exists(targetPath)) {
+                    // zip
                     return CompletableFuture.runAsync(() -> {
-                    });
-                } else {
-                    future = CompletableFuture.runAsync(() -> this.downloadAndDeleteOnExceptions(url, targetPath));
-                }
+                        try {
+                            this.downloadZipped(url, targetPath);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, executor).whenCompleteAsync((res, ex) -> {
+                        if (ex == null) {
+                            outData.add(createPersistentDataToBeSaved(
+                                info.id(), true, targetPath, linkNumber, url, null, false, RemoteValidators.NONE));
+                        }
+                    }, executor);
+                };
 
 
-                // can't or won't zip
-                if (!zip || (overwrite && Files.exists(Path.of(targetPath + ".zip")))) {
-                    return future.whenCompleteAsync((res, ex) -> {
-                            if (ex == null) {
-                                outData.add(createPersistentDataToBeSaved(
-                                    info.id(), false, targetPath, linkNumber, url)
-                                );
-                            }
+                queue.add(() -> {
+                    CompletableFuture<Void> future;
+                    try {
+                        future = futureSupplier.get();
+                    } catch (RuntimeException e) {
+                        future = CompletableFuture.failedFuture(e);
+                    }
+                    return future.whenComplete((res, ex) -> {
+                        if (ex != null) {
+                            failedLinks.add(info, linkNumber);
                         }
-                    );
-                }
+                    });
+                }, url);
+            });
+        }
+        return queue;
+    }
+
+    /**
+     * Downloads the files of a tree as its lookup hands them over (see
+     * {@link AbstractFileDownloader#resolve(String, AbstractFileDownloader.FileSink)}), at most
+     * {@link #treeParallelism} at a time, so the first files start while folders are still being listed. Each folder
+     * is created the first time one of its files is saved.
+     * <p>
+     * If the link turns out to be a single file, it is left to {@link #download(String, Path, PersistentDownloadData)},
+     * which may only have to revalidate it.
+     */
+    @ThreadSafe
+    private final class TreeDownload implements AbstractFileDownloader.FileSink {
+        private final @NotNull Path parentDir;
+        private final @NotNull Queue<@NotNull AbstractFileNode> waiting = new ConcurrentLinkedQueue<>();
+        private final @NotNull Semaphore permits = new Semaphore(treeParallelism);
+        /**
+         * Number of files handed over and not done yet, plus one until the lookup has returned.
+         */
+        private final @NotNull AtomicInteger pending = new AtomicInteger(1);
+        private final @NotNull CompletableFuture<Void> done = new CompletableFuture<>();
+        /**
+         * The first failure of the lookup or of a download. Files that haven't started yet are skipped once set.
+         */
+        private final @NotNull AtomicReference<@Nullable Throwable> failure = new AtomicReference<>();
+        private final @NotNull Queue<@NotNull SavedFile> saved = new ConcurrentLinkedQueue<>();
+        /**
+         * Directory each folder node has been created as. Guarded by <code>this</code>.
+         */
+        private final @NotNull Map<@NotNull AbstractFileNode, @NotNull Path> folders = new IdentityHashMap<>();
+
+        TreeDownload(@NotNull Path parentDir) {
+            this.parentDir = parentDir;
+        }
+
+        @Override
+        public void accept(@NotNull AbstractFileNode file) {
+            if (file.isRoot() || failure.get() != null) {
+                return;
+            }
+            pending.incrementAndGet();
+            waiting.add(file);
+            startWaiting();
+        }
 
-                // zip
-                return future.whenCompleteAsync((res, ex) -> {
-                    if (ex == null) {
-                        zipAndDeleteOnExceptions(targetPath);
-                        outData.add(createPersistentDataToBeSaved(
-                            info.id(), true, targetPath, linkNumber, url));
+        /**
+         * Start waiting files while there are permits left. Called whenever a file is added or a permit is released,
+         * so no file waits while a permit is free.
+         */
+        private void startWaiting() {
+            while (!waiting.isEmpty() && permits.tryAcquire()) {
+                final @Nullable AbstractFileNode file = waiting.poll();
+                if (file == null) { // taken by another thread
+                    permits.release();
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            save(file);
+                        }
+                    } catch (IOException | RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                        finishOne();
+                        startWaiting();
                     }
                 });
-            };
+            }
+        }
 
+        private void save(@NotNull AbstractFileNode file) throws IOException {
+            @Nullable SavedFile savedFile =
+                saveFile(new NodeAndPath(file, getDirectory(file.getParent())), RemoteValidators.NONE);
+            if (savedFile != null) {
+                saved.add(savedFile);
+            }
+        }
 
-            queue.add(futureSupplier, url);
-        });
-        return queue;
+        /**
+         * Get the directory a folder node is saved as, creating it and the directories above it if needed.
+         *
+         * @param folder A folder of the tree, <code>null</code> for {@link #parentDir}.
+         */
+        private synchronized @NotNull Path getDirectory(@Nullable AbstractFileNode folder) throws IOException {
+            if (folder == null) {
+                if (!parentDir.toFile().exists()) {
+                    Files.createDirectory(parentDir);
+                }
+                return parentDir;
+            }
+            @Nullable Path directory = folders.get(folder);
+            if (directory == null) {
+                final Path parent = getDirectory(folder.getParent());
+                synchronized (folder) { // the lookup may still be attaching children
+                    directory = folder.saveToDisk(parent);
+                }
+                folders.put(folder, directory);
+            }
+            return directory;
+        }
+
+        private void finishOne() {
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        /**
+         * Wait for the files handed over to be saved, once the lookup has returned.
+         *
+         * @return The files saved, in no particular order.
+         * @throws IOException if any download fails.
+         */
+        @NotNull Collection<@NotNull SavedFile> finish() throws IOException {
+            finishOne();
+            done.join();
+            final @Nullable Throwable e = failure.get();
+            if (e == null) {
+                return saved;
+            }
+            if (e instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw (Error) e;
+        }
+
+        /**
+         * Skip the files that haven't started yet and wait for the others, once the lookup has failed.
+         *
+         * @param lookupFailure What the lookup threw.
+         */
+        void cancel(@NotNull Throwable lookupFailure) {
+            failure.compareAndSet(null, lookupFailure);
+            finishOne();
+            done.join();
+        }
     }
 
     private record DownloadUrlAndInfoStruct(RedditPostInfo info, int linkNumber, String url) {
@@ -294,6 +825,28 @@ public final class MusicalScoresDownloader {
         }
     }
 
+    // parentEntry is the entry name of the parent directory inside the archive
+    private record NodeAndEntry(@NotNull AbstractFileNode node,
+                                @NotNull String parentEntry) {
+    }
+
+    private record SavedFile(@NotNull Path path,
+                             @NotNull String sha256,
+                             long size,
+                             @NotNull RemoteValidators validators) {
+    }
+
+    /**
+     * Result of {@link #download(String, Path, PersistentDownloadData)}.
+     *
+     * @param sha256     See {@link PersistentDownloadData#sha256()}. The earlier digest if nothing changed.
+     * @param validators See {@link PersistentDownloadData#validators()}.
+     * @param modified   Whether anything was downloaded. <code>false</code> if the server said the file hasn't
+     *                   changed since the earlier download.
+     */
+    public record Downloaded(@NotNull String sha256, @NotNull RemoteValidators validators, boolean modified) {
+    }
+
     // downloadDir is parent dir for download into
     private record NodeAndPath(@NotNull AbstractFileNode node,
                                @NotNull Path downloadDir) {
@@ -1,14 +1,17 @@
 package com.github.a2435191.download_musical_scores;
 
+import com.github.a2435191.download_musical_scores.filetree.RemoteValidators;
 import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvValidationException;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -26,6 +29,13 @@ import java.util.Map;
  *                          Format: <a href="https://docs.oracle.com/javase/8/docs/api/java/time/format/DateTimeFormatter.html#ISO_LOCAL_DATE_TIME">ISO-8601</a>.
  * @param overwrite         Whether subsequent downloads should overwrite this file.
  *                          <code>true</code> or <code>false</code>.
+ * @param sha256            Lowercase hex SHA-256 digest of the downloaded contents, or <code>null</code> if unknown
+ *                          (e.g. rows written before digests were recorded, or zipped downloads).
+ *                          For a link that downloaded more than one file, the digest of a manifest listing each file's
+ *                          digest and relative path, see {@link MusicalScoresDownloader#download(String, Path)}.
+ * @param validators        Validators the server sent with the file, so that it can be re-downloaded only if it changed,
+ *                          see {@link MusicalScoresDownloader#download(String, Path, PersistentDownloadData)}.
+ *                          {@link RemoteValidators#NONE} if unknown (e.g. links to more than one file, or older rows).
  */
 public record PersistentDownloadData(
     @NotNull String redditID,
@@ -33,23 +43,46 @@ public record PersistentDownloadData(
     int linkNumber,
     @NotNull URI url,
     @NotNull LocalDateTime downloadTimestamp,
-    boolean overwrite) {
+    boolean overwrite,
+    @Nullable String sha256,
+    @NotNull RemoteValidators validators) {
 
     public static final String[] FIELDS = new String[]{
-        "redditID", "saveLocation", "linkNumber", "url", "downloadTimestamp", "overwrite"
+        "redditID", "saveLocation", "linkNumber", "url", "downloadTimestamp", "overwrite", "sha256",
+        "eTag", "lastModified", "contentLength"
     };
+
+    public PersistentDownloadData(@NotNull String redditID,
+                                  @NotNull Path saveLocation,
+                                  int linkNumber,
+                                  @NotNull URI url,
+                                  @NotNull LocalDateTime downloadTimestamp,
+                                  boolean overwrite,
+                                  @Nullable String sha256) {
+        this(redditID, saveLocation, linkNumber, url, downloadTimestamp, overwrite, sha256, RemoteValidators.NONE);
+    }
+
+    public PersistentDownloadData(@NotNull String redditID,
+                                  @NotNull Path saveLocation,
+                                  int linkNumber,
+                                  @NotNull URI url,
+                                  @NotNull LocalDateTime downloadTimestamp,
+                                  boolean overwrite) {
+        this(redditID, saveLocation, linkNumber, url, downloadTimestamp, overwrite, null);
+    }
     private static final @NotNull DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
 
     /**
      * Create a new instance from String args.
      *
-     * @param args String arguments to be converted. Must have length 6.
+     * @param args String arguments to be converted. Must have length 10, or 7 for rows without validators,
+     *             or 6 for rows without a digest either.
      * @return A new instance.
      */
     @Contract("_ -> new")
     public static @NotNull PersistentDownloadData create(@NotNull String @NotNull ... args) {
-        if (args.length != 6) {
-            throw new IllegalArgumentException("args must have length 6");
+        if (args.length != 6 && args.length != 7 && args.length != 10) {
+            throw new IllegalArgumentException("args must have length 6, 7 or 10");
         }
 
 
@@ -59,7 +92,14 @@ public record PersistentDownloadData(
             Integer.parseInt(args[2]),
             URI.create(args[3]),
             LocalDateTime.from(FORMATTER.parse(args[4])),
-            Boolean.parseBoolean(args[5])
+            Boolean.parseBoolean(args[5]),
+            args.length >= 7 && !args[6].isEmpty() ? args[6] : null,
+            args.length == 10
+                ? new RemoteValidators(
+                    args[7].isEmpty() ? null : args[7],
+                    args[8].isEmpty() ? null : args[8],
+                    args[9].isEmpty() ? -1 : Long.parseLong(args[9]))
+                : RemoteValidators.NONE
         );
     }
 
@@ -68,13 +108,15 @@ public record PersistentDownloadData(
      * Create a new instance from a CSV file
      *
      * @param csvFile File to be read. The header row is ignored.
+     *                If a (<code>redditID</code>, <code>linkNumber</code>) pair appears more than once, the last row wins,
+     *                since {@link DownloadLedgerWriter} only ever appends.
      * @return A new instance.
      * @throws IOException if the file can't be opened, read, etc.
      *                     See {@link FileReader#FileReader(File)}, {@link CSVReader#readNext()} for details.
      */
     public static @NotNull Map<Map.Entry<@NotNull String, @NotNull Integer>, @NotNull PersistentDownloadData> fromCSV(
         @NotNull File csvFile) throws IOException {
-        try (CSVReader reader = new CSVReader(new FileReader(csvFile))) {
+        try (CSVReader reader = new CSVReader(new FileReader(csvFile, StandardCharsets.UTF_8))) {
             try {
                 reader.readNext(); // discard header
             } catch (CsvValidationException ex) {
@@ -83,12 +125,7 @@ public record PersistentDownloadData(
             final HashMap<Map.Entry<String, Integer>, PersistentDownloadData> out = new HashMap<>();
             reader.forEach(args -> {
                 PersistentDownloadData data = PersistentDownloadData.create(args);
-                Map.Entry<String, Integer> key = Map.entry(data.redditID, data.linkNumber);
-                if (out.containsKey(key)) {
-                    throw new RuntimeException(key + " has a duplicate");
-                } else {
-                    out.put(key, data);
-                }
+                out.put(Map.entry(data.redditID, data.linkNumber), data); // later rows supersede earlier ones
             });
             return out;
         }
@@ -97,11 +134,12 @@ public record PersistentDownloadData(
     /**
      * Convert this into a row suitable for a CSV.
      *
-     * @return An array of 6 strings. See
-     * {@link PersistentDownloadData#PersistentDownloadData(String, Path, int, URI, LocalDateTime, boolean)}}
-     * for what each element means.
+     * @return An array of 10 strings. See
+     * {@link PersistentDownloadData#PersistentDownloadData(String, Path, int, URI, LocalDateTime, boolean, String, RemoteValidators)}
+     * for what each element means. A <code>null</code> digest or validator, or an unknown length, is written as an
+     * empty string.
      * <p>
-     * It is guaranteed that <code>create(args).toCsvRow().equals(args)</code>.
+     * It is guaranteed that <code>create(args).toCsvRow().equals(args)</code> for 10-element <code>args</code>.
      */
     @Contract(pure = true)
     public @NotNull String @NotNull [] toCsvRow() {
@@ -111,7 +149,11 @@ public record PersistentDownloadData(
             "" + linkNumber,
             url.toString(),
             FORMATTER.format(downloadTimestamp),
-            "" + overwrite
+            "" + overwrite,
+            sha256 == null ? "" : sha256,
+            validators.eTag() == null ? "" : validators.eTag(),
+            validators.lastModified() == null ? "" : validators.lastModified(),
+            validators.contentLength() < 0 ? "" : "" + validators.contentLength()
         };
     }
 
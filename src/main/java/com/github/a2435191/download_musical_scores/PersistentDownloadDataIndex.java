@@ -0,0 +1,359 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.opencsv.CSVParser;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only index of a download information CSV, mapping (<code>redditID</code>, <code>linkNumber</code>) to the
+ * row's location in the file. Rows are only parsed into {@link PersistentDownloadData} when looked up.
+ * <p>
+ * Unlike {@link PersistentDownloadData#fromCSV(java.io.File)}, which keeps every row as a record behind a boxed key,
+ * each row here costs two <code>long</code>s in an open-addressing table: the key, with the base-36
+ * <code>redditID</code> packed next to <code>linkNumber</code>, and the row's byte offset packed next to its length.
+ * The rare keys that don't pack (e.g. ids that aren't lowercase base-36) go in an ordinary map.
+ * <p>
+ * As with {@link PersistentDownloadData#fromCSV(java.io.File)}, the header row is skipped and the last row of a
+ * repeated key wins. A last row without a line terminator is ignored, see {@link DownloadLedgerWriter#repair(Path)}.
+ */
+@ThreadSafe
+public final class PersistentDownloadDataIndex {
+    private static final int LINK_NUMBER_BITS = 11;
+    private static final int MAX_PACKED_ID_LENGTH = 10; // 36^10 < 2^52, leaving room for LINK_NUMBER_BITS
+    private static final int LENGTH_BITS = 24;
+    private static final long MAX_OFFSET = (1L << (Long.SIZE - LENGTH_BITS)) - 1;
+    private static final long EMPTY = 0; // a packed key is never 0, since packed ids never start with '0'
+    private static final double MAX_LOAD = 0.7;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final @Nullable Path csvPath;
+    private final @NotNull Map<Map.@NotNull Entry<@NotNull String, @NotNull Integer>, @NotNull Long> unpackedKeys;
+    private long[] keys;
+    private long[] locations;
+    private int packedSize = 0;
+
+    private PersistentDownloadDataIndex(@Nullable Path csvPath, int expectedSize) {
+        this.csvPath = csvPath;
+        this.unpackedKeys = new HashMap<>();
+        int capacity = Integer.highestOneBit((int) Math.max(16, expectedSize / MAX_LOAD)) << 1;
+        this.keys = new long[capacity];
+        this.locations = new long[capacity];
+    }
+
+    /**
+     * Create an index with no rows.
+     *
+     * @return A new instance.
+     */
+    @Contract(" -> new")
+    public static @NotNull PersistentDownloadDataIndex empty() {
+        return new PersistentDownloadDataIndex(null, 0);
+    }
+
+    /**
+     * Index a CSV file written by {@link DownloadLedgerWriter} (or any file readable by
+     * {@link PersistentDownloadData#fromCSV(java.io.File)}).
+     * The file is kept (not opened) for {@link #get(String, int)}, so it should only be appended to afterwards.
+     *
+     * @param csvPath File to be indexed.
+     * @return A new instance.
+     * @throws IOException if the file can't be read, or a row has no valid <code>redditID</code> and
+     *                     <code>linkNumber</code>.
+     */
+    public static @NotNull PersistentDownloadDataIndex load(@NotNull Path csvPath) throws IOException {
+        // ~100 bytes per row is a low guess, so the table rarely needs to grow
+        long expectedRows = Math.min(Files.size(csvPath) / 100, 1 << 28);
+        PersistentDownloadDataIndex index = new PersistentDownloadDataIndex(csvPath, (int) expectedRows);
+        try (InputStream in = Files.newInputStream(csvPath)) {
+            new Scanner(index).scan(in);
+        }
+        return index;
+    }
+
+    /**
+     * Pack a Reddit id and link number into a single non-zero <code>long</code>.
+     *
+     * @return The packed key, or <code>-1</code> if they can't be packed.
+     */
+    private static long packKey(@NotNull CharSequence redditID, int linkNumber) {
+        int length = redditID.length();
+        if (length == 0 || length > MAX_PACKED_ID_LENGTH || redditID.charAt(0) == '0'
+            || linkNumber < 0 || linkNumber >= 1 << LINK_NUMBER_BITS) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = 0; i < length; i++) {
+            char c = redditID.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+            id = id * 36 + digit;
+        }
+        return id << LINK_NUMBER_BITS | linkNumber;
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private void put(@NotNull String redditID, int linkNumber, long offset, int length) throws IOException {
+        if (offset > MAX_OFFSET || length >= 1 << LENGTH_BITS) {
+            throw new IOException("Row at byte " + offset + " is out of the supported range");
+        }
+        long location = offset << LENGTH_BITS | length;
+
+        long key = packKey(redditID, linkNumber);
+        if (key == -1) {
+            unpackedKeys.put(Map.entry(redditID, linkNumber), location);
+            return;
+        }
+        if (packedSize + 1 > keys.length * MAX_LOAD) {
+            grow();
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            keys[i] = key;
+            packedSize++;
+        }
+        locations[i] = location;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldLocations = locations;
+        keys = new long[oldKeys.length * 2];
+        locations = new long[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != EMPTY) {
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                locations[i] = oldLocations[j];
+            }
+        }
+    }
+
+    private long locate(@NotNull String redditID, int linkNumber) {
+        long key = packKey(redditID, linkNumber);
+        if (key == -1) {
+            return unpackedKeys.getOrDefault(Map.entry(redditID, linkNumber), -1L);
+        }
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return locations[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of distinct keys.
+     *
+     * @return the number of rows {@link #get(String, int)} can return.
+     */
+    public int size() {
+        return packedSize + unpackedKeys.size();
+    }
+
+    /**
+     * Check for a key without reading its row.
+     *
+     * @param redditID   Reddit post id.
+     * @param linkNumber Index of the link in the post.
+     * @return if there is a row for this key.
+     */
+    public boolean contains(@NotNull String redditID, int linkNumber) {
+        return locate(redditID, linkNumber) != -1;
+    }
+
+    /**
+     * Read and parse the row of a key.
+     *
+     * @param redditID   Reddit post id.
+     * @param linkNumber Index of the link in the post.
+     * @return The row, or <code>null</code> if there is none.
+     * @throws UncheckedIOException if the file can't be read.
+     */
+    public @Nullable PersistentDownloadData get(@NotNull String redditID, int linkNumber) {
+        long location = locate(redditID, linkNumber);
+        if (location == -1) {
+            return null;
+        }
+        assert csvPath != null;
+        long offset = location >>> LENGTH_BITS;
+        ByteBuffer row = ByteBuffer.allocate((int) (location & ((1 << LENGTH_BITS) - 1)));
+
+        try (FileChannel channel = FileChannel.open(csvPath, StandardOpenOption.READ)) {
+            while (row.hasRemaining()) {
+                if (channel.read(row, offset + row.position()) < 0) {
+                    throw new IOException(csvPath + " was truncated after being indexed");
+                }
+            }
+            String line = StandardCharsets.UTF_8.decode(row.flip()).toString().stripTrailing();
+            return PersistentDownloadData.create(new CSVParser().parseLine(line));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Single pass over the raw bytes of a CSV file, keeping only the first and third field of each row and the row's
+     * byte range. Follows the quoting of {@link com.opencsv.CSVWriter}: fields may be quoted, quotes inside them are
+     * doubled, and quoted fields may span lines.
+     */
+    private static final class Scanner {
+        private static final int ID_FIELD = 0;
+        private static final int LINK_NUMBER_FIELD = 2;
+
+        private final @NotNull PersistentDownloadDataIndex index;
+        private byte[] field = new byte[64];
+        private int fieldLength = 0;
+        private int fieldIndex = 0;
+        private @Nullable String redditID = null;
+        private int linkNumber = -1;
+        private boolean inQuotes = false;
+        private boolean justClosedQuotes = false;
+        private boolean atFieldStart = true;
+        private long rowStart = 0;
+        private boolean isHeader = true;
+
+        Scanner(@NotNull PersistentDownloadDataIndex index) {
+            this.index = index;
+        }
+
+        void scan(@NotNull InputStream in) throws IOException {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            long position = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    accept(buffer[i], position + i);
+                }
+                position += read;
+            }
+            // anything after the last line terminator is an unfinished row
+        }
+
+        private void accept(byte b, long position) throws IOException {
+            if (inQuotes) {
+                if (b == '"') {
+                    inQuotes = false;
+                    justClosedQuotes = true;
+                } else {
+                    append(b);
+                }
+                return;
+            }
+            if (b == '"') {
+                if (justClosedQuotes) { // doubled quote
+                    append(b);
+                    inQuotes = true;
+                } else if (atFieldStart) {
+                    inQuotes = true;
+                } else {
+                    append(b);
+                }
+                justClosedQuotes = false;
+                atFieldStart = false;
+                return;
+            }
+            justClosedQuotes = false;
+
+            switch (b) {
+                case ',' -> {
+                    endField();
+                    fieldIndex++;
+                    atFieldStart = true;
+                }
+                case '\n' -> {
+                    endField();
+                    endRow(position + 1);
+                }
+                case '\r' -> {
+                }
+                default -> {
+                    append(b);
+                    atFieldStart = false;
+                }
+            }
+        }
+
+        private void append(byte b) {
+            if (fieldIndex != ID_FIELD && fieldIndex != LINK_NUMBER_FIELD) {
+                return;
+            }
+            if (fieldLength == field.length) {
+                field = Arrays.copyOf(field, field.length * 2);
+            }
+            field[fieldLength++] = b;
+        }
+
+        private void endField() {
+            if (fieldIndex == ID_FIELD) {
+                redditID = new String(field, 0, fieldLength, StandardCharsets.UTF_8);
+            } else if (fieldIndex == LINK_NUMBER_FIELD) {
+                linkNumber = parseLinkNumber();
+            }
+            fieldLength = 0;
+        }
+
+        private int parseLinkNumber() {
+            if (fieldLength == 0 || fieldLength > 9) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = 0; i < fieldLength; i++) {
+                int digit = field[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        private void endRow(long rowEnd) throws IOException {
+            if (isHeader) {
+                isHeader = false;
+            } else if (rowEnd - rowStart > 1) { // skip blank lines
+                if (redditID == null || linkNumber < 0) {
+                    throw new IOException("Malformed row at byte " + rowStart);
+                }
+                index.put(redditID, linkNumber, rowStart, (int) Math.min(rowEnd - rowStart, Integer.MAX_VALUE));
+            }
+            rowStart = rowEnd;
+            fieldIndex = 0;
+            redditID = null;
+            linkNumber = -1;
+            atFieldStart = true;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.a2435191.download_musical_scores.downloaders;
 
+import com.github.a2435191.download_musical_scores.util.HttpClients;
+
 import java.net.http.HttpClient;
 import java.time.Duration;
 
@@ -9,9 +11,6 @@ public abstract class AbstractDirectLinkFileDownloader extends AbstractFileDownl
 
     protected AbstractDirectLinkFileDownloader(int timeoutSeconds) {
         this.timeoutSeconds = timeoutSeconds;
-        this.client = HttpClient.newBuilder()
-            .followRedirects(HttpClient.Redirect.NORMAL)
-            .connectTimeout(Duration.ofSeconds(timeoutSeconds))
-            .build();
+        this.client = HttpClients.get(HttpClient.Redirect.NORMAL, Duration.ofSeconds(timeoutSeconds));
     }
 }
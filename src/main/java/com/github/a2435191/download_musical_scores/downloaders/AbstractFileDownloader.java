@@ -2,6 +2,9 @@ package com.github.a2435191.download_musical_scores.downloaders;
 
 import com.github.a2435191.download_musical_scores.downloaders.implementations.*;
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.util.CoalescingCache;
+import com.github.a2435191.download_musical_scores.util.DomainSuffixTrie;
+import com.github.a2435191.download_musical_scores.util.Metrics;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -9,33 +12,236 @@ import org.jetbrains.annotations.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
-import java.util.HashSet;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiPredicate;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 public abstract class AbstractFileDownloader {
+    /**
+     * Default time a resolved file tree is reused for.
+     */
+    protected static final Duration DEFAULT_RESOLUTION_TTL = Duration.ofMinutes(30);
+    /**
+     * Default maximum number of resolved file trees kept per downloader.
+     */
+    protected static final int DEFAULT_RESOLUTION_CACHE_SIZE = 256;
 
+    private final @NotNull CoalescingCache<@NotNull String, @NotNull AbstractFileNode> resolutions
+        = new CoalescingCache<>(getResolutionTtl(), getResolutionCacheSize());
 
+
+    /**
+     * Look up the files behind a URL. Every call does the lookup again; see {@link #resolve(String)}.
+     *
+     * @param url URL to look up.
+     * @return The root of the file tree.
+     * @throws IOException if the lookup fails.
+     */
     public abstract @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) throws IOException;
 
+    /**
+     * Like {@link #getFileTreeRoot(String)}, handing each file of the tree to <code>sink</code> as soon as it has
+     * been found, so that it can be downloaded while the rest of the tree is still being looked up.
+     *
+     * @param url  URL to look up.
+     * @param sink Receives every file of the tree once, see {@link FileSink}.
+     * @return The root of the file tree, once it is complete.
+     * @throws IOException if the lookup fails. Some files may have been handed to <code>sink</code> already.
+     * @implNote The default implementation looks up the whole tree, then hands over its files. Downloaders that find
+     * files gradually (e.g. by listing folders one by one) should override it.
+     */
+    public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url, @NotNull FileSink sink) throws IOException {
+        final AbstractFileNode root = getFileTreeRoot(url);
+        forEachFile(root, sink);
+        return root;
+    }
+
+    private static void forEachFile(@NotNull AbstractFileNode root, @NotNull FileSink sink) {
+        Deque<AbstractFileNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            AbstractFileNode node = stack.pop();
+            if (!node.isDirectory()) {
+                sink.accept(node);
+            }
+            for (AbstractFileNode child : node.getChildren()) {
+                stack.push(child);
+            }
+        }
+    }
+
+    /**
+     * {@link #getFileTreeRoot(String)}, reusing the tree of an earlier lookup of the same URL
+     * (by {@link #canonicalize(String)}) for up to {@link #getResolutionTtl()}.
+     * Concurrent lookups of the same URL share a single call to {@link #getFileTreeRoot(String, FileSink)}.
+     * <p>
+     * The returned tree may be shared by several downloads at once, so it must not be modified.
+     * Successful lookups are timed in the <code>downloader_resolve_seconds</code> {@link Metrics} histogram.
+     *
+     * @param url URL to look up.
+     * @return The root of the file tree.
+     * @throws IOException if the lookup fails. Failures are not cached.
+     */
+    public final @NotNull AbstractFileNode resolve(@NotNull String url) throws IOException {
+        return resolve(url, file -> {
+        });
+    }
+
+    /**
+     * {@link #resolve(String)}, handing each file of the tree to <code>sink</code>: as it is found if this call does
+     * the lookup (see {@link #getFileTreeRoot(String, FileSink)}), otherwise once the tree it reuses is complete.
+     * A tree is only cached, and shared with other lookups, once its lookup has finished.
+     *
+     * @param url  URL to look up.
+     * @param sink Receives every file of the tree once, see {@link FileSink}.
+     * @return The root of the file tree, once it is complete.
+     * @throws IOException if the lookup fails. Some files may have been handed to <code>sink</code> already.
+     */
+    public final @NotNull AbstractFileNode resolve(@NotNull String url, @NotNull FileSink sink) throws IOException {
+        final AtomicBoolean lookedUp = new AtomicBoolean(false);
+        final AbstractFileNode root = resolutions.get(canonicalize(url), () -> {
+            lookedUp.set(true);
+            final long start = System.nanoTime();
+            final AbstractFileNode tree = getFileTreeRoot(url, sink);
+            Metrics.getShared().histogram(
+                "downloader_resolve_seconds",
+                "Time taken to look up the files behind a URL (not counting cached lookups), by downloader",
+                Metrics.DEFAULT_SECONDS_BUCKETS,
+                "downloader", getClass().getSimpleName()
+            ).observeSince(start);
+            return tree;
+        });
+        if (!lookedUp.get()) {
+            forEachFile(root, sink);
+        }
+        return root;
+    }
+
+    /**
+     * Key under which the tree of <code>url</code> is cached by {@link #resolve(String)}.
+     * URLs with the same key must resolve to the same files.
+     *
+     * @param url URL to look up.
+     * @return By default, <code>url</code> with a lowercase scheme and host, without <code>www.</code>,
+     * a default port or a trailing slash. Unparseable URLs are returned unchanged.
+     */
+    protected @NotNull String canonicalize(@NotNull String url) {
+        final URI uri;
+        try {
+            uri = new URI(url).normalize();
+        } catch (URISyntaxException e) {
+            return url;
+        }
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return url;
+        }
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        String host = uri.getHost().toLowerCase(Locale.ROOT);
+        if (host.startsWith("www.")) {
+            host = host.substring("www.".length());
+        }
+        int port = uri.getPort();
+        if ((port == 80 && scheme.equals("http")) || (port == 443 && scheme.equals("https"))) {
+            port = -1;
+        }
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+
+        return scheme + "://" + host + (port == -1 ? "" : ":" + port) + path
+                   + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery())
+                   + (uri.getRawFragment() == null ? "" : "#" + uri.getRawFragment());
+    }
+
+    /**
+     * How long {@link #resolve(String)} reuses a tree.
+     * Called once, from this class's constructor, so it must not depend on fields of the subclass.
+     *
+     * @return {@link #DEFAULT_RESOLUTION_TTL} by default. Hosts whose trees hold short-lived links should shorten it.
+     */
+    protected @NotNull Duration getResolutionTtl() {
+        return DEFAULT_RESOLUTION_TTL;
+    }
+
+    /**
+     * How many trees {@link #resolve(String)} keeps.
+     * Called once, from this class's constructor, so it must not depend on fields of the subclass.
+     *
+     * @return {@link #DEFAULT_RESOLUTION_CACHE_SIZE} by default.
+     */
+    protected int getResolutionCacheSize() {
+        return DEFAULT_RESOLUTION_CACHE_SIZE;
+    }
+
+    /**
+     * Receives the files of a tree while it is looked up, see {@link #resolve(String, FileSink)}.
+     */
+    @FunctionalInterface
+    public interface FileSink {
+        /**
+         * Take a file of the tree. Called once per file (a node without children), possibly from several threads at
+         * once, so it must be thread-safe and return quickly: other lookups may be waiting for the thread.
+         *
+         * @param file A file node, already attached to its folder: {@link AbstractFileNode#getParent()} leads to the
+         *             root, and is <code>null</code> if the file is the root. Folders may still be getting children.
+         */
+        void accept(@NotNull AbstractFileNode file);
+    }
+
+    /**
+     * Picks the downloader for a URL by its host.
+     * <p>
+     * Downloaders are created lazily, the first time a URL needs them, and then reused for every later URL:
+     * they must be thread-safe. Hosts are looked up in a hash map first, then in a {@link DomainSuffixTrie}
+     * for downloaders registered for whole domains (see {@link #putDomain(Supplier, String)}).
+     * <p>
+     * Closing the manager closes every downloader it has created that holds resources (i.e. is
+     * {@link AutoCloseable}).
+     */
     @ThreadSafe
-    public static class DownloaderManager {
-        public final Map<BiPredicate<@NotNull URI, @NotNull String>, @NotNull Supplier<@NotNull AbstractFileDownloader>> downloaders
+    public static class DownloaderManager implements AutoCloseable {
+        private final Map<@NotNull String, @NotNull Supplier<@NotNull AbstractFileDownloader>> hosts
             = new ConcurrentHashMap<>();
+        private final DomainSuffixTrie<@NotNull Supplier<@NotNull AbstractFileDownloader>> domains
+            = new DomainSuffixTrie<>();
+        private final List<@NotNull LazyDownloader> registered = new CopyOnWriteArrayList<>();
 
 
-        public void put(@NotNull Supplier<@NotNull AbstractFileDownloader> downloader, @NotNull String domainName) {
-            downloaders.put((uri, host) -> host.equals(domainName), downloader);
+        /**
+         * Register a downloader for exact host names.
+         *
+         * @param downloader  Creates the downloader. Called at most once (unless it throws).
+         * @param domainNames Lowercase host names, without <code>www.</code>.
+         */
+        public void put(@NotNull Supplier<@NotNull AbstractFileDownloader> downloader, @NotNull String... domainNames) {
+            LazyDownloader instance = new LazyDownloader(downloader);
+            registered.add(instance);
+            for (String domainName : domainNames) {
+                hosts.put(domainName, instance);
+            }
         }
 
-        public void put(@NotNull Supplier<@NotNull AbstractFileDownloader> downloader, @NotNull String... domainNames) {
-            HashSet<String> domainNamesSet = new HashSet<>(List.of(domainNames));
-            downloaders.put((uri, host) -> domainNamesSet.contains(host), downloader);
+        /**
+         * Register a downloader for a domain and all of its subdomains.
+         *
+         * @param downloader Creates the downloader. Called at most once (unless it throws).
+         * @param domainName Lowercase domain name, e.g. <code>stackstorage.com</code>.
+         */
+        public void putDomain(@NotNull Supplier<@NotNull AbstractFileDownloader> downloader, @NotNull String domainName) {
+            LazyDownloader instance = new LazyDownloader(downloader);
+            registered.add(instance);
+            domains.put(domainName, instance);
         }
 
 
@@ -57,9 +263,9 @@ public abstract class AbstractFileDownloader {
             return this;
         }
 
-        @Contract(value = "-> this", mutates = "this")
-        public @NotNull DownloaderManager addMegaDownloader() {
-            this.put(MegaDownloader::new, "mega.nz", "mega.co.nz");
+        @Contract(value = "_ -> this", mutates = "this")
+        public @NotNull DownloaderManager addMegaDownloader(int timeoutSeconds) {
+            this.put(() -> new MegaDownloader(timeoutSeconds), "mega.nz", "mega.co.nz");
             return this;
         }
 
@@ -71,10 +277,7 @@ public abstract class AbstractFileDownloader {
 
         @Contract(value = "_ -> this", mutates = "this")
         public @NotNull DownloaderManager addStackStorageDownloader(int timeoutSeconds) {
-            this.downloaders.put(
-                (uri, host) -> host.contains("stackstorage.com"),
-                () -> new StackStorageDownloader(60)
-            );
+            this.putDomain(() -> new StackStorageDownloader(timeoutSeconds), "stackstorage.com");
             return this;
         }
 
@@ -84,20 +287,76 @@ public abstract class AbstractFileDownloader {
             return this;
         }
 
-        @Contract(pure = true)
+        /**
+         * Get the downloader for a URL.
+         *
+         * @param url URL to download.
+         * @return The shared downloader instance for <code>url</code>'s host, or <code>null</code> if there is none.
+         */
         public @Nullable AbstractFileDownloader getInstanceFromUrl(@NotNull URI url) {
             String host = url.getHost().toLowerCase(Locale.ROOT);
             if (host.startsWith("www.")) {
                 host = host.substring("www.".length());
             }
-            for (var pair : this.downloaders.entrySet()) {
-                BiPredicate<@NotNull URI, @NotNull String> predicate = pair.getKey();
-                if (predicate.test(url, host)) {
-                    return pair.getValue().get();
+            Supplier<AbstractFileDownloader> downloader = hosts.get(host);
+            if (downloader == null) {
+                downloader = domains.get(host);
+            }
+            return downloader == null ? null : downloader.get();
+        }
+
+        /**
+         * Close every downloader created so far that is {@link AutoCloseable}, even if closing one of them fails.
+         *
+         * @throws Exception the first failure, with any later ones suppressed.
+         */
+        @Override
+        public void close() throws Exception {
+            @Nullable Exception failure = null;
+            for (LazyDownloader downloader : registered) {
+                if (downloader.instance instanceof AutoCloseable closeable) {
+                    try {
+                        closeable.close();
+                    } catch (Exception e) {
+                        if (failure == null) {
+                            failure = e;
+                        } else {
+                            failure.addSuppressed(e);
+                        }
+                    }
                 }
             }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Creates its downloader on first use, then always returns that same instance.
+         */
+        @ThreadSafe
+        private static final class LazyDownloader implements Supplier<@NotNull AbstractFileDownloader> {
+            private final @NotNull Supplier<@NotNull AbstractFileDownloader> factory;
+            private volatile @Nullable AbstractFileDownloader instance;
+
+            LazyDownloader(@NotNull Supplier<@NotNull AbstractFileDownloader> factory) {
+                this.factory = factory;
+            }
 
-            return null;
+            @Override
+            public @NotNull AbstractFileDownloader get() {
+                AbstractFileDownloader out = instance;
+                if (out == null) {
+                    synchronized (this) {
+                        out = instance;
+                        if (out == null) {
+                            out = factory.get();
+                            instance = out;
+                        }
+                    }
+                }
+                return out;
+            }
         }
 
     }
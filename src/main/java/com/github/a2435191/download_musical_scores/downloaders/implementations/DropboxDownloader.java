@@ -2,13 +2,14 @@ package com.github.a2435191.download_musical_scores.downloaders.implementations;
 
 import com.github.a2435191.download_musical_scores.downloaders.AbstractFileDownloader;
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.filetree.RemoteValidators;
 import com.github.a2435191.download_musical_scores.filetree.URLFileNode;
 import com.github.a2435191.download_musical_scores.reddit.RedditClient;
-import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.message.BasicNameValuePair;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -73,21 +74,29 @@ public class DropboxDownloader extends AbstractFileDownloader {
     @Override
     public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) {
         final URI downloadURL = setDownloadParamToOne(URI.create(url));
-        final HttpRequest request = HttpRequest.newBuilder()
+        final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
             .GET()
             .uri(downloadURL)
-            .header("User-Agent", RedditClient.USER_AGENT)
-            .build();
+            .header("User-Agent", RedditClient.USER_AGENT);
 
-        return new URLFileNode() {
+        return new URLFileNode(downloadURL) {
             @Override
             protected @NotNull FileInfo download() throws IOException {
-                HttpResponse<InputStream> response = this.client
-                    .sendAsync(request, HttpResponse.BodyHandlers.ofInputStream())
-                    .join();
+                return download(0, null);
+            }
+
+            @Override
+            protected @NotNull FileInfo download(long offset, @Nullable String validator) throws IOException {
+                return toFileInfo(sendResumable(requestBuilder, offset, validator));
+            }
 
-                BadRequestStatusException.raiseOnStatus(response);
+            @Override
+            protected @Nullable FileInfo downloadIfModified(@NotNull RemoteValidators previous) throws IOException {
+                @Nullable HttpResponse<InputStream> response = sendConditional(requestBuilder, previous);
+                return response == null ? null : toFileInfo(response);
+            }
 
+            private @NotNull FileInfo toFileInfo(@NotNull HttpResponse<InputStream> response) throws IOException {
                 Optional<String> contentDisposition = response.headers().firstValue("content-disposition");
                 if (contentDisposition.isEmpty()) {
                     throw new RuntimeException("Content disposition is empty!");
@@ -99,7 +108,8 @@ public class DropboxDownloader extends AbstractFileDownloader {
                 }
                 String name = matcher.group(1);
 
-                return new FileInfo(response.body(), name);
+                return new FileInfo(response.body(), name, getResponseOffset(response), getValidator(response),
+                    RemoteValidators.of(response));
             }
         };
 
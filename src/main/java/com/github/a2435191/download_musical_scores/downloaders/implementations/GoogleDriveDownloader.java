@@ -4,7 +4,9 @@ import com.github.a2435191.download_musical_scores.downloaders.AbstractDirectLin
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
 import com.github.a2435191.download_musical_scores.filetree.URLFileNodeWithKnownName;
 import com.github.a2435191.download_musical_scores.reddit.RedditClient;
+import com.github.a2435191.download_musical_scores.util.DownloadExecutors;
 import com.github.a2435191.download_musical_scores.util.FileUtils;
+import com.github.a2435191.download_musical_scores.util.HostRateLimiter;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.auth.oauth2.TokenResponseException;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
@@ -13,6 +15,8 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
@@ -31,33 +35,81 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
-public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloader {
+public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloader implements AutoCloseable {
     public static final String DEFAULT_CREDENTIALS_PATH = "/gdrive_credentials.json";
     public static final String DEFAULT_TOKENS_PATH = "tokens/";
+    public static final String DEFAULT_METADATA_CACHE_PATH = "drive-metadata-cache.jsonl";
     private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
     private static final Set<String> SCOPES = Set.of(DriveScopes.DRIVE_METADATA_READONLY);
     private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
     private static final String SHORTCUT_MIME_TYPE = "application/vnd.google-apps.shortcut";
-    private static final int FOLDER_CHILD_PAGE_SIZE = 50;
+    /**
+     * The most children Drive returns per page.
+     */
+    private static final int FOLDER_CHILD_PAGE_SIZE = 1000;
+    /**
+     * Maximum number of Drive API calls in flight at once, across every lookup.
+     */
+    private static final int LISTING_PARALLELISM = 8;
+    /**
+     * Most folders whose subfolders are fetched with a single <code>files.list</code> query, so that the query stays
+     * well under the length Drive accepts.
+     */
+    private static final int PARENTS_PER_QUERY = 25;
+    private static final String FILE_FIELDS =
+        "id,name,mimeType,webContentLink,size,shortcutDetails(targetId),modifiedTime";
+    /**
+     * Number of connections used for each large file. Small files are downloaded with a single stream anyway.
+     */
+    private static final int DOWNLOAD_SEGMENTS = 4;
     private final String credentialsPath;
     private final String tokensDirectoryPath;
-    private Drive service;
+    /**
+     * Folder listings from earlier lookups (and earlier runs). <code>null</code> to always list every folder.
+     */
+    private final @Nullable GoogleDriveMetadataCache metadataCache;
+    private volatile Drive service; // replaced when tokens expire, read by concurrent lookups
+    private final @NotNull ExecutorService listingExecutor =
+        DownloadExecutors.newBoundedPlatformThreadExecutor("drive-listing-", LISTING_PARALLELISM);
 
     public GoogleDriveDownloader(int timeoutSeconds) throws GeneralSecurityException, IOException {
-        super(timeoutSeconds);
-        this.credentialsPath = DEFAULT_CREDENTIALS_PATH;
-        this.tokensDirectoryPath = DEFAULT_TOKENS_PATH;
-        this.generateService();
+        this(timeoutSeconds, DEFAULT_CREDENTIALS_PATH, DEFAULT_TOKENS_PATH);
     }
 
 
     public GoogleDriveDownloader(int timeoutSeconds, String credentialsPath, String tokensDirectoryPath) throws GeneralSecurityException, IOException {
+        this(timeoutSeconds, credentialsPath, tokensDirectoryPath, Path.of(DEFAULT_METADATA_CACHE_PATH));
+    }
+
+    /**
+     * @param metadataCachePath File to keep folder listings in between runs, see {@link GoogleDriveMetadataCache}.
+     *                          <code>null</code> to always list every folder.
+     */
+    public GoogleDriveDownloader(int timeoutSeconds,
+                                 String credentialsPath,
+                                 String tokensDirectoryPath,
+                                 @Nullable Path metadataCachePath) throws GeneralSecurityException, IOException {
         super(timeoutSeconds);
         this.credentialsPath = credentialsPath;
         this.tokensDirectoryPath = tokensDirectoryPath;
+        this.metadataCache = metadataCachePath == null ? null : GoogleDriveMetadataCache.open(metadataCachePath);
         this.generateService();
     }
 
@@ -71,6 +123,18 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
         }
     }
 
+    private static @Nullable Long getModifiedTime(@NotNull File file) {
+        return file.getModifiedTime() == null ? null : file.getModifiedTime().getValue();
+    }
+
+    private static void attach(@Nullable AbstractFileNode parent, @NotNull AbstractFileNode child) {
+        if (parent != null) {
+            synchronized (parent) { // folders restored from the cache get children from several listings at once
+                parent.addChild(child);
+            }
+        }
+    }
+
     private static @NotNull String extractDriveIdFromURL(@NotNull String url) {
         String path = URI.create(url).getPath();
         if (path.startsWith("/")) {
@@ -80,9 +144,32 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
         return urlPaths[2]; // whether /file/d/<id> or /drive/folders/<id>, we index at 2
     }
 
-    private void generateService() throws GeneralSecurityException, IOException {
+    /**
+     * Make every Drive API call wait for {@link HostRateLimiter#getShared()} and report its response back to it,
+     * as requests sent with {@link com.github.a2435191.download_musical_scores.util.HttpUtils} do.
+     */
+    private static @NotNull HttpRequestInitializer paced(@NotNull HttpRequestInitializer initializer) {
+        final HostRateLimiter limiter = HostRateLimiter.getShared();
+        return request -> {
+            initializer.initialize(request);
+            final @Nullable HttpExecuteInterceptor interceptor = request.getInterceptor(); // adds the credentials
+            request.setInterceptor(attempt -> {
+                limiter.acquire(attempt.getUrl().getHost());
+                if (interceptor != null) {
+                    interceptor.intercept(attempt);
+                }
+            });
+            request.setResponseInterceptor(response -> limiter.onResponse(
+                response.getRequest().getUrl().getHost(),
+                response.getStatusCode(),
+                name -> Optional.ofNullable(response.getHeaders().getFirstHeaderStringValue(name))
+            ));
+        };
+    }
+
+    private synchronized void generateService() throws GeneralSecurityException, IOException {
         final NetHttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
-        this.service = new Drive.Builder(transport, JSON_FACTORY, getCredentials(transport))
+        this.service = new Drive.Builder(transport, JSON_FACTORY, paced(getCredentials(transport)))
             .setApplicationName(RedditClient.USER_AGENT)
             .build();
     }
@@ -104,69 +191,6 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
         return new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
     }
 
-    /**
-     * Get the {@link AbstractFileNode} for a {@link File} object representing a folder.
-     *
-     * @param fileOrFolder {@link File} object. Should represent a file or folder,
-     *                     and must always have the fields
-     *                     <code>name</code>, <code>id</code>, and <code>mimeType</code>.
-     *                     If it represents a file, it must also have <code>webContentLink</code>.
-     * @return A {@link AbstractFileNode} object whose children (if any) are files and folders themselves.
-     * @throws IOException if any of the required fields are missing.
-     */
-    private @NotNull AbstractFileNode getNodeForFileOrFolder(@NotNull File fileOrFolder) throws IOException {
-        // TODO: verify this works with shared drives
-        String name = fileOrFolder.getName();
-        String mimeType = fileOrFolder.getMimeType();
-        String id = fileOrFolder.getId();
-
-        throwExceptionOnMissingField("name", name);
-        throwExceptionOnMissingField("mimeType", mimeType);
-        throwExceptionOnMissingField("id", id);
-
-        if (mimeType.equals(FOLDER_MIME_TYPE)) { // folder
-
-            String query = "'" + id + "'" + " in parents and trashed=false";
-
-            AbstractFileNode out = new URLFileNodeWithKnownName(name);
-
-            @Nullable String nextPageToken = null;
-            do {
-                FileList fileList = service.files().list()
-                    .setQ(query)
-                    .setPageToken(nextPageToken)
-                    .setPageSize(FOLDER_CHILD_PAGE_SIZE)
-                    .setFields("nextPageToken,files(id,name,mimeType,webContentLink)")
-                    .execute();
-                nextPageToken = fileList.getNextPageToken();
-
-                for (File childFile : fileList.getFiles()) {
-                    AbstractFileNode childNode = getNodeForFileOrFolder(childFile);
-                    out.addChild(childNode);
-                }
-
-            } while (nextPageToken != null);
-            return out;
-        } else if (mimeType.equals(SHORTCUT_MIME_TYPE)) {
-            // "shortcutDetails.targetId, targetMimeType"
-            File shortcutInfo = this.service.files().get(id)
-                .setFields("shortcutDetails(targetId)").execute();
-            String targetId = shortcutInfo.getShortcutDetails().getTargetId();
-
-            // TODO: probably should make sure this doesn't infinitely recurse, but eh
-            return getFileTreeRootById(targetId);
-        } else { // otherwise, file
-            String url = fileOrFolder.getWebContentLink();
-            throwExceptionOnMissingField("webContentLink", url);
-
-            if (!url.contains("&confirm=t")) { // for large files, a confirmation page comes up without this
-                url = url.concat("&confirm=t");
-            }
-
-            return new URLFileNodeWithKnownName(name, url);
-        }
-    }
-
     /**
      * Get a {@code FileNode} corresponding to a Google Drive file or folder.
      *
@@ -174,14 +198,27 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
      * @return A {@code FileNode} corresponding to a Google Drive file or directory structure.
      * @throws IOException if the request cannot be completed.
      *                     Check {@link GoogleJsonResponseException#getStatusCode()} for <code>404</code>.
+     * @implNote Folders are listed concurrently, see {@link Listing}.
      * @see GoogleDriveDownloader#getFileTreeRoot(String)
      */
     public @NotNull AbstractFileNode getFileTreeRootById(@NotNull String id) throws IOException {
+        return getFileTreeRootById(id, file -> {
+        });
+    }
+
+    /**
+     * {@link #getFileTreeRootById(String)}, handing each file to <code>sink</code> as soon as its folder has listed
+     * it.
+     *
+     * @param sink See {@link #getFileTreeRoot(String, FileSink)}.
+     */
+    public @NotNull AbstractFileNode getFileTreeRootById(@NotNull String id, @NotNull FileSink sink)
+        throws IOException {
         // TODO: test
         @NotNull File root;
 
         try {
-            root = service.files().get(id).setFields("id,name,mimeType,webContentLink").execute();
+            root = service.files().get(id).setFields(FILE_FIELDS).execute();
         } catch (TokenResponseException e) {
             final int statusCode = e.getStatusCode();
             System.out.println("HERE: " + statusCode);
@@ -193,7 +230,7 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
                 } catch (GeneralSecurityException generalSecurityException) {
                     throw new IOException(e);
                 }
-                root = service.files().get(id).setFields("id,name,mimeType,webContentLink").execute();
+                root = service.files().get(id).setFields(FILE_FIELDS).execute();
             } else {
                 throw e;
             }
@@ -201,11 +238,374 @@ public final class GoogleDriveDownloader extends AbstractDirectLinkFileDownloade
 
         Objects.requireNonNull(root);
 
-        return getNodeForFileOrFolder(root);
+        return new Listing(sink).run(root);
     }
 
     @Override
     public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) throws IOException {
         return getFileTreeRootById(extractDriveIdFromURL(url));
     }
-}
\ No newline at end of file
+
+    /**
+     * Files are handed to <code>sink</code> as their folders are listed, while the listings of other folders are
+     * still running.
+     */
+    @Override
+    public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url, @NotNull FileSink sink) throws IOException {
+        return getFileTreeRootById(extractDriveIdFromURL(url), sink);
+    }
+
+    /**
+     * Stop the listing threads once lookups in progress are done, and close {@link #metadataCache}.
+     * Lookups still running may fail to cache their listings.
+     *
+     * @throws IOException if the metadata cache can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        listingExecutor.shutdown();
+        if (metadataCache != null) {
+            metadataCache.close();
+        }
+    }
+
+    /**
+     * Every form of a Drive URL is keyed by its file or folder id.
+     */
+    @Override
+    protected @NotNull String canonicalize(@NotNull String url) {
+        try {
+            return "drive:" + extractDriveIdFromURL(url);
+        } catch (RuntimeException e) {
+            return super.canonicalize(url);
+        }
+    }
+
+    /**
+     * Drive listings rarely change, and files are downloaded through links that don't expire.
+     */
+    @Override
+    protected @NotNull Duration getResolutionTtl() {
+        return Duration.ofHours(12);
+    }
+
+    @Override
+    protected int getResolutionCacheSize() {
+        return 4 * DEFAULT_RESOLUTION_CACHE_SIZE;
+    }
+
+    /**
+     * A single lookup of a file tree. Folders are listed concurrently on {@link #listingExecutor}: listing a folder
+     * attaches its children to its node and queues the listings of its subfolders, so no task ever waits for another.
+     * Each file is handed to {@link #sink} as soon as it is attached, so it can start downloading while other folders
+     * are still being listed.
+     * <p>
+     * A folder or shortcut that is one of its own ancestors (e.g. a shortcut to a parent folder) is skipped, so
+     * shortcuts can't make the lookup loop forever. Otherwise, a folder reachable in more than one way (e.g. through
+     * a shortcut in another folder) appears under each of them, so the tree doesn't depend on which listing finishes
+     * first.
+     * <p>
+     * A folder whose <code>modifiedTime</code> hasn't changed since it was last listed is restored from
+     * {@link #metadataCache} instead. Its subfolders may have changed even so, so they are still fetched to check
+     * their own <code>modifiedTime</code>: folders restored around the same time share one <code>files.list</code>
+     * query per {@link #PARENTS_PER_QUERY} of them, rather than one call per subfolder.
+     */
+    private final class Listing {
+        private final @NotNull FileSink sink;
+        /**
+         * Number of listings queued or running, plus one for {@link #run(File)} until the root has been visited.
+         */
+        private final @NotNull AtomicInteger pending = new AtomicInteger(1);
+        private final @NotNull CompletableFuture<Void> done = new CompletableFuture<>();
+        /**
+         * Folders restored from {@link #metadataCache} whose subfolders haven't been fetched yet.
+         */
+        private final @NotNull Queue<@NotNull RestoredFolder> restored = new ConcurrentLinkedQueue<>();
+        /**
+         * Whether a task to fetch the subfolders of {@link #restored} is queued and hasn't started yet.
+         */
+        private final @NotNull AtomicBoolean fetchQueued = new AtomicBoolean();
+
+        Listing(@NotNull FileSink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Visit the root, then wait for every folder under it to be listed. Files are handed to {@link #sink} in the
+         * meantime.
+         *
+         * @param root The file or folder to look up, with the fields in {@link #FILE_FIELDS}.
+         * @return The root of the file tree.
+         * @throws IOException if any API call fails, or <code>root</code> is a shortcut that leads back to itself.
+         */
+        @NotNull AbstractFileNode run(@NotNull File root) throws IOException {
+            final @Nullable AbstractFileNode node;
+            try {
+                node = visit(root, null, null);
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+                throw e;
+            } finally {
+                finishOne();
+            }
+
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw e;
+            }
+            if (node == null) {
+                throw new IOException("shortcut " + root.getId() + " leads back to itself");
+            }
+            return node;
+        }
+
+        /**
+         * Run a task on {@link #listingExecutor}, failing the lookup if it throws.
+         */
+        private void queue(@NotNull Task task) {
+            pending.incrementAndGet();
+            listingExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    done.completeExceptionally(e);
+                } finally {
+                    finishOne();
+                }
+            });
+        }
+
+        private void finishOne() {
+            if (pending.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        /**
+         * Create the node of a file, folder or shortcut and attach it to <code>parent</code>.
+         * Folders are queued to be listed; shortcuts are followed to their target; files are handed to {@link #sink}.
+         *
+         * @param file   A {@link File} with the fields in {@link #FILE_FIELDS}. Files must have
+         *               <code>webContentLink</code>.
+         * @param parent    Node to attach to, <code>null</code> for the root.
+         * @param ancestors Folders and shortcuts <code>file</code> was reached through, <code>null</code> for the root.
+         * @return The node, or <code>null</code> if <code>file</code> is a folder or shortcut among its own ancestors.
+         * @throws IOException if any of the required fields are missing, or a shortcut's target can't be fetched.
+         */
+        private @Nullable AbstractFileNode visit(@NotNull File file,
+                                                 @Nullable AbstractFileNode parent,
+                                                 @Nullable Ancestors ancestors) throws IOException {
+            // TODO: verify this works with shared drives
+            String name = file.getName();
+            String mimeType = file.getMimeType();
+            String id = file.getId();
+
+            throwExceptionOnMissingField("name", name);
+            throwExceptionOnMissingField("mimeType", mimeType);
+            throwExceptionOnMissingField("id", id);
+
+            if (mimeType.equals(FOLDER_MIME_TYPE)) {
+                if (Ancestors.contains(ancestors, id)) {
+                    return null;
+                }
+                AbstractFileNode node = new URLFileNodeWithKnownName(name);
+                attach(parent, node);
+                final @Nullable Long modifiedTime = getModifiedTime(file);
+                final Ancestors path = new Ancestors(id, ancestors);
+                queue(() -> listFolder(id, modifiedTime, node, path));
+                return node;
+            } else if (mimeType.equals(SHORTCUT_MIME_TYPE)) {
+                if (Ancestors.contains(ancestors, id)) {
+                    return null;
+                }
+                @Nullable String targetId = file.getShortcutDetails() == null
+                                                ? null
+                                                : file.getShortcutDetails().getTargetId();
+                if (targetId == null) {
+                    targetId = service.files().get(id)
+                        .setFields("shortcutDetails(targetId)").execute()
+                        .getShortcutDetails().getTargetId();
+                }
+                File target = service.files().get(targetId).setFields(FILE_FIELDS).execute();
+                return visit(target, parent, new Ancestors(id, ancestors));
+            } else { // otherwise, file
+                String url = file.getWebContentLink();
+                throwExceptionOnMissingField("webContentLink", url);
+
+                if (!url.contains("&confirm=t")) { // for large files, a confirmation page comes up without this
+                    url = url.concat("&confirm=t");
+                }
+
+                AbstractFileNode node = new URLFileNodeWithKnownName(name, url)
+                    .setSegments(DOWNLOAD_SEGMENTS)
+                    .setSize(file.getSize() == null ? -1 : file.getSize());
+                attach(parent, node);
+                sink.accept(node);
+                return node;
+            }
+        }
+
+        /**
+         * List every page of a folder's children (or restore them from {@link #metadataCache}), attaching them to its
+         * node. Stops early if the lookup has already failed.
+         *
+         * @param modifiedTime The folder's <code>modifiedTime</code> in milliseconds, <code>null</code> if unknown.
+         * @param path         The folder and its ancestors.
+         */
+        private void listFolder(@NotNull String id,
+                                @Nullable Long modifiedTime,
+                                @NotNull AbstractFileNode node,
+                                @NotNull Ancestors path) throws IOException {
+            @Nullable List<File> cached = metadataCache == null || modifiedTime == null
+                                              ? null
+                                              : metadataCache.getChildren(id, modifiedTime);
+            if (cached != null) {
+                boolean hasSubfolders = false;
+                for (File child : cached) {
+                    if (FOLDER_MIME_TYPE.equals(child.getMimeType())) {
+                        hasSubfolders = true; // only its own modifiedTime says whether its children changed
+                    } else {
+                        visit(child, node, path);
+                    }
+                }
+                if (hasSubfolders) {
+                    fetchSubfolders(new RestoredFolder(id, node, path));
+                }
+                return;
+            }
+
+            final List<File> children = new ArrayList<>();
+            String query = "'" + id + "'" + " in parents and trashed=false";
+
+            @Nullable String nextPageToken = null;
+            do {
+                if (done.isDone()) {
+                    return;
+                }
+                FileList fileList = service.files().list()
+                    .setQ(query)
+                    .setPageToken(nextPageToken)
+                    .setPageSize(FOLDER_CHILD_PAGE_SIZE)
+                    .setFields("nextPageToken,files(" + FILE_FIELDS + ")")
+                    .execute();
+                nextPageToken = fileList.getNextPageToken();
+
+                for (File childFile : fileList.getFiles()) {
+                    children.add(childFile);
+                    visit(childFile, node, path);
+                }
+            } while (nextPageToken != null);
+
+            if (metadataCache != null && modifiedTime != null) {
+                metadataCache.putChildren(id, modifiedTime, children);
+            }
+        }
+
+        /**
+         * Queue fetching the subfolders of a folder restored from {@link #metadataCache}. Folders queued while no
+         * fetch has started yet are fetched together, which batches them whenever listings are busy.
+         */
+        private void fetchSubfolders(@NotNull RestoredFolder folder) {
+            restored.add(folder);
+            if (fetchQueued.compareAndSet(false, true)) {
+                queue(this::fetchRestoredSubfolders);
+            }
+        }
+
+        private void fetchRestoredSubfolders() {
+            fetchQueued.set(false); // folders restored from now on need another fetch
+            List<RestoredFolder> batch = new ArrayList<>(PARENTS_PER_QUERY);
+            @Nullable RestoredFolder folder;
+            while ((folder = restored.poll()) != null) {
+                batch.add(folder);
+                if (batch.size() == PARENTS_PER_QUERY) {
+                    final List<RestoredFolder> full = batch;
+                    queue(() -> listSubfolders(full));
+                    batch = new ArrayList<>(PARENTS_PER_QUERY);
+                }
+            }
+            if (!batch.isEmpty()) {
+                final List<RestoredFolder> rest = batch;
+                queue(() -> listSubfolders(rest));
+            }
+        }
+
+        /**
+         * List the subfolders of several folders at once, with their current <code>modifiedTime</code>, and visit
+         * them. Stops early if the lookup has already failed.
+         */
+        private void listSubfolders(@NotNull List<@NotNull RestoredFolder> folders) throws IOException {
+            final Map<String, List<RestoredFolder>> byId = new HashMap<>(); // a folder may be restored along two paths
+            for (RestoredFolder folder : folders) {
+                byId.computeIfAbsent(folder.id, $ -> new ArrayList<>()).add(folder);
+            }
+            final String query = byId.keySet().stream()
+                .map(id -> "'" + id + "' in parents")
+                .collect(Collectors.joining(" or ", "(", ")"))
+                + " and mimeType='" + FOLDER_MIME_TYPE + "' and trashed=false";
+
+            @Nullable String nextPageToken = null;
+            do {
+                if (done.isDone()) {
+                    return;
+                }
+                FileList fileList = service.files().list()
+                    .setQ(query)
+                    .setPageToken(nextPageToken)
+                    .setPageSize(FOLDER_CHILD_PAGE_SIZE)
+                    .setFields("nextPageToken,files(" + FILE_FIELDS + ",parents)")
+                    .execute();
+                nextPageToken = fileList.getNextPageToken();
+
+                for (File subfolder : fileList.getFiles()) {
+                    throwExceptionOnMissingField("parents", subfolder.getParents());
+                    for (String parentId : subfolder.getParents()) {
+                        for (RestoredFolder parent : byId.getOrDefault(parentId, List.of())) {
+                            visit(subfolder, parent.node, parent.path);
+                        }
+                    }
+                }
+            } while (nextPageToken != null);
+        }
+
+        @FunctionalInterface
+        private interface Task {
+            void run() throws IOException;
+        }
+
+        /**
+         * A folder restored from {@link #metadataCache}.
+         *
+         * @param id   Id of the folder.
+         * @param node Node of the folder, to attach its subfolders to.
+         * @param path The folder and its ancestors.
+         */
+        private record RestoredFolder(@NotNull String id, @NotNull AbstractFileNode node, @NotNull Ancestors path) {
+        }
+
+        /**
+         * Ids of the folders and shortcuts on the way to a file, innermost first. Shared by every file under the
+         * same folder, and never modified, so listings on different threads can read it without locking.
+         *
+         * @param id     Id of the innermost folder or shortcut.
+         * @param parent The rest of the chain, <code>null</code> at the root.
+         */
+        private record Ancestors(@NotNull String id, @Nullable Ancestors parent) {
+            static boolean contains(@Nullable Ancestors ancestors, @NotNull String id) {
+                for (Ancestors ancestor = ancestors; ancestor != null; ancestor = ancestor.parent) {
+                    if (ancestor.id.equals(id)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.a2435191.download_musical_scores.downloaders.implementations;
+
+import com.google.api.services.drive.model.File;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of Google Drive folder listings, keyed by folder id and valid for as long as the folder's
+ * <code>modifiedTime</code> stays the same. Drive bumps a folder's <code>modifiedTime</code> when its children change,
+ * so an unchanged folder doesn't have to be listed again.
+ * <p>
+ * Listings are appended to a file, one JSON object per line, and the last listing of a folder wins.
+ * The file is compacted when it's opened if most of its lines are outdated.
+ * Lines cut off by a crash are ignored.
+ */
+@ThreadSafe
+public final class GoogleDriveMetadataCache implements AutoCloseable {
+    private static final int MIN_LINES_TO_COMPACT = 1024;
+
+    private final @NotNull Map<@NotNull String, @NotNull FolderListing> listings = new ConcurrentHashMap<>();
+    private final @NotNull BufferedWriter writer;
+
+    private GoogleDriveMetadataCache(@NotNull Path path) throws IOException {
+        int lines = 0;
+        if (Files.exists(path)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    try {
+                        JSONObject json = new JSONObject(line);
+                        listings.put(json.getString("id"), FolderListing.fromJSON(json));
+                    } catch (JSONException e) {
+                        // cut off by a crash
+                    }
+                }
+            }
+        }
+        if (lines >= MIN_LINES_TO_COMPACT && lines > 2 * listings.size()) {
+            compact(path);
+        }
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Open (or create) a cache.
+     *
+     * @param path File the cache is kept in.
+     * @return A new instance.
+     * @throws IOException if the file can't be read or opened for appending.
+     */
+    public static @NotNull GoogleDriveMetadataCache open(@NotNull Path path) throws IOException {
+        return new GoogleDriveMetadataCache(path);
+    }
+
+    private void compact(@NotNull Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, FolderListing> entry : listings.entrySet()) {
+                out.write(entry.getValue().toJSON(entry.getKey()).toString());
+                out.write('\n');
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the children of a folder, if it hasn't changed since it was last listed.
+     *
+     * @param folderId     Drive id of the folder.
+     * @param modifiedTime Current <code>modifiedTime</code> of the folder, in milliseconds since the epoch.
+     * @return The children, with the fields <code>id</code>, <code>name</code>, <code>mimeType</code>,
+     * <code>webContentLink</code>, <code>size</code> and <code>shortcutDetails(targetId)</code> as they were when
+     * listed.
+     * <code>null</code> if the folder isn't cached or has been modified since.
+     */
+    public @Nullable List<@NotNull File> getChildren(@NotNull String folderId, long modifiedTime) {
+        @Nullable FolderListing listing = listings.get(folderId);
+        if (listing == null || listing.modifiedTime != modifiedTime) {
+            return null;
+        }
+        List<File> out = new ArrayList<>(listing.children.size());
+        for (Child child : listing.children) {
+            out.add(child.toFile());
+        }
+        return out;
+    }
+
+    /**
+     * Cache the children of a folder, replacing any earlier listing of it.
+     *
+     * @param folderId     Drive id of the folder.
+     * @param modifiedTime <code>modifiedTime</code> of the folder when it was listed, in milliseconds since the epoch.
+     * @param children     Every child of the folder. Only the fields returned by {@link #getChildren(String, long)}
+     *                     are kept.
+     * @throws IOException if the cache file can't be written to.
+     */
+    public void putChildren(@NotNull String folderId, long modifiedTime, @NotNull List<@NotNull File> children)
+        throws IOException {
+        List<Child> kept = new ArrayList<>(children.size());
+        for (File file : children) {
+            kept.add(Child.fromFile(file));
+        }
+        FolderListing listing = new FolderListing(modifiedTime, List.copyOf(kept));
+        listings.put(folderId, listing);
+        synchronized (writer) {
+            writer.write(listing.toJSON(folderId).toString());
+            writer.write('\n');
+            writer.flush(); // losing lines only costs a re-listing, so they aren't synced
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+    private record FolderListing(long modifiedTime, @NotNull List<@NotNull Child> children) {
+        static @NotNull FolderListing fromJSON(@NotNull JSONObject json) {
+            JSONArray array = json.getJSONArray("children");
+            List<Child> children = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                children.add(Child.fromJSON(array.getJSONObject(i)));
+            }
+            return new FolderListing(json.getLong("modifiedTime"), List.copyOf(children));
+        }
+
+        @NotNull JSONObject toJSON(@NotNull String folderId) {
+            JSONArray array = new JSONArray();
+            for (Child child : children) {
+                array.put(child.toJSON());
+            }
+            return new JSONObject()
+                .put("id", folderId)
+                .put("modifiedTime", modifiedTime)
+                .put("children", array);
+        }
+    }
+
+    private record Child(@NotNull String id,
+                         @NotNull String name,
+                         @NotNull String mimeType,
+                         @Nullable String webContentLink,
+                         @Nullable Long size,
+                         @Nullable String shortcutTargetId) {
+        static @NotNull Child fromFile(@NotNull File file) {
+            return new Child(
+                file.getId(),
+                file.getName(),
+                file.getMimeType(),
+                file.getWebContentLink(),
+                file.getSize(),
+                file.getShortcutDetails() == null ? null : file.getShortcutDetails().getTargetId()
+            );
+        }
+
+        static @NotNull Child fromJSON(@NotNull JSONObject json) {
+            return new Child(
+                json.getString("id"),
+                json.getString("name"),
+                json.getString("mimeType"),
+                json.optString("webContentLink", null),
+                json.has("size") ? json.getLong("size") : null,
+                json.optString("shortcutTargetId", null)
+            );
+        }
+
+        @NotNull File toFile() {
+            File file = new File()
+                .setId(id)
+                .setName(name)
+                .setMimeType(mimeType)
+                .setWebContentLink(webContentLink)
+                .setSize(size);
+            if (shortcutTargetId != null) {
+                file.setShortcutDetails(new File.ShortcutDetails().setTargetId(shortcutTargetId));
+            }
+            return file;
+        }
+
+        @NotNull JSONObject toJSON() {
+            return new JSONObject()
+                .put("id", id)
+                .put("name", name)
+                .put("mimeType", mimeType)
+                .putOpt("webContentLink", webContentLink)
+                .putOpt("size", size)
+                .putOpt("shortcutTargetId", shortcutTargetId);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.github.a2435191.download_musical_scores.downloaders.implementations;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * The parts of Mega's client-side encryption needed to read public links.
+ * <p>
+ * Node keys are encrypted with AES-ECB under the key of the shared folder, node attributes with AES-CBC (zero IV)
+ * under the node's key, and file contents with AES-CTR. A file's 32-byte key packs its 16-byte AES key
+ * (the XOR of its two halves), the 8-byte CTR nonce and an 8-byte MAC of the decrypted contents
+ * (see {@link #computeMac(byte[], byte[], InputStream)}).
+ */
+final class MegaCrypto {
+    /**
+     * AES block size, which CTR ranges have to be aligned to.
+     */
+    static final int BLOCK_SIZE = 16;
+    private static final int FILE_KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 8;
+    private static final int MAC_LENGTH = 8;
+    /**
+     * Size of the first chunk MACs are computed over, and how much each chunk grows until {@link #MAX_MAC_CHUNK}.
+     */
+    private static final int MAC_CHUNK_STEP = 128 * 1024;
+    private static final int MAX_MAC_CHUNK = 1024 * 1024;
+    private static final int MAC_BUFFER_SIZE = 64 * 1024;
+    private static final String ATTRIBUTES_PREFIX = "MEGA";
+
+    private MegaCrypto() {
+    }
+
+    /**
+     * Decode Mega's base64, which uses the URL-safe alphabet and no padding.
+     *
+     * @throws IllegalArgumentException if <code>text</code> isn't valid base64.
+     */
+    static byte @NotNull [] decodeBase64(@NotNull String text) {
+        return Base64.getUrlDecoder().decode(text.replace('+', '-').replace('/', '_'));
+    }
+
+    /**
+     * Decrypt a node key with the key of the folder it was shared in.
+     *
+     * @param folderKey    16-byte key of the shared folder.
+     * @param encryptedKey Node key, a multiple of 16 bytes long.
+     * @return The node key: 32 bytes for a file, 16 for a folder.
+     */
+    static byte @NotNull [] decryptKey(byte @NotNull [] folderKey, byte @NotNull [] encryptedKey) {
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(folderKey, "AES"));
+            return cipher.doFinal(encryptedKey);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("can't decrypt a " + encryptedKey.length + "-byte node key", e);
+        }
+    }
+
+    /**
+     * Get the AES key of a node's contents and attributes.
+     *
+     * @param nodeKey 32-byte file key or 16-byte folder key.
+     * @return A new 16-byte array.
+     */
+    static byte @NotNull [] getAesKey(byte @NotNull [] nodeKey) {
+        if (nodeKey.length != FILE_KEY_LENGTH) {
+            return nodeKey.clone();
+        }
+        byte[] aesKey = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            aesKey[i] = (byte) (nodeKey[i] ^ nodeKey[i + BLOCK_SIZE]);
+        }
+        return aesKey;
+    }
+
+    /**
+     * Get the CTR nonce of a file.
+     *
+     * @param fileKey 32-byte file key.
+     * @return A new 8-byte array.
+     */
+    static byte @NotNull [] getNonce(byte @NotNull [] fileKey) {
+        if (fileKey.length != FILE_KEY_LENGTH) {
+            throw new IllegalArgumentException("not a file key");
+        }
+        return Arrays.copyOfRange(fileKey, BLOCK_SIZE, BLOCK_SIZE + NONCE_LENGTH);
+    }
+
+    /**
+     * Get the MAC a file's decrypted contents should have.
+     *
+     * @param fileKey 32-byte file key.
+     * @return A new 8-byte array, to compare with {@link #computeMac(byte[], byte[], InputStream)}.
+     */
+    static byte @NotNull [] getMac(byte @NotNull [] fileKey) {
+        if (fileKey.length != FILE_KEY_LENGTH) {
+            throw new IllegalArgumentException("not a file key");
+        }
+        return Arrays.copyOfRange(fileKey, BLOCK_SIZE + NONCE_LENGTH, FILE_KEY_LENGTH);
+    }
+
+    /**
+     * Compute the MAC of a file's decrypted contents.
+     * <p>
+     * The contents are split into chunks of 128 KiB, 256 KiB, ... up to 1 MiB, then 1 MiB each. Each chunk is
+     * CBC-MACed under the AES key with the nonce twice as IV (the last block zero-padded), the chunk MACs are
+     * CBC-MACed in turn with a zero IV, and the four 32-bit words of the result are condensed to
+     * <code>[w0 ^ w1, w2 ^ w3]</code>.
+     *
+     * @param aesKey See {@link #getAesKey(byte[])}.
+     * @param nonce  See {@link #getNonce(byte[])}.
+     * @param in     The decrypted contents, read to the end. Not closed.
+     * @return The 8-byte MAC.
+     * @throws IOException if <code>in</code> can't be read.
+     */
+    static byte @NotNull [] computeMac(byte @NotNull [] aesKey, byte @NotNull [] nonce, @NotNull InputStream in)
+        throws IOException {
+        final SecretKeySpec key = new SecretKeySpec(aesKey, "AES");
+        final IvParameterSpec chunkIv = new IvParameterSpec(
+            ByteBuffer.allocate(BLOCK_SIZE).put(nonce).put(nonce).array());
+        final Cipher chunkMac;
+        final Cipher fileMac;
+        try {
+            chunkMac = Cipher.getInstance("AES/CBC/NoPadding");
+            chunkMac.init(Cipher.ENCRYPT_MODE, key, chunkIv);
+            fileMac = Cipher.getInstance("AES/CBC/NoPadding");
+            fileMac.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[BLOCK_SIZE]));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e); // every JVM has AES/CBC
+        }
+
+        final byte[] buffer = new byte[MAC_BUFFER_SIZE];
+        final byte[] encrypted = new byte[MAC_BUFFER_SIZE + BLOCK_SIZE];
+        final byte[] chunkLast = new byte[BLOCK_SIZE]; // last block of the chunk so far
+        final byte[] fileLast = new byte[BLOCK_SIZE]; // last block of the chunk MACs so far
+        long chunkSize = MAC_CHUNK_STEP;
+        long inChunk = 0;
+        int read;
+        while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, chunkSize - inChunk))) != -1) {
+            macUpdate(chunkMac, buffer, read, encrypted, chunkLast);
+            inChunk += read;
+            if (inChunk == chunkSize) {
+                finishChunk(chunkMac, key, chunkIv, fileMac, inChunk, encrypted, chunkLast, fileLast);
+                chunkSize = Math.min(chunkSize + MAC_CHUNK_STEP, MAX_MAC_CHUNK);
+                inChunk = 0;
+            }
+        }
+        if (inChunk > 0) {
+            finishChunk(chunkMac, key, chunkIv, fileMac, inChunk, encrypted, chunkLast, fileLast);
+        }
+
+        byte[] condensed = new byte[MAC_LENGTH];
+        for (int i = 0; i < 4; i++) {
+            condensed[i] = (byte) (fileLast[i] ^ fileLast[i + 4]);
+            condensed[i + 4] = (byte) (fileLast[i + 8] ^ fileLast[i + 12]);
+        }
+        return condensed;
+    }
+
+    /**
+     * Feed bytes to a CBC-MAC, keeping its last full block in <code>last</code>.
+     */
+    private static void macUpdate(@NotNull Cipher cipher, byte @NotNull [] bytes, int length,
+                                  byte @NotNull [] encrypted, byte @NotNull [] last) {
+        try {
+            int written = cipher.update(bytes, 0, length, encrypted, 0);
+            if (written > 0) {
+                System.arraycopy(encrypted, written - BLOCK_SIZE, last, 0, BLOCK_SIZE);
+            }
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e); // encrypted has room for a block more than length
+        }
+    }
+
+    /**
+     * Pad the chunk to a whole block, fold its MAC into the file's MAC, and start the next chunk.
+     */
+    private static void finishChunk(@NotNull Cipher chunkMac, @NotNull SecretKeySpec key,
+                                    @NotNull IvParameterSpec chunkIv, @NotNull Cipher fileMac, long chunkLength,
+                                    byte @NotNull [] encrypted, byte @NotNull [] chunkLast, byte @NotNull [] fileLast) {
+        int padding = (int) ((BLOCK_SIZE - chunkLength % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0) {
+            macUpdate(chunkMac, new byte[padding], padding, encrypted, chunkLast);
+        }
+        macUpdate(fileMac, chunkLast, BLOCK_SIZE, encrypted, fileLast);
+        try {
+            chunkMac.init(Cipher.ENCRYPT_MODE, key, chunkIv);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e); // the same key and IV worked before
+        }
+    }
+
+    /**
+     * Decrypt a node's attributes and get its name.
+     *
+     * @param aesKey     See {@link #getAesKey(byte[])}.
+     * @param attributes The node's base64 <code>a</code> (or <code>at</code>) field.
+     * @return The name, or <code>null</code> if the attributes can't be decrypted with <code>aesKey</code>
+     * (e.g. the link's key is wrong).
+     */
+    static @Nullable String decryptName(byte @NotNull [] aesKey, @NotNull String attributes) {
+        byte[] plain;
+        try {
+            byte[] encrypted = decodeBase64(attributes);
+            Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+            plain = cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+
+        int end = plain.length;
+        while (end > 0 && plain[end - 1] == 0) {
+            end--; // zero padding
+        }
+        String text = new String(plain, 0, end, StandardCharsets.UTF_8);
+        if (!text.startsWith(ATTRIBUTES_PREFIX + "{")) {
+            return null;
+        }
+        try {
+            return new JSONObject(text.substring(ATTRIBUTES_PREFIX.length())).optString("n", null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create a cipher that decrypts a file's contents from <code>offset</code> on.
+     *
+     * @param aesKey See {@link #getAesKey(byte[])}.
+     * @param nonce  See {@link #getNonce(byte[])}.
+     * @param offset Position in the file, a multiple of {@link #BLOCK_SIZE}.
+     * @return A new cipher, to be fed the encrypted bytes in order. It keeps its place across calls to
+     * {@link Cipher#update(byte[], int, int, byte[], int)} of any length.
+     */
+    static @NotNull Cipher newContentCipher(byte @NotNull [] aesKey, byte @NotNull [] nonce, long offset) {
+        if (offset % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("offset must be a multiple of " + BLOCK_SIZE);
+        }
+        byte[] counter = ByteBuffer.allocate(BLOCK_SIZE).put(nonce).putLong(offset / BLOCK_SIZE).array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(counter));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e); // every JVM has AES/CTR
+        }
+    }
+}
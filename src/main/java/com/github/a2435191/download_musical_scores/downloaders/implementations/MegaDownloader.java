@@ -1,114 +1,307 @@
 package com.github.a2435191.download_musical_scores.downloaders.implementations;
 
-import com.github.a2435191.download_musical_scores.downloaders.AbstractFileDownloader;
+import com.github.a2435191.download_musical_scores.downloaders.AbstractDirectLinkFileDownloader;
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.file.Path;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Objects;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-// TODO: make sure https://mega.nz/cmd is installed with mega-help command test
+/**
+ * Downloads public Mega file and folder links in-process: the key in the link decrypts the names and keys of the
+ * nodes returned by Mega's API, and each file is decrypted as it's downloaded (see {@link MegaFileNode}).
+ * <p>
+ * Supports <code>/file/&lt;handle&gt;#&lt;key&gt;</code> and <code>/folder/&lt;handle&gt;#&lt;key&gt;</code> links
+ * (optionally followed by <code>/file/&lt;handle&gt;</code> or <code>/folder/&lt;handle&gt;</code> for part of a
+ * folder), and the older <code>#!&lt;handle&gt;!&lt;key&gt;</code> and <code>#F!&lt;handle&gt;!&lt;key&gt;</code>.
+ */
+public final class MegaDownloader extends AbstractDirectLinkFileDownloader {
+    /**
+     * Mega's API server.
+     */
+    public static final URI DEFAULT_API_URI = URI.create("https://g.api.mega.co.nz");
+    /**
+     * Mega throttles each connection, so large files are downloaded over several.
+     */
+    public static final int DOWNLOAD_SEGMENTS = 4;
+    private static final Pattern LINK_PATH_REGEX = Pattern.compile("^/(file|folder)/([\\w-]+)/?$");
+    private static final Pattern LINK_FRAGMENT_REGEX = Pattern.compile("^([\\w-]+)(?:/(?:file|folder)/([\\w-]+))?$");
+    private static final Pattern LEGACY_LINK_FRAGMENT_REGEX = Pattern.compile("^(F?)!([\\w-]+)!([\\w-]+)(?:[!?]([\\w-]+))?$");
+    private static final int FILE_KEY_LENGTH = 32;
+    private static final int FOLDER_KEY_LENGTH = 16;
+    private static final int FILE = 0;
+    private static final int FOLDER = 1;
+    /**
+     * API error code for "try again".
+     */
+    private static final int EAGAIN = -3;
+    private static final int MAX_API_ATTEMPTS = 5;
+    private static final Duration API_RETRY_DELAY = Duration.ofMillis(250);
 
-public final class MegaDownloader extends AbstractFileDownloader {
-    // FIXME: downloading a folder with multiple files hangs
+    private final @NotNull URI apiUri;
+    private final int segments;
+    /**
+     * Mega wants a sequence number on every API request.
+     */
+    private final @NotNull AtomicLong sequence = new AtomicLong(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
 
-    private static final Pattern DOWNLOAD_PATH_REGEX = Pattern.compile("^Download finished: (.+)$");
-    private static final long PROCESS_WAIT_MILLIS = 500;
-    private final @NotNull Path pathToMegaCommands;
+    public MegaDownloader(int timeoutSeconds) {
+        this(timeoutSeconds, DEFAULT_API_URI, DOWNLOAD_SEGMENTS);
+    }
+
+    /**
+     * Create a downloader that talks to another API server, e.g. a local stand-in.
+     *
+     * @param timeoutSeconds Timeout of API requests.
+     * @param apiUri         Base URI of the API, without a trailing slash. Requests go to <code>apiUri/cs</code>.
+     * @param segments       Maximum number of concurrent connections per file, see {@link MegaFileNode}.
+     */
+    public MegaDownloader(int timeoutSeconds, @NotNull URI apiUri, int segments) {
+        super(timeoutSeconds);
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        this.apiUri = apiUri;
+        this.segments = segments;
+    }
 
+    private static @NotNull Link parseLink(@NotNull String url) throws IOException {
+        final URI uri = URI.create(url);
+        final String path = uri.getPath() == null ? "" : uri.getPath();
+        final String fragment = uri.getFragment() == null ? "" : uri.getFragment();
 
-    public MegaDownloader() {
-        this.pathToMegaCommands = Path.of("mega-get");
+        Matcher pathMatcher = LINK_PATH_REGEX.matcher(path);
+        Matcher fragmentMatcher = LINK_FRAGMENT_REGEX.matcher(fragment);
+        if (pathMatcher.matches() && fragmentMatcher.matches()) {
+            return new Link(
+                pathMatcher.group(1).equals("folder"),
+                pathMatcher.group(2),
+                MegaCrypto.decodeBase64(fragmentMatcher.group(1)),
+                fragmentMatcher.group(2)
+            );
+        }
+        Matcher legacyMatcher = LEGACY_LINK_FRAGMENT_REGEX.matcher(fragment);
+        if (legacyMatcher.matches()) {
+            return new Link(
+                !legacyMatcher.group(1).isEmpty(),
+                legacyMatcher.group(2),
+                MegaCrypto.decodeBase64(legacyMatcher.group(3)),
+                legacyMatcher.group(4)
+            );
+        }
+        throw new IOException("Not a public Mega file or folder link: " + url);
     }
 
-    public MegaDownloader(@NotNull Path pathToMegaCommands) {
-        this.pathToMegaCommands = pathToMegaCommands;
+    @Override
+    public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) throws IOException {
+        Link link = parseLink(url);
+        return link.isFolder ? getFolderTree(link) : getFileNode(link);
     }
 
-    private static @NotNull Path getDownloadPathFromOutputText(@NotNull Collection<@NotNull String> outputLines) {
-        String stringPath = outputLines
-            .stream()
-            .map(s -> {
-                Matcher m = DOWNLOAD_PATH_REGEX.matcher(s);
-                if (m.matches()) {
-                    return m.group(1);
-                }
-                return null;
-            })
-            .filter(Objects::nonNull)
-            .findFirst()
-            .orElseThrow(() -> new RuntimeException(
-                "No line of output " + String.join("\n", outputLines) + " matches regex " + DOWNLOAD_PATH_REGEX + "!")
-            );
-        return Path.of(stringPath);
+    private @NotNull AbstractFileNode getFileNode(@NotNull Link link) throws IOException {
+        if (link.key.length != FILE_KEY_LENGTH) {
+            throw new IOException("Mega file key of " + link.handle + " has the wrong length");
+        }
+        JSONObject info = callApi(null, new JSONObject().put("a", "g").put("p", link.handle));
+        String name = MegaCrypto.decryptName(MegaCrypto.getAesKey(link.key), info.getString("at"));
+        if (name == null) {
+            throw new IOException("Can't decrypt the name of Mega file " + link.handle + ", is the key right?");
+        }
+        JSONObject downloadCommand = new JSONObject().put("a", "g").put("g", 1).put("ssl", 1).put("p", link.handle);
+        return new MegaFileNode(
+            name, link.handle, info.getLong("s"), link.key, () -> getDownloadUrl(downloadCommand, null), segments);
     }
 
-    private static void readerToLinesBuffer(@NotNull BufferedReader reader, @NotNull Collection<String> original) {
-        try {
-            while (reader.ready()) {
-                String line = reader.readLine();
-                original.add(line);
+    /**
+     * List the whole shared folder in one API call and build the tree below the linked folder.
+     */
+    private @NotNull AbstractFileNode getFolderTree(@NotNull Link link) throws IOException {
+        if (link.key.length != FOLDER_KEY_LENGTH) {
+            throw new IOException("Mega folder key of " + link.handle + " has the wrong length");
+        }
+        JSONObject response = callApi(link.handle, new JSONObject().put("a", "f").put("c", 1).put("r", 1).put("ca", 1));
+        JSONArray array = response.getJSONArray("f");
+
+        Map<String, JSONObject> nodes = new HashMap<>(array.length());
+        Map<String, List<String>> children = new HashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject node = array.getJSONObject(i);
+            nodes.put(node.getString("h"), node);
+            children.computeIfAbsent(node.optString("p", ""), $ -> new ArrayList<>()).add(node.getString("h"));
+        }
+        @Nullable String shareHandle = null;
+        for (JSONObject node : nodes.values()) {
+            if (node.getInt("t") == FOLDER && !nodes.containsKey(node.optString("p", ""))) {
+                shareHandle = node.getString("h");
             }
+        }
+        if (shareHandle == null) {
+            throw new IOException("Mega folder " + link.handle + " has no root");
+        }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        FolderListing listing = new FolderListing(link.handle, link.key, shareHandle, nodes, children);
+        String rootHandle = link.subHandle == null ? shareHandle : link.subHandle;
+        if (!nodes.containsKey(rootHandle)) {
+            throw new IOException("Mega folder " + link.handle + " has no node " + rootHandle);
         }
+        @Nullable AbstractFileNode root = buildNode(listing, rootHandle);
+        if (root == null) {
+            throw new IOException("Mega folder " + link.handle + " has no files");
+        }
+        return root;
     }
 
-    @Override
-    public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) {
-        return new AbstractFileNode() {
-            @Override
-            public @NotNull Path saveToDisk(@NotNull Path parentDir) throws IOException {
-
-                final String[] command;
-                if (parentDir.toString().isEmpty()) {
-                    command = new String[]{
-                        pathToMegaCommands.toString(), url
-                    };
-                } else {
-                    command = new String[]{
-                        pathToMegaCommands.toString(), url, parentDir.toString()
-                    };
-                }
-                Process p = new ProcessBuilder(command)
-                    .redirectErrorStream(true)
-                    .start();
-
-                Set<String> outLines = new HashSet<>();
-                BufferedReader outReader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-                boolean isDone;
-                do {
-                    isDone = true;
-                    try {
-                        isDone = p.waitFor(PROCESS_WAIT_MILLIS, TimeUnit.MILLISECONDS);
-                        readerToLinesBuffer(outReader, outLines);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                } while (!isDone);
-
-                int status = p.exitValue();
-
-                if (status != 0) {
-                    String errorMessage = String.join("\n", outLines);
-                    throw new IOException(String.format("Non-zero status code %d while running %s:\n%s",
-                        status, String.join(" ", command), errorMessage)
-                    );
+    /**
+     * Create the node of a file or folder and, for a folder, of everything in it.
+     *
+     * @return The node, or <code>null</code> for an empty folder (which would otherwise look like a file) or a node
+     * that is neither a file nor a folder.
+     */
+    private @Nullable AbstractFileNode buildNode(@NotNull FolderListing listing, @NotNull String handle)
+        throws IOException {
+        final JSONObject node = listing.nodes.get(handle);
+        final int type = node.getInt("t");
+        if (type != FILE && type != FOLDER) {
+            return null;
+        }
+        final byte[] nodeKey = listing.decryptNodeKey(node);
+        if (nodeKey.length != (type == FILE ? FILE_KEY_LENGTH : FOLDER_KEY_LENGTH)) {
+            throw new IOException("Mega node " + handle + " has a key of the wrong length");
+        }
+        final String name = MegaCrypto.decryptName(MegaCrypto.getAesKey(nodeKey), node.getString("a"));
+        if (name == null) {
+            throw new IOException("Can't decrypt the name of Mega node " + handle + ", is the key right?");
+        }
+
+        if (type == FILE) {
+            JSONObject downloadCommand = new JSONObject().put("a", "g").put("g", 1).put("ssl", 1).put("n", handle);
+            return new MegaFileNode(name, handle, node.getLong("s"), nodeKey,
+                () -> getDownloadUrl(downloadCommand, listing.folderHandle), segments);
+        }
+        MegaFileNode folder = new MegaFileNode(name, handle);
+        for (String childHandle : listing.children.getOrDefault(handle, List.of())) {
+            @Nullable AbstractFileNode child = buildNode(listing, childHandle);
+            if (child != null) {
+                folder.addChild(child);
+            }
+        }
+        return folder.isDirectory() ? folder : null;
+    }
+
+    private @NotNull String getDownloadUrl(@NotNull JSONObject command, @Nullable String folderHandle)
+        throws IOException {
+        JSONObject response = callApi(folderHandle, command);
+        Object url = response.opt("g");
+        if (!(url instanceof String)) {
+            throw new IOException("Mega has no download URL for " + command + ": " + response.opt("e"));
+        }
+        return (String) url;
+    }
+
+    /**
+     * Make a single API call, retrying while Mega asks to try again.
+     *
+     * @param folderHandle Handle of the public folder the call is about, or <code>null</code>.
+     * @param command      The call, e.g. <code>{"a":"g","p":"&lt;handle&gt;"}</code>.
+     * @return The result of the call.
+     * @throws IOException if the call fails or returns an error code.
+     */
+    private @NotNull JSONObject callApi(@Nullable String folderHandle, @NotNull JSONObject command)
+        throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            String query = "id=" + sequence.getAndIncrement() + (folderHandle == null ? "" : "&n=" + folderHandle);
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(apiUri + "/cs?" + query))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(timeoutSeconds))
+                .POST(HttpRequest.BodyPublishers.ofString("[" + command + "]"))
+                .build();
+            HttpResponse<String> response = HttpUtils.send(client, request, HttpResponse.BodyHandlers.ofString());
+            BadRequestStatusException.raiseOnStatus(response);
+
+            // either an array with one result per call, or a bare error code for the whole request
+            Object result = new JSONTokener(response.body()).nextValue();
+            if (result instanceof JSONArray array && array.length() == 1) {
+                result = array.get(0);
+            }
+            if (result instanceof JSONObject object) {
+                return object;
+            }
+            if (result instanceof Number code && code.intValue() == EAGAIN && attempt < MAX_API_ATTEMPTS) {
+                try {
+                    Thread.sleep(API_RETRY_DELAY.toMillis() << attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting to retry " + command);
                 }
+                continue;
+            }
+            throw new IOException("Mega API call " + command + " failed with " + result);
+        }
+    }
 
-                return getDownloadPathFromOutputText(outLines);
+    /**
+     * The parts of a Mega link.
+     *
+     * @param isFolder  Whether it's a folder link.
+     * @param handle    Public handle of the file or folder.
+     * @param key       32-byte file key or 16-byte folder key.
+     * @param subHandle For a link to part of a folder, the handle of that file or folder. <code>null</code> otherwise.
+     */
+    private record Link(boolean isFolder, @NotNull String handle, byte @NotNull [] key, @Nullable String subHandle) {
+    }
+
+    /**
+     * Every node of a shared folder, by handle.
+     *
+     * @param folderHandle Public handle of the folder, from the link.
+     * @param folderKey    Key of the folder, from the link.
+     * @param shareHandle  Handle of the folder's root node, which its nodes' keys are filed under.
+     * @param children     Handles of the children of each node, by the parent's handle.
+     */
+    private record FolderListing(@NotNull String folderHandle,
+                                 byte @NotNull [] folderKey,
+                                 @NotNull String shareHandle,
+                                 @NotNull Map<@NotNull String, @NotNull JSONObject> nodes,
+                                 @NotNull Map<@NotNull String, @NotNull List<@NotNull String>> children) {
+        /**
+         * A node's <code>k</code> is a <code>/</code>-separated list of <code>&lt;handle&gt;:&lt;encrypted key&gt;</code>;
+         * the key filed under the share is encrypted with the folder key.
+         */
+        byte @NotNull [] decryptNodeKey(@NotNull JSONObject node) throws IOException {
+            @Nullable String encryptedKey = null;
+            for (String entry : node.getString("k").split("/")) {
+                int colon = entry.indexOf(':');
+                if (colon >= 0 && (encryptedKey == null || entry.substring(0, colon).equals(shareHandle))) {
+                    encryptedKey = entry.substring(colon + 1);
+                }
+            }
+            if (encryptedKey == null) {
+                throw new IOException("Mega node " + node.getString("h") + " has no key");
             }
-        };
+            try {
+                return MegaCrypto.decryptKey(folderKey, MegaCrypto.decodeBase64(encryptedKey));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Can't decrypt the key of Mega node " + node.getString("h"), e);
+            }
+        }
     }
 }
@@ -0,0 +1,319 @@
+package com.github.a2435191.download_musical_scores.downloaders.implementations;
+
+import com.github.a2435191.download_musical_scores.filetree.SegmentWriter;
+import com.github.a2435191.download_musical_scores.filetree.URLFileNode;
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A file (or folder) behind a Mega link, decrypted as it's downloaded.
+ * <p>
+ * Mega's download servers take the byte range as a <code>/start-end</code> suffix of the download URL, which is
+ * how downloads are resumed and split into segments. Every download asks the API for a fresh download URL, since they
+ * expire.
+ * <p>
+ * Once a file is on disk, its MAC is checked against the one in its key (see
+ * {@link MegaCrypto#computeMac(byte[], byte[], InputStream)}). Segments arrive out of order and downloads may resume
+ * in a later run, so the finished file is read back for this rather than MACed as it's written.
+ */
+final class MegaFileNode extends URLFileNode {
+    /**
+     * Segments are never made smaller than this; small files are downloaded with a single stream.
+     */
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024 * 1024;
+
+    private final @NotNull String name;
+    private final @NotNull String handle;
+    private final long size;
+    private final byte @Nullable [] aesKey;
+    private final byte @Nullable [] nonce;
+    private final byte @Nullable [] mac;
+    private final @Nullable DownloadUrlSource downloadUrlSource;
+    private final int segments;
+
+    /**
+     * Create a file node.
+     *
+     * @param name              Decrypted name of the file.
+     * @param handle            Mega's id of the file.
+     * @param size              Size of the file in bytes.
+     * @param fileKey           32-byte key of the file.
+     * @param downloadUrlSource Gets a download URL for the encrypted file.
+     * @param segments          Maximum number of concurrent connections for the file, at least <code>1</code>.
+     */
+    MegaFileNode(@NotNull String name,
+                 @NotNull String handle,
+                 long size,
+                 byte @NotNull [] fileKey,
+                 @NotNull DownloadUrlSource downloadUrlSource,
+                 int segments) {
+        this.name = name;
+        this.handle = handle;
+        this.size = size;
+        this.aesKey = MegaCrypto.getAesKey(fileKey);
+        this.nonce = MegaCrypto.getNonce(fileKey);
+        this.mac = MegaCrypto.getMac(fileKey);
+        this.downloadUrlSource = downloadUrlSource;
+        this.segments = segments;
+    }
+
+    /**
+     * Create a folder node. It must be given children.
+     *
+     * @param name   Decrypted name of the folder.
+     * @param handle Mega's id of the folder.
+     */
+    MegaFileNode(@NotNull String name, @NotNull String handle) {
+        this.name = name;
+        this.handle = handle;
+        this.size = 0;
+        this.aesKey = null;
+        this.nonce = null;
+        this.mac = null;
+        this.downloadUrlSource = null;
+        this.segments = 1;
+    }
+
+    /**
+     * Identifies this version of the file: an edited file gets a new handle.
+     */
+    private @NotNull String getVersion() {
+        return handle + ":" + size;
+    }
+
+    private @NotNull String getDownloadUrl() throws IOException {
+        assert downloadUrlSource != null;
+        return downloadUrlSource.get();
+    }
+
+    /**
+     * Build a request for bytes <code>start</code> to <code>end</code> (inclusive) of the encrypted file.
+     */
+    private @NotNull HttpRequest newRangeRequest(@NotNull String downloadUrl, long start, long end) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(downloadUrl + "/" + start + "-" + end))
+            .GET()
+            .build();
+    }
+
+    @Override
+    public @NotNull FileInfo download() throws IOException {
+        return download(0, null);
+    }
+
+    @Override
+    protected @NotNull FileInfo download(long offset, @Nullable String validator) throws IOException {
+        if (this.isDirectory()) {
+            return new FileInfo(InputStream.nullInputStream(), this.name);
+        }
+        if (!getVersion().equals(validator) || offset > size) {
+            offset = 0;
+        }
+        if (offset == size) {
+            return new FileInfo(InputStream.nullInputStream(), this.name, offset, getVersion());
+        }
+
+        // CTR can only start at a block boundary, so fetch from there and drop the bytes before offset
+        final long alignedOffset = offset - offset % MegaCrypto.BLOCK_SIZE;
+        HttpResponse<InputStream> response = HttpUtils.send(
+            client,
+            newRangeRequest(getDownloadUrl(), alignedOffset, size - 1),
+            HttpResponse.BodyHandlers.ofInputStream()
+        );
+        try {
+            BadRequestStatusException.raiseOnStatus(response);
+            Optional<String> contentLength = response.headers().firstValue("Content-Length");
+            if (contentLength.isPresent() && Long.parseLong(contentLength.get()) != size - alignedOffset) {
+                throw new IOException("Expected " + (size - alignedOffset) + " bytes of " + this.name
+                                          + " but the server is sending " + contentLength.get());
+            }
+        } catch (IOException e) {
+            response.body().close();
+            throw e;
+        }
+
+        InputStream data = new DecryptingInputStream(
+            response.body(), MegaCrypto.newContentCipher(aesKey, nonce, alignedOffset));
+        data.skipNBytes(offset - alignedOffset);
+        return new FileInfo(data, this.name, offset, getVersion());
+    }
+
+    /**
+     * Split the file into up to <code>segments</code> block-aligned ranges and fetch them concurrently,
+     * decrypting each one as it arrives and writing it at its offset.
+     */
+    @Override
+    protected @Nullable FileInfo downloadSegmented(@NotNull FileChannel out, @NotNull TargetCheck checkTarget)
+        throws IOException {
+        if (this.segments < 2 || this.isDirectory()) {
+            return null;
+        }
+        final int count = (int) Math.min(this.segments, size / MIN_SEGMENT_SIZE);
+        if (count < 2) {
+            return null;
+        }
+        checkTarget.check(this.name);
+        final long segmentSize = ((size + count - 1) / count + MegaCrypto.BLOCK_SIZE - 1)
+                                     / MegaCrypto.BLOCK_SIZE * MegaCrypto.BLOCK_SIZE;
+        final String downloadUrl = getDownloadUrl();
+
+        final SegmentWriter writer = new SegmentWriter(out);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(count);
+        for (long start = 0; start < size; start += segmentSize) {
+            futures.add(downloadSegment(writer, downloadUrl, start, Math.min(size, start + segmentSize) - 1));
+        }
+        writer.awaitAll(futures);
+        return new FileInfo(InputStream.nullInputStream(), this.name, 0, getVersion());
+    }
+
+    /**
+     * Download bytes <code>start</code> to <code>end</code> (inclusive), decrypting them and writing them with
+     * <code>writer</code> as they arrive.
+     */
+    private @NotNull CompletableFuture<Void> downloadSegment(@NotNull SegmentWriter writer,
+                                                             @NotNull String downloadUrl,
+                                                             long start,
+                                                             long end) {
+        final Cipher cipher = MegaCrypto.newContentCipher(aesKey, nonce, start);
+        final long[] position = {start};
+        HttpResponse.BodyHandler<Void> handler = responseInfo -> {
+            if (responseInfo.statusCode() != 200) {
+                // don't read an error page as file data, just hang up
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), in -> {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            }
+            return HttpResponse.BodySubscribers.ofByteArrayConsumer((Optional<byte[]> chunk) -> {
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                byte[] bytes = chunk.get();
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, decrypt(cipher, bytes, 0, bytes.length));
+                position[0] = writer.write(buffer, position[0]);
+            });
+        };
+
+        return HttpUtils.sendAsync(client, newRangeRequest(downloadUrl, start, end), handler).thenAccept(response -> {
+            if (response.statusCode() != 200) {
+                throw new UncheckedIOException(new BadRequestStatusException(response));
+            }
+            if (position[0] != end + 1) {
+                throw new UncheckedIOException(new IOException(
+                    "Segment " + start + "-" + end + " of " + this.name + " ended early at " + position[0]));
+            }
+        });
+    }
+
+    /**
+     * Decrypt <code>length</code> bytes of <code>bytes</code> from <code>offset</code> on, in place.
+     *
+     * @return <code>length</code>, since CTR doesn't hold any bytes back.
+     */
+    private static int decrypt(@NotNull Cipher cipher, byte @NotNull [] bytes, int offset, int length) {
+        try {
+            return cipher.update(bytes, offset, length, bytes, offset);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e); // CTR output is never longer than its input
+        }
+    }
+
+    /**
+     * Check the MAC of the decrypted file. An empty file has nothing to check.
+     */
+    @Override
+    protected void verify(@NotNull Path file) throws IOException {
+        if (this.isDirectory() || size == 0) {
+            return;
+        }
+        assert aesKey != null && nonce != null && mac != null;
+        final byte[] actual;
+        try (InputStream in = Files.newInputStream(file)) {
+            actual = MegaCrypto.computeMac(aesKey, nonce, in);
+        }
+        if (!MessageDigest.isEqual(actual, mac)) {
+            throw new IOException("MAC of Mega file " + this.name + " (" + this.handle + ") doesn't match its key, "
+                                      + "the download is corrupt");
+        }
+    }
+
+    /**
+     * Unfinished downloads are named after the handle, since names in a folder needn't be unique.
+     */
+    @Override
+    protected @NotNull String getPartialName() {
+        return "mega-" + this.handle;
+    }
+
+    /**
+     * Gets a URL to download the encrypted contents of a file from.
+     */
+    @FunctionalInterface
+    interface DownloadUrlSource {
+        @NotNull String get() throws IOException;
+    }
+
+    /**
+     * Decrypts a stream with a CTR cipher, in place in the caller's buffer.
+     */
+    private static final class DecryptingInputStream extends FilterInputStream {
+        private final @NotNull Cipher cipher;
+
+        DecryptingInputStream(@NotNull InputStream in, @NotNull Cipher cipher) {
+            super(in);
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                decrypt(cipher, b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] skipped = new byte[(int) Math.min(n, 8192)];
+            int read = read(skipped, 0, skipped.length);
+            return Math.max(read, 0); // skipped bytes still have to go through the cipher
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
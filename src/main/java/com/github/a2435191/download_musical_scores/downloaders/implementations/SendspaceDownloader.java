@@ -4,6 +4,7 @@ import com.github.a2435191.download_musical_scores.downloaders.AbstractDirectLin
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
 import com.github.a2435191.download_musical_scores.filetree.URLFileNodeWithKnownName;
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jsoup.Jsoup;
@@ -18,6 +19,7 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.HexFormat;
 import java.util.Map;
 
@@ -25,8 +27,8 @@ import java.util.Map;
 public final class SendspaceDownloader extends AbstractDirectLinkFileDownloader {
 
     private static final String SENDSPACE_API_VERSION = "1.2";
-    private @Nullable String sessionToken = null;
-    private @Nullable String sessionKey = null;
+    private volatile @Nullable String sessionToken = null;
+    private volatile @Nullable String sessionKey = null;
 
     public SendspaceDownloader(int timeoutSeconds) {
         super(timeoutSeconds);
@@ -48,8 +50,8 @@ public final class SendspaceDownloader extends AbstractDirectLinkFileDownloader
             .GET()
             .uri(URI.create(sb.toString()))
             .build();
-        HttpResponse<String> response = this.client.sendAsync(
-            request, HttpResponse.BodyHandlers.ofString()).join();
+        HttpResponse<String> response = HttpUtils.send(
+            this.client, request, HttpResponse.BodyHandlers.ofString());
 
         BadRequestStatusException.raiseOnStatus(response);
 
@@ -100,4 +102,12 @@ public final class SendspaceDownloader extends AbstractDirectLinkFileDownloader
 
         return new URLFileNodeWithKnownName(download.attr("name"), download.attr("url"));
     }
+
+    /**
+     * The direct link is tied to the API session it was requested with.
+     */
+    @Override
+    protected @NotNull Duration getResolutionTtl() {
+        return Duration.ofMinutes(5);
+    }
 }
@@ -2,10 +2,13 @@ package com.github.a2435191.download_musical_scores.downloaders.implementations;
 
 import com.github.a2435191.download_musical_scores.downloaders.AbstractDirectLinkFileDownloader;
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
-import com.github.a2435191.download_musical_scores.filetree.AbstractFileNodeStreamDownloader;
+import com.github.a2435191.download_musical_scores.filetree.RemoteValidators;
+import com.github.a2435191.download_musical_scores.filetree.URLFileNode;
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
 import com.github.a2435191.download_musical_scores.util.NoSuchElementException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
@@ -14,10 +17,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Objects;
@@ -63,9 +66,7 @@ public final class StackStorageDownloader extends AbstractDirectLinkFileDownload
             .GET()
             .uri(URI.create(url))
             .build();
-        HttpResponse<String> htmlResponse = this.client
-            .sendAsync(mainPageRequest, HttpResponse.BodyHandlers.ofString())
-            .join();
+        HttpResponse<String> htmlResponse = HttpUtils.send(this.client, mainPageRequest, HttpResponse.BodyHandlers.ofString());
         BadRequestStatusException.raiseOnStatus(htmlResponse);
 
 
@@ -95,25 +96,21 @@ public final class StackStorageDownloader extends AbstractDirectLinkFileDownload
         String downloadID = URI.create(url).getPath().split("/")[2]; // because [0] is ""
         String directDownloadURL = "https://riemer46.stackstorage.com/public-share/" + downloadID + "/download/";
 
-        final HttpClient client = HttpClient.newHttpClient();
-        return new AbstractFileNodeStreamDownloader() {
+        return new URLFileNode(directDownloadURL) {
 
             @Override
             public @NotNull FileInfo download() throws IOException {
+                return download(0, null);
+            }
 
-                HttpRequest directDownloadRequest = HttpRequest.newBuilder()
+            @Override
+            protected @NotNull FileInfo download(long offset, @Nullable String validator) throws IOException {
+                HttpRequest.Builder directDownloadRequestBuilder = HttpRequest.newBuilder()
                     .POST(HttpRequest.BodyPublishers.ofString(data))
                     .uri(URI.create(directDownloadURL))
                     .header("Cookie", "stackShareSession=" + stackShareSession)
-                    .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8")
-                    .build();
-                HttpResponse<InputStream> response = client.sendAsync(
-                        directDownloadRequest,
-                        HttpResponse.BodyHandlers.ofInputStream()
-                    )
-                    .join();
-
-                BadRequestStatusException.raiseOnStatus(response);
+                    .header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+                HttpResponse<InputStream> response = sendResumable(directDownloadRequestBuilder, offset, validator);
 
                 Optional<String> contentDisposition = response.headers()
                     .firstValue("Content-Disposition");
@@ -124,8 +121,17 @@ public final class StackStorageDownloader extends AbstractDirectLinkFileDownload
 
                 String fileName = getCookiesFromString(contentDisposition.get()).get("filename");
 
-                return new FileInfo(response.body(), fileName);
+                return new FileInfo(response.body(), fileName, getResponseOffset(response), getValidator(response),
+                    RemoteValidators.of(response));
             }
         };
     }
+
+    /**
+     * The direct link is tied to the session of the share page it was scraped from.
+     */
+    @Override
+    protected @NotNull Duration getResolutionTtl() {
+        return Duration.ofMinutes(5);
+    }
 }
@@ -4,6 +4,7 @@ import com.github.a2435191.download_musical_scores.downloaders.AbstractDirectLin
 import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
 import com.github.a2435191.download_musical_scores.filetree.URLFileNodeWithKnownName;
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONObject;
 import org.jsoup.nodes.Document;
@@ -11,10 +12,15 @@ import org.jsoup.nodes.Document;
 import java.net.URI;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.Map;
 
 public final class WeTransferDownloader extends AbstractDirectLinkFileDownloader {
     private static final String URL_TO_GET_DOWNLOAD_LINK_FORMAT = "https://wetransfer.com/api/v4/transfers/%s/download";
+    /**
+     * Transfers are usually one big archive, so download it over several connections.
+     */
+    private static final int DOWNLOAD_SEGMENTS = 4;
 
     public WeTransferDownloader(int timeoutSeconds) {
         super(timeoutSeconds);
@@ -29,7 +35,7 @@ public final class WeTransferDownloader extends AbstractDirectLinkFileDownloader
             .uri(URI.create(url))
             .build();
 
-        HttpResponse<Void> response = client.sendAsync(initialRequest, HttpResponse.BodyHandlers.discarding()).join();
+        HttpResponse<Void> response = HttpUtils.send(client, initialRequest, HttpResponse.BodyHandlers.discarding());
 
         BadRequestStatusException.raiseOnStatus(response);
 
@@ -52,11 +58,11 @@ public final class WeTransferDownloader extends AbstractDirectLinkFileDownloader
             .build();
 
 
-        HttpResponse<String> downloadLinkResponse = client.sendAsync(
-                downloadLinkRequest,
-                HttpResponse.BodyHandlers.ofString()
-            )
-            .join();
+        HttpResponse<String> downloadLinkResponse = HttpUtils.send(
+            client,
+            downloadLinkRequest,
+            HttpResponse.BodyHandlers.ofString()
+        );
 
 
         BadRequestStatusException.raiseOnStatus(downloadLinkResponse);
@@ -66,6 +72,14 @@ public final class WeTransferDownloader extends AbstractDirectLinkFileDownloader
         String[] urlPathArray = downloadURL.getPath().split("/");
         String fileName = urlPathArray[urlPathArray.length - 1];
 
-        return new URLFileNodeWithKnownName(fileName, directDownloadLink);
+        return new URLFileNodeWithKnownName(fileName, directDownloadLink).setSegments(DOWNLOAD_SEGMENTS);
+    }
+
+    /**
+     * The direct link of a transfer is signed and expires quickly.
+     */
+    @Override
+    protected @NotNull Duration getResolutionTtl() {
+        return Duration.ofMinutes(5);
     }
 }
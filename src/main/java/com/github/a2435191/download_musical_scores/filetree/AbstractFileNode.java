@@ -1,16 +1,21 @@
 package com.github.a2435191.download_musical_scores.filetree;
 
+import com.github.a2435191.download_musical_scores.util.FileUtils;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.UnmodifiableView;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * Represents a mutable node in a tree of files to be downloaded from HTTP
@@ -38,6 +43,54 @@ public abstract class AbstractFileNode {
      */
     public abstract @NotNull Path saveToDisk(@NotNull Path parentDir) throws IOException;
 
+    /**
+     * Like {@link #saveToDisk(Path)}, also feeding the contents of the saved file to <code>digest</code>.
+     *
+     * @param parentDir See {@link #saveToDisk(Path)}.
+     * @param digest    Digest to update with the file's bytes, in order. Left untouched for directories.
+     *                  <code>null</code> to skip hashing.
+     * @return See {@link #saveToDisk(Path)}.
+     * @throws IOException if the download fails
+     * @implNote The default implementation reads the file back after {@link #saveToDisk(Path)}.
+     * Implementations that see the bytes as they are written should override it and hash them then.
+     */
+    public @NotNull Path saveToDisk(@NotNull Path parentDir, @Nullable MessageDigest digest) throws IOException {
+        Path saved = this.saveToDisk(parentDir);
+        if (digest != null && Files.isRegularFile(saved)) {
+            FileUtils.updateDigest(saved, Long.MAX_VALUE, digest);
+        }
+        return saved;
+    }
+
+    /**
+     * Download the file into a zip archive if this is a file; otherwise, add a directory entry.
+     *
+     * @param zip         Archive to write to. Its current entry is closed before this method returns.
+     * @param parentEntry Entry name of the parent directory inside the archive: empty or ending with <code>/</code>.
+     * @return The entry name of this node. For a directory, it ends with <code>/</code> and can be passed as
+     * <code>parentEntry</code> for its children.
+     * @throws IOException if the download fails
+     * @apiNote Like {@link #saveToDisk(Path)}, this does <b>not</b> take into account the structure of the tree.
+     * @implNote The default implementation downloads with {@link #saveToDisk(Path)} into a temporary directory,
+     * then copies the result into the archive. Implementations that can stream their data should override it.
+     */
+    public @NotNull String saveToZip(@NotNull ZipOutputStream zip, @NotNull String parentEntry) throws IOException {
+        Path tempDir = Files.createTempDirectory("download-musical-scores");
+        try {
+            Path saved = this.saveToDisk(tempDir);
+            if (this.isDirectory()) { // children are added by the caller
+                String entry = parentEntry + saved.getFileName() + "/";
+                zip.putNextEntry(new ZipEntry(entry));
+                zip.closeEntry();
+                return entry;
+            }
+            FileUtils.addToZip(saved, zip, parentEntry);
+            return parentEntry + saved.getFileName() + (Files.isDirectory(saved) ? "/" : "");
+        } finally {
+            FileUtils.delete(tempDir);
+        }
+    }
+
     /**
      * Helper method to determine if this node represents a directory or file.
      *
@@ -1,24 +1,384 @@
 package com.github.a2435191.download_musical_scores.filetree;
 
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.FileUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public abstract class AbstractFileNodeStreamDownloader extends AbstractFileNode {
+    /**
+     * Suffix of the file an unfinished resumable download is written to.
+     *
+     * @see #getPartialName()
+     */
+    public static final String PART_SUFFIX = ".part";
+    /**
+     * Suffix of the file next to a {@link #PART_SUFFIX} file that holds the validator
+     * (<code>ETag</code> or <code>Last-Modified</code>) of the remote file the partial data came from.
+     */
+    public static final String PART_VALIDATOR_SUFFIX = ".part.validator";
+    /**
+     * Size of the buffer used to copy a download to disk. Memory use per transfer is bounded by this,
+     * no matter how large the file is.
+     */
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    /**
+     * How many times a resumable download is attempted before giving up.
+     */
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+
+    /**
+     * Copy everything from <code>in</code> to <code>out</code>, starting at its current position,
+     * through a fixed-size buffer.
+     *
+     * @param in     Source stream. Not closed by this method.
+     * @param out    Destination channel.
+     * @param digest Digest to update with every byte copied, or <code>null</code>.
+     * @return The number of bytes copied.
+     * @throws IOException if reading or writing fails
+     */
+    private static long copy(@NotNull InputStream in, @NotNull FileChannel out, @Nullable MessageDigest digest)
+        throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        long total = 0;
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            if (digest != null) {
+                digest.update(buffer.array(), 0, buffer.limit());
+            }
+            while (buffer.hasRemaining()) {
+                total += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Helper method to determine if a path is an unfinished resumable download (or its validator).
+     *
+     * @param path Any path
+     * @return true if the path was written by a resumable download that hasn't finished
+     */
+    public static boolean isPartialDownload(@NotNull Path path) {
+        String fileName = path.getFileName().toString();
+        return fileName.endsWith(PART_SUFFIX) || fileName.endsWith(PART_VALIDATOR_SUFFIX);
+    }
+
     @Override
     public final @NotNull Path saveToDisk(@NotNull Path parentDir) throws IOException {
-        FileInfo info = this.download();
-        Path fullPath = parentDir.resolve(info.name());
+        return this.saveToDisk(parentDir, null);
+    }
+
+    /**
+     * Hashes the bytes as they are written. Only a resumed download reads back what an earlier attempt left on disk,
+     * and only a segmented download (whose ranges arrive out of order) reads back the whole file.
+     */
+    @Override
+    public final @NotNull Path saveToDisk(@NotNull Path parentDir, @Nullable MessageDigest digest) throws IOException {
+        Path saved = this.save(parentDir, digest).path();
+        assert saved != null;
+        return saved;
+    }
+
+    /**
+     * Like {@link #saveToDisk(Path, MessageDigest)}, but if <code>previous</code> can be revalidated, the file is only
+     * downloaded if it has changed since, replacing the copy on disk.
+     *
+     * @param parentDir See {@link #saveToDisk(Path)}.
+     * @param digest    See {@link #saveToDisk(Path, MessageDigest)}. Left untouched if the file hasn't changed.
+     * @param previous  Validators of the copy on disk, see {@link Saved#validators()}.
+     *                  {@link RemoteValidators#NONE} to download unconditionally.
+     * @return Where the file was saved, and its validators.
+     * @throws IOException if the download fails. The copy on disk is left as it was.
+     */
+    public final @NotNull Saved saveToDiskIfModified(@NotNull Path parentDir,
+                                                     @Nullable MessageDigest digest,
+                                                     @NotNull RemoteValidators previous) throws IOException {
+        if (this.isDirectory() || !previous.canRevalidate()) {
+            return this.save(parentDir, digest);
+        }
+        @Nullable FileInfo info = this.downloadIfModified(previous);
+        if (info == null) {
+            return new Saved(null, previous);
+        }
+        return this.replace(parentDir, info, digest);
+    }
+
+    /**
+     * Like {@link #saveToDisk(Path, MessageDigest)}, but a file already on disk under the same name is replaced
+     * (e.g. a copy that has been damaged since), instead of failing with
+     * {@link FileAlreadyExistsException}. The download is written to a temporary file first, so the copy on disk is
+     * only replaced once the whole file has arrived.
+     *
+     * @param parentDir See {@link #saveToDisk(Path)}.
+     * @param digest    See {@link #saveToDisk(Path, MessageDigest)}.
+     * @return Where the file was saved, and its validators.
+     * @throws IOException if the download fails. The copy on disk is left as it was.
+     */
+    public final @NotNull Saved saveToDiskReplacing(@NotNull Path parentDir,
+                                                    @Nullable MessageDigest digest) throws IOException {
+        if (this.isDirectory()) {
+            return this.save(parentDir, digest);
+        }
+        return this.replace(parentDir, this.download(), digest);
+    }
+
+    /**
+     * Write a whole download to a temporary file in <code>parentDir</code>, then atomically move it over whatever
+     * has its name.
+     */
+    private @NotNull Saved replace(@NotNull Path parentDir, @NotNull FileInfo info, @Nullable MessageDigest digest)
+        throws IOException {
+        Path tempPath = Files.createTempFile(parentDir, "refresh-", PART_SUFFIX);
+        try {
+            try (InputStream data = info.data();
+                 FileChannel out = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                copy(data, out, digest);
+            }
+            this.verify(tempPath);
+            Path fullPath = parentDir.resolve(info.name());
+            Files.move(tempPath, fullPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new Saved(fullPath, info.validators());
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private @NotNull Saved save(@NotNull Path parentDir, @Nullable MessageDigest digest) throws IOException {
         if (this.isDirectory()) {
-            Files.createDirectory(fullPath);
-        } else {
-            Files.createFile(fullPath);
-            Files.write(fullPath, info.data().readAllBytes());
+            FileInfo info = this.download();
+            info.data().close();
+            Path fullPath = parentDir.resolve(info.name());
+            Files.createDirectories(fullPath); // may be left over from an interrupted run
+            return new Saved(fullPath, RemoteValidators.NONE);
+        }
+
+        @Nullable String partialName = this.getPartialName();
+        if (partialName == null) {
+            FileInfo info = this.download();
+            Path fullPath = parentDir.resolve(info.name());
+            try (InputStream data = info.data();
+                 FileChannel out = FileChannel.open(fullPath,
+                     StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                copy(data, out, digest);
+            }
+            try {
+                this.verify(fullPath);
+            } catch (IOException e) {
+                Files.delete(fullPath);
+                throw e;
+            }
+            return new Saved(fullPath, info.validators());
+        }
+        return saveToDiskResumable(parentDir, partialName, digest);
+    }
+
+    /**
+     * Streams the download straight into the archive, without touching the disk.
+     */
+    @Override
+    public final @NotNull String saveToZip(@NotNull ZipOutputStream zip, @NotNull String parentEntry) throws IOException {
+        FileInfo info = this.download();
+        try (InputStream data = info.data()) {
+            if (this.isDirectory()) {
+                String entry = parentEntry + info.name() + "/";
+                zip.putNextEntry(new ZipEntry(entry));
+                zip.closeEntry();
+                return entry;
+            }
+            String entry = parentEntry + info.name();
+            zip.putNextEntry(new ZipEntry(entry));
+            data.transferTo(zip);
+            zip.closeEntry();
+            return entry;
+        }
+    }
+
+    /**
+     * Download into <code>partialName + PART_SUFFIX</code>, picking up where an earlier attempt (possibly in a
+     * previous run) left off, and rename the file once it's complete.
+     */
+    private @NotNull Saved saveToDiskResumable(@NotNull Path parentDir,
+                                               @NotNull String partialName,
+                                               @Nullable MessageDigest digest) throws IOException {
+        final Path partPath = parentDir.resolve(partialName + PART_SUFFIX);
+        final Path validatorPath = parentDir.resolve(partialName + PART_VALIDATOR_SUFFIX);
+
+        final TargetCheck checkTarget = name -> {
+            Path fullPath = parentDir.resolve(name);
+            if (Files.exists(fullPath)) {
+                // nothing downloaded for this target can be used
+                Files.deleteIfExists(partPath);
+                Files.deleteIfExists(validatorPath);
+                throw new FileAlreadyExistsException(fullPath.toString());
+            }
+        };
+
+        IOException lastException = null;
+        if (!Files.exists(partPath)) {
+            @Nullable FileInfo segmented = this.saveSegmented(partPath, checkTarget);
+            if (segmented != null) {
+                try {
+                    verifyOrDiscard(partPath, validatorPath);
+                    Path fullPath = parentDir.resolve(segmented.name());
+                    checkTarget.check(segmented.name());
+                    Files.move(partPath, fullPath);
+                    if (digest != null) {
+                        FileUtils.updateDigest(fullPath, Long.MAX_VALUE, digest);
+                    }
+                    return new Saved(fullPath, segmented.validators());
+                } catch (FileAlreadyExistsException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastException = e; // try again with a single stream
+                }
+            }
+        }
+
+        for (int attempt = 0; attempt < MAX_RESUME_ATTEMPTS; attempt++) {
+            long offset = Files.exists(partPath) ? Files.size(partPath) : 0;
+            @Nullable String validator = Files.exists(validatorPath) ? Files.readString(validatorPath) : null;
+            if (validator == null) {
+                offset = 0; // no way to check the partial data is still current
+            }
+
+            try {
+                FileInfo info = this.download(offset, validator);
+                try {
+                    checkTarget.check(info.name()); // before reading any of the body
+                } catch (FileAlreadyExistsException e) {
+                    info.data().close();
+                    throw e;
+                }
+                try (InputStream data = info.data();
+                     FileChannel out = FileChannel.open(partPath,
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    if (info.offset() == 0) {
+                        out.truncate(0);
+                    } else if (info.offset() != offset) {
+                        throw new IOException("Asked to resume " + partPath + " at " + offset
+                                                  + " but got data starting at " + info.offset());
+                    }
+                    if (info.validator() == null) {
+                        Files.deleteIfExists(validatorPath);
+                    } else {
+                        Files.writeString(validatorPath, info.validator());
+                    }
+                    if (digest != null) {
+                        digest.reset();
+                        FileUtils.updateDigest(partPath, info.offset(), digest);
+                    }
+                    out.position(info.offset());
+                    copy(data, out, digest);
+                }
+                verifyOrDiscard(partPath, validatorPath);
+
+                Path fullPath = parentDir.resolve(info.name());
+                Files.move(partPath, fullPath);
+                Files.deleteIfExists(validatorPath);
+                return new Saved(fullPath, info.validators());
+            } catch (BadRequestStatusException e) {
+                throw e; // retrying won't change the status code
+            } catch (FileAlreadyExistsException e) {
+                throw e; // nor make room for the file
+            } catch (IOException e) {
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * {@link #verify(Path)} a finished resumable download. If it fails, the partial download is deleted, so that the
+     * next attempt starts over instead of resuming corrupt data.
+     */
+    private void verifyOrDiscard(@NotNull Path partPath, @NotNull Path validatorPath) throws IOException {
+        try {
+            this.verify(partPath);
+        } catch (IOException e) {
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(validatorPath);
+            throw e;
         }
-        return fullPath;
+    }
+
+    /**
+     * Try {@link #downloadSegmented(FileChannel, TargetCheck)} into a new file.
+     * A segmented download that fails leaves holes, so it can't be resumed and its file is deleted.
+     *
+     * @return See {@link #downloadSegmented(FileChannel, TargetCheck)}.
+     */
+    private @Nullable FileInfo saveSegmented(@NotNull Path partPath, @NotNull TargetCheck checkTarget)
+        throws IOException {
+        @Nullable FileInfo info = null;
+        try (FileChannel out = FileChannel.open(partPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            info = this.downloadSegmented(out, checkTarget);
+            return info;
+        } finally {
+            if (info == null) {
+                Files.deleteIfExists(partPath);
+            }
+        }
+    }
+
+    /**
+     * Download the whole file over several connections at once, each writing its own range of <code>out</code>.
+     * Only called for a resumable node (see {@link #getPartialName()}) that has nothing on disk yet.
+     *
+     * @param out         Empty channel to write the file to, with positional writes.
+     * @param checkTarget To be called with the filename before any of the file is downloaded, so that a file that
+     *                    is already on disk isn't downloaded for nothing.
+     * @return The filename and validators, with empty {@link FileInfo#data()} since it has all been written to
+     * <code>out</code>. <code>null</code> if nothing was downloaded because this node or the server doesn't
+     * support segmented downloads. The download then falls back to a single stream.
+     * @throws IOException if the file cannot be downloaded.
+     * @implNote The default implementation does not support segmented downloads.
+     */
+    protected @Nullable FileInfo downloadSegmented(@NotNull FileChannel out, @NotNull TargetCheck checkTarget)
+        throws IOException {
+        return null;
+    }
+
+    /**
+     * Check the contents of a downloaded file, once all of it is on disk and before it gets its final name
+     * (or replaces the copy on disk). A resumable download that fails the check is downloaded again from the start,
+     * up to the usual number of attempts.
+     * <p>
+     * Not called by {@link #saveToZip(ZipOutputStream, String)}, which streams straight into the archive.
+     *
+     * @param file The complete file.
+     * @throws IOException if the contents are wrong, or the file can't be read.
+     * @implNote The default implementation doesn't check anything.
+     */
+    protected void verify(@NotNull Path file) throws IOException {
+    }
+
+    /**
+     * Name (without {@link #PART_SUFFIX}) of the file an unfinished download of this node is kept in.
+     * It must be known before the download starts and stay the same across runs.
+     *
+     * @return The name, or <code>null</code> if this node can't resume downloads,
+     * in which case the file is written directly to its final name.
+     */
+    protected @Nullable String getPartialName() {
+        return null;
     }
 
     /**
@@ -30,6 +390,85 @@ public abstract class AbstractFileNodeStreamDownloader extends AbstractFileNode
      */
     protected abstract @NotNull FileInfo download() throws IOException;
 
-    public record FileInfo(@NotNull InputStream data, @NotNull String name) {
+    /**
+     * Download the file starting from <code>offset</code>, if the remote file still matches <code>validator</code>.
+     * Only called if {@link #getPartialName()} isn't <code>null</code>.
+     *
+     * @param offset    Number of bytes already on disk. <code>0</code> if nothing has been downloaded yet.
+     * @param validator Validator returned with the bytes already on disk, or <code>null</code> if <code>offset</code> is
+     *                  <code>0</code>.
+     * @return {@link FileInfo} whose {@link FileInfo#offset()} is either <code>offset</code> (the download was resumed)
+     * or <code>0</code> (the whole file is being downloaded again).
+     * @throws IOException if the file cannot be downloaded.
+     * @implNote The default implementation ignores <code>offset</code> and always downloads the whole file.
+     */
+    protected @NotNull FileInfo download(long offset, @Nullable String validator) throws IOException {
+        return this.download();
+    }
+
+    /**
+     * Download the whole file, unless it still matches <code>previous</code>.
+     * Only called for a file (not a directory) if {@link RemoteValidators#canRevalidate()}.
+     *
+     * @param previous Validators of the copy on disk.
+     * @return {@link FileInfo} starting at offset <code>0</code>, or <code>null</code> if the file hasn't changed
+     * (e.g. <code>304 Not Modified</code>).
+     * @throws IOException if the file cannot be downloaded.
+     * @implNote The default implementation can't tell and always downloads the file.
+     */
+    protected @Nullable FileInfo downloadIfModified(@NotNull RemoteValidators previous) throws IOException {
+        return this.download();
+    }
+
+    /**
+     * Result of {@link #download()}.
+     *
+     * @param data      Body of the download. Read (and closed) by {@link #saveToDisk(Path)} a chunk at a time,
+     *                  so it should not be buffered in memory by the implementation.
+     * @param name      Filename of the download.
+     * @param offset    Position in the file at which <code>data</code> starts.
+     * @param validator  <code>ETag</code> or <code>Last-Modified</code> value of the remote file, used to resume the
+     *                   download later. <code>null</code> if the server didn't send one.
+     * @param validators Validators of the remote file, used to make a later download conditional,
+     *                   see {@link #downloadIfModified(RemoteValidators)}.
+     */
+    public record FileInfo(@NotNull InputStream data,
+                           @NotNull String name,
+                           long offset,
+                           @Nullable String validator,
+                           @NotNull RemoteValidators validators) {
+        public FileInfo(@NotNull InputStream data, @NotNull String name, long offset, @Nullable String validator) {
+            this(data, name, offset, validator, RemoteValidators.NONE);
+        }
+
+        public FileInfo(@NotNull InputStream data, @NotNull String name) {
+            this(data, name, 0, null);
+        }
+    }
+
+    /**
+     * Checks that a download can be saved under its filename, before its body is read.
+     */
+    @FunctionalInterface
+    protected interface TargetCheck {
+        /**
+         * @param name Filename of the download.
+         * @throws FileAlreadyExistsException if a file of that name is already on disk. The partial download is
+         *                                    deleted.
+         * @throws IOException                if the partial download can't be deleted.
+         */
+        void check(@NotNull String name) throws IOException;
+    }
+
+    /**
+     * Result of {@link #saveToDiskIfModified(Path, MessageDigest, RemoteValidators)}.
+     *
+     * @param path       See {@link #saveToDisk(Path)}. <code>null</code> if the file hasn't changed, in which case
+     *                   nothing was written.
+     * @param validators Validators of the saved file, to pass to a later
+     *                   {@link #saveToDiskIfModified(Path, MessageDigest, RemoteValidators)}.
+     *                   {@link RemoteValidators#NONE} for directories, or if the server didn't send any.
+     */
+    public record Saved(@Nullable Path path, @NotNull RemoteValidators validators) {
     }
 }
@@ -0,0 +1,80 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the server said identifies the version of a file it sent, kept so a later download of the same file can ask
+ * for it only if it has changed (<code>If-None-Match</code> / <code>If-Modified-Since</code>).
+ *
+ * @param eTag          <code>ETag</code> of the file, weak or strong. <code>null</code> if the server didn't send one.
+ * @param lastModified  <code>Last-Modified</code> of the file. <code>null</code> if the server didn't send one.
+ * @param contentLength Size of the whole file in bytes, <code>-1</code> if unknown. Used to check that the copy on
+ *                      disk is still intact before trusting a <code>304</code> for it.
+ */
+public record RemoteValidators(@Nullable String eTag, @Nullable String lastModified, long contentLength) {
+    /**
+     * No validators: a download can't be made conditional.
+     */
+    public static final @NotNull RemoteValidators NONE = new RemoteValidators(null, null, -1);
+    private static final Pattern CONTENT_RANGE_LENGTH_REGEX = Pattern.compile("^bytes \\d+-\\d+/(\\d+)$");
+
+    /**
+     * Get the validators of a response.
+     *
+     * @param response A successful response for the file. For a <code>206</code>, the size of the whole file is taken
+     *                 from <code>Content-Range</code>.
+     * @return A new instance, possibly with every field unknown.
+     */
+    @Contract("_ -> new")
+    public static @NotNull RemoteValidators of(@NotNull HttpResponse<?> response) {
+        long contentLength = -1;
+        Optional<String> contentRange = response.headers().firstValue("Content-Range");
+        if (contentRange.isPresent()) {
+            Matcher matcher = CONTENT_RANGE_LENGTH_REGEX.matcher(contentRange.get());
+            if (matcher.matches()) {
+                contentLength = Long.parseLong(matcher.group(1));
+            }
+        } else {
+            contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        }
+        return new RemoteValidators(
+            response.headers().firstValue("ETag").orElse(null),
+            response.headers().firstValue("Last-Modified").orElse(null),
+            contentLength
+        );
+    }
+
+    /**
+     * Helper method to determine if a request can be made conditional on these validators.
+     *
+     * @return true if there is an <code>ETag</code> or a <code>Last-Modified</code>
+     */
+    public boolean canRevalidate() {
+        return eTag != null || lastModified != null;
+    }
+
+    /**
+     * Make a request conditional: the server answers <code>304</code> if the file still matches these validators.
+     *
+     * @param requestBuilder Builder for a request for the whole file.
+     * @return <code>requestBuilder</code>
+     */
+    @Contract(value = "_ -> param1", mutates = "param1")
+    public @NotNull HttpRequest.Builder addConditionalHeaders(@NotNull HttpRequest.Builder requestBuilder) {
+        if (eTag != null) {
+            requestBuilder.header("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            requestBuilder.header("If-Modified-Since", lastModified); // ignored by servers that check If-None-Match
+        }
+        return requestBuilder;
+    }
+}
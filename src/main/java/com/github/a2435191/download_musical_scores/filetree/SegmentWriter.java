@@ -0,0 +1,105 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes the segments of a segmented download (see {@link AbstractFileNodeStreamDownloader#downloadSegmented(
+ * FileChannel, AbstractFileNodeStreamDownloader.TargetCheck)}) to their offsets in one channel.
+ * <p>
+ * Segments arrive on the HTTP client's threads, which keep delivering data after the download has been given up on.
+ * Once {@link #abort()} returns, no segment writes to the channel again: every later write throws instead, which also
+ * makes the HTTP client hang up on that segment.
+ */
+@ThreadSafe
+public final class SegmentWriter {
+    private final @NotNull FileChannel out;
+    /**
+     * Writes hold the read lock, so they run concurrently; {@link #abort()} takes the write lock to wait for them.
+     */
+    private final @NotNull ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean aborted; // guarded by lock
+
+    /**
+     * @param out Channel to write to, with positional writes. Not closed by this class.
+     */
+    public SegmentWriter(@NotNull FileChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the rest of <code>buffer</code> at <code>position</code>. Meant to be called from a body subscriber.
+     *
+     * @param buffer   Data to write.
+     * @param position Position in the file to write it at.
+     * @return The position just past the written data.
+     * @throws UncheckedIOException if the write fails or the download was aborted.
+     */
+    public long write(@NotNull ByteBuffer buffer, long position) {
+        lock.readLock().lock();
+        try {
+            if (aborted) {
+                throw new UncheckedIOException(new IOException("segmented download was aborted"));
+            }
+            while (buffer.hasRemaining()) {
+                position += out.write(buffer, position);
+            }
+            return position;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stop every segment from writing. Waits for writes already in progress to finish.
+     */
+    public void abort() {
+        lock.writeLock().lock();
+        try {
+            aborted = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Wait for every segment to finish. If one of them fails, the others are {@link #abort() aborted}.
+     *
+     * @param segments Futures that complete once their segment has been written, failing with an
+     *                 {@link UncheckedIOException} if it couldn't be.
+     * @throws IOException the first failure of a segment.
+     */
+    public void awaitAll(@NotNull List<? extends @NotNull CompletableFuture<?>> segments) throws IOException {
+        // allOf alone would only fail once every other segment had finished too
+        CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        for (CompletableFuture<?> segment : segments) {
+            segment.whenComplete((ignored, ex) -> {
+                if (ex != null) {
+                    firstFailure.completeExceptionally(ex);
+                }
+            });
+        }
+        try {
+            CompletableFuture.anyOf(CompletableFuture.allOf(segments.toArray(new CompletableFuture[0])), firstFailure)
+                .join();
+        } catch (CompletionException e) {
+            abort();
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -1,18 +1,32 @@
 package com.github.a2435191.download_musical_scores.filetree;
 
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpClients;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public abstract class URLFileNode extends AbstractFileNodeStreamDownloader {
 
+    private static final Pattern CONTENT_RANGE_REGEX = Pattern.compile("^bytes (\\d+)-\\d+/(?:\\d+|\\*)$");
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final int NOT_MODIFIED = 304;
+
     /**
-     * Client to make HTTP requests with
+     * Client to make HTTP requests with, shared by every node. See {@link HttpClients}.
      */
-    protected final HttpClient client = HttpClient.newBuilder()
-        .followRedirects(HttpClient.Redirect.ALWAYS)
-        .build();
+    protected final HttpClient client = HttpClients.get(HttpClient.Redirect.ALWAYS, null);
 
 
     protected final @Nullable URI url;
@@ -33,4 +47,118 @@ public abstract class URLFileNode extends AbstractFileNodeStreamDownloader {
         this.url = null;
     }
 
+    /**
+     * Get the position in the file at which a response body starts.
+     *
+     * @param response Response to a (possibly ranged) request.
+     * @return The first byte position of a <code>206</code> response's <code>Content-Range</code>,
+     * <code>0</code> otherwise.
+     * @throws BadRequestStatusException if a <code>206</code> response has no usable <code>Content-Range</code>.
+     */
+    protected static long getResponseOffset(@NotNull HttpResponse<?> response) throws BadRequestStatusException {
+        if (response.statusCode() != PARTIAL_CONTENT) {
+            return 0;
+        }
+        Optional<String> contentRange = response.headers().firstValue("Content-Range");
+        Matcher matcher = CONTENT_RANGE_REGEX.matcher(contentRange.orElse(""));
+        if (!matcher.matches()) {
+            throw new BadRequestStatusException(response);
+        }
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * Get a strong validator that identifies the current version of the remote file.
+     *
+     * @param response Response for the file.
+     * @return The <code>ETag</code> if it's strong, otherwise <code>Last-Modified</code>.
+     * <code>null</code> if neither is usable in <code>If-Range</code>.
+     */
+    protected static @Nullable String getValidator(@NotNull HttpResponse<?> response) {
+        Optional<String> eTag = response.headers().firstValue("ETag");
+        if (eTag.isPresent() && !eTag.get().startsWith("W/")) {
+            return eTag.get();
+        }
+        return response.headers().firstValue("Last-Modified").orElse(null);
+    }
+
+    /**
+     * Send a request for the file, asking for the bytes from <code>offset</code> onwards if there is a validator to
+     * check them against. Servers that don't support ranges, or whose file has changed, send the whole file instead.
+     *
+     * @param requestBuilder Builder for a request for the whole file.
+     * @param offset         See {@link AbstractFileNodeStreamDownloader#download(long, String)}.
+     * @param validator      See {@link AbstractFileNodeStreamDownloader#download(long, String)}.
+     * @return A successful response. See {@link #getResponseOffset(HttpResponse)} for where its body starts.
+     * @throws BadRequestStatusException if the status code is not <code>2xx</code>.
+     * @throws IOException                if the request fails.
+     */
+    protected @NotNull HttpResponse<InputStream> sendResumable(@NotNull HttpRequest.Builder requestBuilder,
+                                                               long offset,
+                                                               @Nullable String validator) throws IOException {
+        if (offset > 0 && validator != null) {
+            HttpRequest rangeRequest = requestBuilder.copy()
+                .header("Range", "bytes=" + offset + "-")
+                .header("If-Range", validator)
+                .build();
+            HttpResponse<InputStream> response = HttpUtils.send(
+                client,
+                rangeRequest,
+                HttpResponse.BodyHandlers.ofInputStream()
+            );
+            if (response.statusCode() != RANGE_NOT_SATISFIABLE) {
+                BadRequestStatusException.raiseOnStatus(response);
+                return response;
+            }
+            // the partial file is longer than the remote one, start over
+            response.body().close();
+        }
+
+        HttpResponse<InputStream> response = HttpUtils.send(
+            client,
+            requestBuilder.build(),
+            HttpResponse.BodyHandlers.ofInputStream()
+        );
+        BadRequestStatusException.raiseOnStatus(response);
+        return response;
+    }
+
+    /**
+     * Send a request for the whole file, unless it still matches <code>previous</code>.
+     *
+     * @param requestBuilder Builder for a request for the whole file.
+     * @param previous       See {@link AbstractFileNodeStreamDownloader#downloadIfModified(RemoteValidators)}.
+     * @return A successful response, or <code>null</code> if the server answered <code>304 Not Modified</code>.
+     * @throws BadRequestStatusException if the status code is neither <code>2xx</code> nor <code>304</code>.
+     * @throws IOException                if the request fails.
+     */
+    protected @Nullable HttpResponse<InputStream> sendConditional(@NotNull HttpRequest.Builder requestBuilder,
+                                                                  @NotNull RemoteValidators previous)
+        throws IOException {
+        HttpResponse<InputStream> response = HttpUtils.send(
+            client,
+            previous.addConditionalHeaders(requestBuilder.copy()).build(),
+            HttpResponse.BodyHandlers.ofInputStream()
+        );
+        if (response.statusCode() == NOT_MODIFIED) {
+            response.body().close();
+            return null;
+        }
+        BadRequestStatusException.raiseOnStatus(response);
+        return response;
+    }
+
+    /**
+     * By default, unfinished downloads are named after a hash of {@link #url}.
+     *
+     * @return A name derived from {@link #url}, or <code>null</code> if there is no url.
+     */
+    @Override
+    protected @Nullable String getPartialName() {
+        if (url == null) {
+            return null;
+        }
+        return "download-" + Integer.toUnsignedString(url.toString().hashCode(), Character.MAX_RADIX);
+    }
+
 }
@@ -2,21 +2,41 @@ package com.github.a2435191.download_musical_scores.filetree;
 
 import com.github.a2435191.download_musical_scores.reddit.RedditClient;
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
+import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * For the common case in which the filename is known ahead of download time.
  */
 public class URLFileNodeWithKnownName extends URLFileNode {
 
+    /**
+     * Segments are never made smaller than this; small files are downloaded with a single stream.
+     */
+    private static final long MIN_SEGMENT_SIZE = 4L * 1024 * 1024;
+    private static final Pattern PROBE_CONTENT_RANGE_REGEX = Pattern.compile("^bytes 0-0/(\\d+)$");
+    private static final int PARTIAL_CONTENT = 206;
+
     private final @NotNull String name;
+    private int segments = 1;
+    private long size = -1;
 
     public URLFileNodeWithKnownName(@NotNull String name, @Nullable URI url) {
         super(url);
@@ -32,23 +52,175 @@ public class URLFileNodeWithKnownName extends URLFileNode {
         this.name = name;
     }
 
+    /**
+     * Opt in to segmented downloads: if the server supports ranges, large files are split into
+     * <code>segments</code> ranges that are downloaded concurrently.
+     *
+     * @param segments Maximum number of concurrent connections for this file. <code>1</code> (the default) disables
+     *                 segmented downloads.
+     * @return <code>this</code>
+     */
+    @Contract(value = "_ -> this", mutates = "this")
+    public @NotNull URLFileNodeWithKnownName setSegments(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        this.segments = segments;
+        return this;
+    }
+
+    /**
+     * Tell the node how big its file is, if the host's metadata says so, so that a file too small to split isn't
+     * probed for segmented downloads.
+     *
+     * @param size Size of the file in bytes, <code>-1</code> (the default) if unknown.
+     * @return <code>this</code>
+     */
+    @Contract(value = "_ -> this", mutates = "this")
+    public @NotNull URLFileNodeWithKnownName setSize(long size) {
+        this.size = size;
+        return this;
+    }
+
+    private int getSegmentCount(long length) {
+        return (int) Math.min(this.segments, length / MIN_SEGMENT_SIZE);
+    }
+
+    private @NotNull HttpRequest.Builder newRequestBuilder() {
+        return HttpRequest.newBuilder()
+            .uri(url)
+            .header("User-Agent", RedditClient.USER_AGENT)
+            .GET();
+    }
+
     @Override
     public @NotNull FileInfo download() throws IOException {
+        return download(0, null);
+    }
+
+    @Override
+    protected @NotNull FileInfo download(long offset, @Nullable String validator) throws IOException {
         if (this.isDirectory()) {
             return new FileInfo(InputStream.nullInputStream(), this.name);
         }
-        HttpRequest request = HttpRequest.newBuilder()
-            .uri(url)
-            .header("User-Agent", RedditClient.USER_AGENT)
-            .GET()
-            .build();
 
-        HttpResponse<InputStream> response = client.sendAsync(
-            request,
+        HttpResponse<InputStream> response = sendResumable(newRequestBuilder(), offset, validator);
+        return new FileInfo(response.body(), this.name, getResponseOffset(response), getValidator(response),
+            RemoteValidators.of(response));
+    }
+
+    @Override
+    protected @Nullable FileInfo downloadIfModified(@NotNull RemoteValidators previous) throws IOException {
+        @Nullable HttpResponse<InputStream> response = sendConditional(newRequestBuilder(), previous);
+        if (response == null) {
+            return null;
+        }
+        return new FileInfo(response.body(), this.name, 0, getValidator(response), RemoteValidators.of(response));
+    }
+
+    /**
+     * Probe the file with a one-byte range request. If the server answers with its total size and the file is big
+     * enough, fetch up to {@link #setSegments(int) segments} ranges concurrently and write each one at its offset.
+     * If the {@link #setSize(long) size} is known to be too small to split, there is no probe.
+     */
+    @Override
+    protected @Nullable FileInfo downloadSegmented(@NotNull FileChannel out, @NotNull TargetCheck checkTarget)
+        throws IOException {
+        if (this.segments < 2 || this.url == null || this.isDirectory()) {
+            return null;
+        }
+        if (this.size >= 0 && getSegmentCount(this.size) < 2) {
+            return null;
+        }
+        checkTarget.check(this.name);
+
+        HttpResponse<InputStream> probe = HttpUtils.send(
+            client,
+            newRequestBuilder().header("Range", "bytes=0-0").build(),
             HttpResponse.BodyHandlers.ofInputStream()
-        ).join();
-        BadRequestStatusException.raiseOnStatus(response);
-        return new FileInfo(response.body(), this.name);
+        );
+        probe.body().close();
+        BadRequestStatusException.raiseOnStatus(probe);
+        if (probe.statusCode() != PARTIAL_CONTENT) {
+            return null; // ranges not supported
+        }
+        Matcher matcher = PROBE_CONTENT_RANGE_REGEX.matcher(probe.headers().firstValue("Content-Range").orElse(""));
+        if (!matcher.matches()) {
+            return null; // unknown length
+        }
+        final long length = Long.parseLong(matcher.group(1));
+        final int count = getSegmentCount(length);
+        if (count < 2) {
+            return null;
+        }
+        final @Nullable String validator = getValidator(probe);
+        final long segmentSize = (length + count - 1) / count;
+
+        final SegmentWriter writer = new SegmentWriter(out);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long end = Math.min(length, start + segmentSize) - 1;
+            futures.add(downloadSegment(writer, start, end, validator));
+        }
+        writer.awaitAll(futures);
+        return new FileInfo(InputStream.nullInputStream(), this.name, 0, validator, RemoteValidators.of(probe));
+    }
+
+    /**
+     * Download bytes <code>start</code> to <code>end</code> (inclusive), writing them with <code>writer</code> as
+     * they arrive.
+     */
+    private @NotNull CompletableFuture<Void> downloadSegment(@NotNull SegmentWriter writer,
+                                                             long start,
+                                                             long end,
+                                                             @Nullable String validator) {
+        HttpRequest.Builder requestBuilder = newRequestBuilder()
+            .header("Range", "bytes=" + start + "-" + end);
+        if (validator != null) {
+            requestBuilder.header("If-Range", validator);
+        }
+
+        final long[] position = {start};
+        HttpResponse.BodyHandler<Void> handler = responseInfo -> {
+            if (responseInfo.statusCode() != PARTIAL_CONTENT) {
+                // don't read a whole file we didn't ask for, just hang up
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), in -> {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            }
+            return HttpResponse.BodySubscribers.ofByteArrayConsumer((Optional<byte[]> chunk) -> {
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                position[0] = writer.write(ByteBuffer.wrap(chunk.get()), position[0]);
+            });
+        };
+
+        return HttpUtils.sendAsync(client, requestBuilder.build(), handler).thenAccept(response -> {
+            if (response.statusCode() != PARTIAL_CONTENT) {
+                throw new UncheckedIOException(new BadRequestStatusException(response));
+            }
+            if (position[0] != end + 1) {
+                throw new UncheckedIOException(new IOException(
+                    "Segment " + start + "-" + end + " of " + url + " ended early at " + position[0]));
+            }
+        });
+    }
+
+    /**
+     * Unfinished downloads are named after the (known) filename.
+     *
+     * @return the filename
+     */
+    @Override
+    protected @NotNull String getPartialName() {
+        return this.name;
     }
 
-}
\ No newline at end of file
+}
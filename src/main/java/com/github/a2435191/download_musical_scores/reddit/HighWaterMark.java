@@ -0,0 +1,55 @@
+package com.github.a2435191.download_musical_scores.reddit;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The <code>created_utc</code> of the newest post that has been processed, kept in a file so that the next run
+ * only has to fetch newer posts (see {@link SubredditStream#SubredditStream(String, Long)}). Links of older posts that
+ * failed to download are retried from a {@link com.github.a2435191.download_musical_scores.FailedLinks} file instead.
+ * <p>
+ * The file holds the timestamp as decimal text and is replaced atomically, so it's either the old or the new value
+ * after a crash.
+ */
+public final class HighWaterMark {
+    private HighWaterMark() {
+    }
+
+    /**
+     * Read a high-water mark.
+     *
+     * @param path File the mark is kept in.
+     * @return The timestamp, in seconds since the epoch. <code>null</code> if the file doesn't exist.
+     * @throws IOException if the file can't be read or doesn't hold a timestamp.
+     */
+    public static @Nullable Long read(@NotNull Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        String text = Files.readString(path, StandardCharsets.UTF_8).strip();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("not a timestamp in " + path + ": " + text, e);
+        }
+    }
+
+    /**
+     * Replace a high-water mark.
+     *
+     * @param path      File the mark is kept in.
+     * @param timestamp The new timestamp, in seconds since the epoch.
+     * @throws IOException if the file can't be written.
+     */
+    public static void write(@NotNull Path path, long timestamp) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(temp, timestamp + "\n", StandardCharsets.UTF_8);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.a2435191.download_musical_scores.reddit;
+
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Wraps a {@link SubredditStream}, fetching its next pages on a background thread while the current one is processed.
+ * <p>
+ * Up to <code>depth</code> pages are buffered. Pages come out in the same order, with the same exceptions,
+ * as they would from {@link SubredditStream#getNextPostData()}. After a {@link BadRequestStatusException} the
+ * background thread waits for the next call to {@link #getNextPostData()} before trying again, so callers can still
+ * back off (e.g. on <code>429</code>) before the request is retried.
+ */
+@ThreadSafe
+public final class PrefetchingSubredditStream implements AutoCloseable {
+    /**
+     * Default number of pages fetched ahead.
+     */
+    public static final int DEFAULT_DEPTH = 2;
+
+    private final @NotNull SubredditStream stream;
+    private final @NotNull BlockingQueue<@NotNull Page> pages;
+    private final @NotNull Semaphore retryPermits = new Semaphore(0);
+    private final @NotNull Thread producer;
+    private volatile boolean isDone = false;
+    private boolean lastPageFailed = false; // only touched by the consumer
+
+    /**
+     * Start prefetching.
+     *
+     * @param stream Stream to fetch pages from. Must not be used by anything else afterwards.
+     * @param depth  Maximum number of pages fetched ahead of the consumer.
+     */
+    public PrefetchingSubredditStream(@NotNull SubredditStream stream, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.stream = stream;
+        this.pages = new ArrayBlockingQueue<>(depth);
+        this.producer = new Thread(this::produce, "pushshift-prefetch");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    private void produce() {
+        try {
+            while (!stream.isDone()) {
+                Page page;
+                try {
+                    RedditPostInfo[] posts = stream.getNextPostData();
+                    page = new Page(posts, null, null, stream.isDone());
+                } catch (BadRequestStatusException e) {
+                    pages.put(new Page(null, e, null, false));
+                    retryPermits.acquire();
+                    continue;
+                } catch (RuntimeException e) {
+                    pages.put(new Page(null, null, e, true));
+                    return;
+                }
+                pages.put(page);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Convenience method for if this instance is exhausted.
+     *
+     * @return if the last page returned by {@link #getNextPostData()} was the last one.
+     */
+    public boolean isDone() {
+        return isDone;
+    }
+
+    /**
+     * Returns the next page of results, waiting for it if it hasn't been fetched yet.
+     *
+     * @return See {@link SubredditStream#getNextPostData()}.
+     * Empty once this instance is done.
+     * @throws BadRequestStatusException if a request's status code is not <code>200</code>.
+     *                                   The request is retried on the next call.
+     */
+    public @NotNull RedditPostInfo @NotNull [] getNextPostData() throws BadRequestStatusException {
+        if (isDone) {
+            return new RedditPostInfo[0];
+        }
+        if (lastPageFailed) {
+            lastPageFailed = false;
+            retryPermits.release();
+        }
+
+        final Page page;
+        try {
+            page = pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isDone = true;
+            return new RedditPostInfo[0];
+        }
+
+        if (page.last) {
+            isDone = true;
+        }
+        if (page.failure != null) {
+            throw page.failure;
+        }
+        if (page.badRequest != null) {
+            lastPageFailed = true;
+            throw page.badRequest;
+        }
+        assert page.posts != null;
+        return page.posts;
+    }
+
+    /**
+     * Stop prefetching.
+     */
+    @Override
+    public void close() {
+        isDone = true;
+        producer.interrupt();
+    }
+
+    private record Page(@NotNull RedditPostInfo @Nullable [] posts,
+                        @Nullable BadRequestStatusException badRequest,
+                        @Nullable RuntimeException failure,
+                        boolean last) {
+    }
+}
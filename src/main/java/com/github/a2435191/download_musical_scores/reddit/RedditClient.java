@@ -1,6 +1,7 @@
 package com.github.a2435191.download_musical_scores.reddit;
 
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpClients;
 import com.github.a2435191.download_musical_scores.util.HttpUtils;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
@@ -10,8 +11,12 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Class for communicating with the Reddit API
@@ -22,6 +27,12 @@ public final class RedditClient {
      */
     public static final String USER_AGENT = "Musical Scores Downloader by u/2435191";
     private static final String URL_FORMAT_STRING = "https://www.reddit.com/r/%s/comments/%s/about.json";
+    private static final String INFO_URL = "https://www.reddit.com/api/info.json";
+    /**
+     * Maximum number of ids <code>/api/info</code> accepts per request.
+     */
+    public static final int MAX_IDS_PER_REQUEST = 100;
+    private static final String POST_FULLNAME_PREFIX = "t3_";
 
     /**
      * Get a post's HTML.
@@ -35,20 +46,17 @@ public final class RedditClient {
      * See <a href="https://www.reddit.com/r/bugs/comments/p7wk2t/the_redesign_adds_a_hidden_backslash_to_escape/">this</a>.
      */
     public static @NotNull String getPostHTML(String id, String subredditName) throws BadRequestStatusException {
-        // TODO: use official Reddit API to submit multiple ids?
         String queryParams = HttpUtils.urlEncode(Map.of("raw_json", 1), List.of());
         URI aboutURL = URI.create(String.format(URL_FORMAT_STRING, subredditName, id) + "?" + queryParams);
 
-        HttpClient client = HttpClient.newHttpClient();
+        HttpClient client = HttpClients.getDefault();
         HttpRequest request = HttpRequest.newBuilder()
             .uri(aboutURL)
             .header("User-Agent", USER_AGENT)
             .GET()
             .build();
 
-        HttpResponse<String> response = client
-            .sendAsync(request, HttpResponse.BodyHandlers.ofString())
-            .join();
+        HttpResponse<String> response = HttpUtils.send(client, request, HttpResponse.BodyHandlers.ofString());
 
 
         if (response.statusCode() != 200) {
@@ -65,4 +73,49 @@ public final class RedditClient {
         return data.getString("selftext_html");
     }
 
+    /**
+     * Get the HTML of many posts, {@link #MAX_IDS_PER_REQUEST} per request.
+     *
+     * @param ids Base-36 unique ids of posts, from any subreddit.
+     * @return Map of id to HTML, as in {@link #getPostHTML(String, String)}.
+     * Posts that don't exist or have no HTML (e.g. link posts) are left out.
+     * @throws BadRequestStatusException if a request is non-<code>200</code>
+     */
+    public static @NotNull Map<@NotNull String, @NotNull String> getPostHTMLs(@NotNull Collection<@NotNull String> ids)
+        throws BadRequestStatusException {
+        final HttpClient client = HttpClients.getDefault();
+        final List<String> idList = List.copyOf(new LinkedHashSet<>(ids));
+        final Map<String, String> out = new HashMap<>();
+
+        for (int start = 0; start < idList.size(); start += MAX_IDS_PER_REQUEST) {
+            String fullnames = idList.subList(start, Math.min(start + MAX_IDS_PER_REQUEST, idList.size()))
+                .stream()
+                .map(id -> POST_FULLNAME_PREFIX + id)
+                .collect(Collectors.joining(","));
+            String queryParams = HttpUtils.urlEncode(Map.of("raw_json", 1, "id", fullnames), List.of());
+
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(INFO_URL + "?" + queryParams))
+                .header("User-Agent", USER_AGENT)
+                .GET()
+                .build();
+
+            HttpResponse<String> response = HttpUtils.send(client, request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new BadRequestStatusException(response);
+            }
+
+            JSONArray children = new JSONObject(response.body())
+                .getJSONObject("data")
+                .getJSONArray("children");
+            for (int i = 0; i < children.length(); i++) {
+                JSONObject data = children.getJSONObject(i).getJSONObject("data");
+                if (!data.isNull("selftext_html")) {
+                    out.put(data.getString("id"), data.getString("selftext_html"));
+                }
+            }
+        }
+        return out;
+    }
+
 }
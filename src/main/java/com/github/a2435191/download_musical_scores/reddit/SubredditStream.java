@@ -1,17 +1,28 @@
 package com.github.a2435191.download_musical_scores.reddit;
 
 import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.HttpClients;
+import com.github.a2435191.download_musical_scores.util.HttpUtils;
+import com.github.a2435191.download_musical_scores.util.Metrics;
 import com.github.a2435191.download_musical_scores.util.URLTextExtractor;
 import org.jetbrains.annotations.NotNull;
-import org.json.JSONArray;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -32,21 +43,43 @@ public class SubredditStream {
         "selftext",
         "title"
     };
+    private static final Set<String> FIELD_SET = Set.of(FIELDS);
 
-    private final HttpClient client = HttpClient.newHttpClient();
+    private final HttpClient client = HttpClients.getDefault();
     private final @NotNull Map<@NotNull String, @NotNull String> baseQuery;
     private final @NotNull String subredditName;
+    private final @Nullable Long afterTimestamp;
     private Long beforeTimestamp = null;
     private boolean isDone = false;
+    private boolean reachedAfterTimestamp = false;
+    private volatile @Nullable Long newestTimestamp = null;
 
     public SubredditStream(@NotNull String subredditName) {
-        this(Map.of("title:not", "request"), subredditName);
+        this(subredditName, null);
+    }
+
+    /**
+     * Stream only the posts newer than a timestamp (incremental sync), see {@link HighWaterMark}.
+     *
+     * @param subredditName  Name of the subreddit, without <code>r/</code>.
+     * @param afterTimestamp Only posts with a later <code>created_utc</code> are returned.
+     *                       <code>null</code> for every post.
+     */
+    public SubredditStream(@NotNull String subredditName, @Nullable Long afterTimestamp) {
+        this(Map.of("title:not", "request"), subredditName, afterTimestamp);
     }
 
 
     public SubredditStream(@NotNull Map<@NotNull String, @NotNull String> query, @NotNull String subredditName) {
+        this(query, subredditName, null);
+    }
+
+    public SubredditStream(@NotNull Map<@NotNull String, @NotNull String> query,
+                           @NotNull String subredditName,
+                           @Nullable Long afterTimestamp) {
         this.baseQuery = query;
         this.subredditName = subredditName;
+        this.afterTimestamp = afterTimestamp;
     }
 
     private static @NotNull URI createUriWithQueryParams(@SuppressWarnings("SameParameterValue") @NotNull String urlBase, @NotNull Map<String, String> params) {
@@ -76,6 +109,91 @@ public class SubredditStream {
                    && !data.optString("selftext").toUpperCase().contains(OPT_OUT_STRING);
     }
 
+    /**
+     * Parse a PushShift response one post at a time, without building the whole response in memory.
+     *
+     * @param tokener    Tokener over the response body.
+     * @param keptFields Fields of each post to keep. The values of other fields are read and dropped.
+     * @param onPost     Called with each element of the <code>data</code> array, as soon as it has been read.
+     * @throws org.json.JSONException if the response is malformed.
+     * @implNote Package-private so that it can be benchmarked on its own.
+     */
+    static void forEachPost(@NotNull JSONTokener tokener,
+                                    @NotNull Set<@NotNull String> keptFields,
+                                    @NotNull Consumer<@NotNull JSONObject> onPost) {
+        forEachMember(tokener, key -> {
+            if (!key.equals("data")) {
+                tokener.nextValue(); // e.g. metadata
+                return;
+            }
+            forEachElement(tokener, () -> {
+                JSONObject post = new JSONObject();
+                forEachMember(tokener, field -> {
+                    Object value = tokener.nextValue();
+                    if (keptFields.contains(field)) {
+                        post.put(field, value);
+                    }
+                });
+                onPost.accept(post);
+            });
+        });
+    }
+
+    /**
+     * Read an object, calling <code>onMember</code> with each key. <code>onMember</code> must read the value.
+     */
+    private static void forEachMember(@NotNull JSONTokener tokener, @NotNull Consumer<@NotNull String> onMember) {
+        if (tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A JSONObject text must begin with '{'");
+        }
+        if (tokener.nextClean() == '}') {
+            return;
+        }
+        tokener.back();
+        while (true) {
+            if (tokener.nextClean() != '"') {
+                throw tokener.syntaxError("Expected a key");
+            }
+            String key = tokener.nextString('"');
+            if (tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+            onMember.accept(key);
+            switch (tokener.nextClean()) {
+                case ',' -> {
+                }
+                case '}' -> {
+                    return;
+                }
+                default -> throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * Read an array, calling <code>onElement</code> for each element. <code>onElement</code> must read the element.
+     */
+    private static void forEachElement(@NotNull JSONTokener tokener, @NotNull Runnable onElement) {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return;
+        }
+        tokener.back();
+        while (true) {
+            onElement.run();
+            switch (tokener.nextClean()) {
+                case ',' -> {
+                }
+                case ']' -> {
+                    return;
+                }
+                default -> throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
     /**
      * Convenience method for if this instance is exhausted.
      *
@@ -85,12 +203,23 @@ public class SubredditStream {
         return isDone;
     }
 
+    /**
+     * Get the newest <code>created_utc</code> returned by PushShift so far, including posts that were filtered out.
+     * Once this instance is done and every returned post has been processed, it's the next high-water mark.
+     *
+     * @return The timestamp, in seconds since the epoch. <code>null</code> if no posts have been returned yet.
+     */
+    public @Nullable Long getNewestTimestamp() {
+        return newestTimestamp;
+    }
+
     /**
      * Reset the state of <code>this</code>, so that the newest results start being returned
      * (still in time-decreasing order).
      */
     public void reset() {
         this.beforeTimestamp = null;
+        this.reachedAfterTimestamp = false;
     }
 
     /**
@@ -103,7 +232,7 @@ public class SubredditStream {
         return getNextPostData(50, 60, List.of());
     }
 
-    private @NotNull HttpResponse<String> makeRequest(int maxBatchSize, int timeoutSeconds) throws BadRequestStatusException {
+    private @NotNull HttpResponse<InputStream> makeRequest(int maxBatchSize, int timeoutSeconds) throws BadRequestStatusException {
         Map<String, String> query = new HashMap<>(Map.of(
             "subreddit", this.subredditName,
             "fields", String.join(",", FIELDS),
@@ -113,6 +242,9 @@ public class SubredditStream {
         if (beforeTimestamp != null) {
             query.put("before", "" + beforeTimestamp);
         }
+        if (afterTimestamp != null) {
+            query.put("after", "" + afterTimestamp);
+        }
         query.putAll(this.baseQuery);
 
         final URI target = createUriWithQueryParams(PUSHSHIFT_URL, query);
@@ -124,12 +256,17 @@ public class SubredditStream {
             .GET()
             .build();
 
-        HttpResponse<String> resp;
+        HttpResponse<InputStream> resp;
 
-        resp = client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).join();
+        resp = HttpUtils.send(client, request, HttpResponse.BodyHandlers.ofInputStream());
 
 
         if (resp.statusCode() != 200) {
+            try {
+                resp.body().close();
+            } catch (IOException e) {
+                // nothing more to read anyway
+            }
             throw new BadRequestStatusException(resp);
         }
         return resp;
@@ -145,31 +282,59 @@ public class SubredditStream {
      *                                   In this case, the state is not advanced.
      */
     public RedditPostInfo[] getNextPostData(int maxBatchSize, int timeoutSeconds, Collection<String> otherKeys) throws BadRequestStatusException {
-        HttpResponse<String> response = this.makeRequest(maxBatchSize, timeoutSeconds);
-        JSONArray data = new JSONObject(response.body()).getJSONArray("data");
+        if (reachedAfterTimestamp) {
+            this.isDone = true;
+            return new RedditPostInfo[0];
+        }
+        final long start = System.nanoTime();
+        HttpResponse<InputStream> response = this.makeRequest(maxBatchSize, timeoutSeconds);
 
+        Set<String> keptFields = new HashSet<>(FIELD_SET);
+        keptFields.addAll(otherKeys);
+        List<JSONObject> validPosts = new ArrayList<>();
+        long[] newestOnPage = {Long.MIN_VALUE};
+        try (Reader body = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+            forEachPost(new JSONTokener(body), keptFields, postData -> {
+                long created = postData.optLong("created_utc", Long.MIN_VALUE);
+                newestOnPage[0] = Math.max(newestOnPage[0], created);
+                if (afterTimestamp != null && created <= afterTimestamp) {
+                    reachedAfterTimestamp = true; // in case "after" is ignored, don't walk the rest of the history
+                    return;
+                }
+                if (jsonDataIsValid(postData)) {
+                    validPosts.add(postData);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Metrics.getShared().histogram(
+            "pushshift_page_seconds",
+            "Time taken to fetch and parse a page of PushShift search results",
+            Metrics.DEFAULT_SECONDS_BUCKETS
+        ).observeSince(start);
+        // posts whose selftext isn't enough get their HTML from Reddit in one batch for the whole page
+        List<String[]> scoreURLs = URLTextExtractor.extractURLsFromRedditPosts(validPosts, false);
 
         ArrayList<RedditPostInfo> infoArrayList = new ArrayList<>();
-        for (int i = 0; i < data.length(); i++) {
-
-            JSONObject postData = data.getJSONObject(i);
-            if (jsonDataIsValid(postData)) {
-                String url = postData.getString("permalink");
-                String id = postData.getString("id");
-                String title = postData.getString("title");
-                long timestamp = postData.getInt("created_utc");
-
-                Map<String, Object> otherData = otherKeys.stream()
-                    .filter(postData::has)
-                    .collect(Collectors.toMap(k -> k, postData::get));
-                infoArrayList.add(
-                    new RedditPostInfo(
-                        id, timestamp, url, title, URLTextExtractor.extractURLsFromRedditPost(postData, this.subredditName), otherData
-                    )
-                );
-            }
+        for (int i = 0; i < validPosts.size(); i++) {
+            JSONObject postData = validPosts.get(i);
+            String url = postData.getString("permalink");
+            String id = postData.getString("id");
+            String title = postData.getString("title");
+            long timestamp = postData.getInt("created_utc");
+
+            Map<String, Object> otherData = otherKeys.stream()
+                .filter(postData::has)
+                .collect(Collectors.toMap(k -> k, postData::get));
+            infoArrayList.add(
+                new RedditPostInfo(id, timestamp, url, title, scoreURLs.get(i), otherData)
+            );
         }
 
+        if (newestOnPage[0] != Long.MIN_VALUE && (newestTimestamp == null || newestOnPage[0] > newestTimestamp)) {
+            this.newestTimestamp = newestOnPage[0];
+        }
         if (infoArrayList.isEmpty()) {
             this.isDone = true;
         } else {
@@ -0,0 +1,154 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory cache of values that are expensive to load, with a time-to-live and a maximum size.
+ * <p>
+ * Concurrent lookups of a key that is still loading wait for that load instead of starting their own.
+ * Failed loads are not cached: the callers waiting on them get the same exception, and the next lookup tries again.
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+@ThreadSafe
+public final class CoalescingCache<K, V> {
+    private final @NotNull Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final int maxSize;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param ttl     How long a loaded value is kept.
+     * @param maxSize Maximum number of values kept. When exceeded, the values closest to expiring are dropped.
+     */
+    public CoalescingCache(@NotNull Duration ttl, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the value of a key, loading it if it isn't cached (or has expired).
+     *
+     * @param key    Key to look up.
+     * @param loader Loads the value. Called on the calling thread, and only if no other thread is already loading
+     *               <code>key</code>.
+     * @return The cached or loaded value.
+     * @throws IOException if <code>loader</code> throws it, in this thread or in the thread whose load this one
+     *                     waited for.
+     */
+    public @NotNull V get(@NotNull K key, @NotNull Loader<? extends V> loader) throws IOException {
+        while (true) {
+            final @Nullable Entry<V> cached = entries.get(key);
+            if (cached != null && !cached.isExpired(System.nanoTime())) {
+                return join(cached.value);
+            }
+
+            final Entry<V> mine = new Entry<>(new CompletableFuture<>());
+            if (cached == null ? entries.putIfAbsent(key, mine) != null : !entries.replace(key, cached, mine)) {
+                continue; // someone else started loading it first
+            }
+
+            final V value;
+            try {
+                value = loader.load();
+            } catch (IOException | RuntimeException | Error e) {
+                entries.remove(key, mine);
+                mine.value.completeExceptionally(e);
+                throw e;
+            }
+            mine.expiresAtNanos = System.nanoTime() + ttlNanos;
+            mine.value.complete(value);
+            if (entries.size() > maxSize) {
+                evict();
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Drop expired values, then the values closest to expiring until at most {@link #maxSize} are left.
+     * Values still loading are never dropped.
+     */
+    private void evict() {
+        final long now = System.nanoTime();
+        entries.entrySet().removeIf(entry -> entry.getValue().isExpired(now));
+        while (entries.size() > maxSize) {
+            Map.Entry<K, Entry<V>> oldest = null;
+            for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+                if (entry.getValue().value.isDone()
+                    && (oldest == null || entry.getValue().expiresAtNanos - oldest.getValue().expiresAtNanos < 0)) {
+                    oldest = entry;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            entries.remove(oldest.getKey(), oldest.getValue());
+        }
+    }
+
+    /**
+     * Drop every cached value.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private static <V> @NotNull V join(@NotNull CompletableFuture<V> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Loads a value for {@link #get(Object, Loader)}.
+     *
+     * @param <V> Value type.
+     */
+    @FunctionalInterface
+    public interface Loader<V> {
+        @NotNull V load() throws IOException;
+    }
+
+    private static final class Entry<V> {
+        final @NotNull CompletableFuture<V> value;
+        /**
+         * Set once {@link #value} is complete.
+         */
+        volatile long expiresAtNanos;
+
+        Entry(@NotNull CompletableFuture<V> value) {
+            this.value = value;
+        }
+
+        boolean isExpired(long now) {
+            return value.isDone() && now - expiresAtNanos >= 0;
+        }
+    }
+}
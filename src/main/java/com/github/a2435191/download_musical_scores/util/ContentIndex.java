@@ -0,0 +1,141 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed index of downloaded files, mapping the SHA-256 digest of each file's contents to the first file
+ * seen with it. Files with the same contents as an earlier one are replaced by a hard link to it, so the data is
+ * stored once.
+ * <p>
+ * The index is kept in memory and appended to a text file (one <code>digest\tpath</code> line per file) so it
+ * carries over between runs. Losing lines only costs missed deduplication, so the file isn't synced.
+ */
+@ThreadSafe
+public final class ContentIndex implements AutoCloseable {
+    /**
+     * Algorithm of the digests this index expects, see {@link java.security.MessageDigest#getInstance(String)}.
+     */
+    public static final String ALGORITHM = "SHA-256";
+    private static final Pattern DIGEST_REGEX = Pattern.compile("^[0-9a-f]{64}$");
+    private static final String LINK_SUFFIX = ".link";
+
+    private final @NotNull Map<@NotNull String, @NotNull Path> firstPaths = new ConcurrentHashMap<>();
+    private final @NotNull FileChannel indexFile;
+
+    /**
+     * Open (or create) an index.
+     *
+     * @param indexPath Text file the index is kept in.
+     * @throws IOException if the file can't be read or opened for appending.
+     */
+    public ContentIndex(@NotNull Path indexPath) throws IOException {
+        if (Files.exists(indexPath)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0 || !DIGEST_REGEX.matcher(line.substring(0, tab)).matches()) {
+                        continue; // cut off by a crash
+                    }
+                    try {
+                        firstPaths.put(line.substring(0, tab), Path.of(line.substring(tab + 1)));
+                    } catch (InvalidPathException e) {
+                        // cut off by a crash
+                    }
+                }
+            }
+        }
+        this.indexFile = FileChannel.open(indexPath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Format a digest the way this index (and {@link com.github.a2435191.download_musical_scores.PersistentDownloadData})
+     * stores it.
+     *
+     * @param digest Raw digest.
+     * @return Lowercase hex string.
+     */
+    public static @NotNull String toHex(byte @NotNull [] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+
+    /**
+     * Record a newly downloaded file, and if a file with the same contents is already indexed, replace the new file
+     * with a hard link to it. If the filesystem can't link them (e.g. they are on different volumes), both copies
+     * are kept.
+     *
+     * @param file   A regular file that was just written.
+     * @param digest {@link #ALGORITHM} digest of <code>file</code>'s contents.
+     * @return the indexed file with these contents, which is <code>file</code> unless it was deduplicated.
+     * @throws IOException if the file can't be replaced by a link or the index can't be written to.
+     */
+    public @NotNull Path deduplicate(@NotNull Path file, byte @NotNull [] digest) throws IOException {
+        final String hex = toHex(digest);
+        final Path absoluteFile = file.toAbsolutePath();
+
+        while (true) {
+            Path first = firstPaths.putIfAbsent(hex, absoluteFile);
+            if (first == null) {
+                append(hex, absoluteFile);
+                return absoluteFile;
+            }
+            if (first.equals(absoluteFile)) {
+                return absoluteFile;
+            }
+            if (!Files.isRegularFile(first) || Files.size(first) != Files.size(absoluteFile)) {
+                // deleted or changed since it was indexed, so the new file takes its place
+                if (firstPaths.replace(hex, first, absoluteFile)) {
+                    append(hex, absoluteFile);
+                    return absoluteFile;
+                }
+                continue;
+            }
+            if (Files.isSameFile(first, absoluteFile)) {
+                return first;
+            }
+
+            Path link = absoluteFile.resolveSibling(absoluteFile.getFileName() + LINK_SUFFIX);
+            try {
+                Files.deleteIfExists(link);
+                Files.createLink(link, first);
+            } catch (UnsupportedOperationException | FileAlreadyExistsException e) {
+                return absoluteFile;
+            } catch (IOException e) {
+                System.err.println("can't link " + absoluteFile + " to " + first + ", keeping both: " + e);
+                return absoluteFile;
+            }
+            Files.move(link, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return first;
+        }
+    }
+
+    private synchronized void append(@NotNull String hex, @NotNull Path path) throws IOException {
+        ByteBuffer line = StandardCharsets.UTF_8.encode(hex + "\t" + path + "\n");
+        while (line.hasRemaining()) {
+            indexFile.write(line);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        indexFile.close();
+    }
+}
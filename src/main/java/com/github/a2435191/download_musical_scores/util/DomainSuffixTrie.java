@@ -0,0 +1,66 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps domain suffixes to values, so that a value put for <code>example.com</code> is found for
+ * <code>example.com</code> and every subdomain of it (e.g. <code>a.b.example.com</code>).
+ * Lookups walk one trie node per domain label, from the top-level domain down.
+ *
+ * @param <T> The type of the values.
+ */
+@ThreadSafe
+public final class DomainSuffixTrie<T> {
+    private final @NotNull Node<T> root = new Node<>();
+
+    private static @NotNull String @NotNull [] labels(@NotNull String domain) {
+        return domain.split("\\.");
+    }
+
+    /**
+     * Associate a value with a domain and all of its subdomains.
+     *
+     * @param domain Domain, e.g. <code>stackstorage.com</code>. Must be lowercase.
+     * @param value  Value to associate.
+     */
+    public void put(@NotNull String domain, @NotNull T value) {
+        String[] labels = labels(domain);
+        Node<T> node = root;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.computeIfAbsent(labels[i], $ -> new Node<>());
+        }
+        node.value = value;
+    }
+
+    /**
+     * Get the value of the longest registered suffix of a host.
+     *
+     * @param host Host name, e.g. <code>riemer46.stackstorage.com</code>. Must be lowercase.
+     * @return The value, or <code>null</code> if no suffix of <code>host</code> was registered.
+     */
+    public @Nullable T get(@NotNull String host) {
+        String[] labels = labels(host);
+        Node<T> node = root;
+        T best = null;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.get(labels[i]);
+            if (node == null) {
+                break;
+            }
+            if (node.value != null) {
+                best = node.value;
+            }
+        }
+        return best;
+    }
+
+    private static final class Node<T> {
+        final @NotNull Map<@NotNull String, @NotNull Node<T>> children = new ConcurrentHashMap<>();
+        volatile @Nullable T value;
+    }
+}
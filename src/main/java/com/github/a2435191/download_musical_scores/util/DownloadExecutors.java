@@ -0,0 +1,71 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for blocking download work.
+ */
+public final class DownloadExecutors {
+    private DownloadExecutors() {
+    }
+
+    /**
+     * Create the default executor for downloads: one virtual thread per task on Java 21+,
+     * otherwise a cached pool of daemon platform threads.
+     * <p>
+     * Neither is bounded, so blocking transfers never starve each other (or the common {@link java.util.concurrent.ForkJoinPool});
+     * callers cap concurrency themselves.
+     *
+     * @return A new executor.
+     */
+    public static @NotNull ExecutorService newDefault() {
+        try {
+            // looked up reflectively so that this still compiles and runs on Java 17
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(
+                Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            return (ExecutorService) factory.invoke();
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return newPlatformThreadExecutor();
+        } catch (Throwable e) {
+            throw new IllegalStateException("failed to create virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Create a cached pool of daemon platform threads.
+     *
+     * @return A new executor.
+     */
+    public static @NotNull ExecutorService newPlatformThreadExecutor() {
+        return Executors.newCachedThreadPool(daemonThreadFactory("download-"));
+    }
+
+    /**
+     * Create a fixed pool of daemon platform threads, for work whose concurrency should be bounded
+     * (e.g. API calls to a single service). Tasks in it must not wait for each other.
+     *
+     * @param namePrefix Prefix of the thread names, followed by a number.
+     * @param threads    Number of threads.
+     * @return A new executor.
+     */
+    public static @NotNull ExecutorService newBoundedPlatformThreadExecutor(@NotNull String namePrefix, int threads) {
+        return Executors.newFixedThreadPool(threads, daemonThreadFactory(namePrefix));
+    }
+
+    private static @NotNull ThreadFactory daemonThreadFactory(@NotNull String namePrefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -8,15 +8,38 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.function.Predicate;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 public final class FileUtils {
     private static final int ZIP_BUFSIZE = 2048;
+    private static final int DIGEST_BUFSIZE = 64 * 1024;
 
     private FileUtils() {
     }
 
+    /**
+     * Feed (the start of) a file to a digest.
+     *
+     * @param file   File to read.
+     * @param length Maximum number of bytes to read from the start of <code>file</code>.
+     * @param digest Digest to update.
+     * @throws IOException if the file can't be read
+     */
+    public static void updateDigest(@NotNull Path file, long length, @NotNull MessageDigest digest) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[DIGEST_BUFSIZE];
+            long remaining = length;
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
     public static void delete(@NotNull Path folder) throws IOException {
         Files.walkFileTree(folder, new FileVisitor<>() {
             @Override
@@ -46,6 +69,48 @@ public final class FileUtils {
         });
     }
 
+    /**
+     * Delete a file tree, except for the files matching <code>keep</code> and the directories containing them.
+     *
+     * @param folder Root of the tree to delete. Deleted too, unless something is kept.
+     * @param keep   Files to keep.
+     * @throws IOException if a file or directory can't be deleted
+     */
+    public static void deleteExcept(@NotNull Path folder, @NotNull Predicate<@NotNull Path> keep) throws IOException {
+        Files.walkFileTree(folder, new FileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!keep.test(file)) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                try (var entries = Files.list(dir)) {
+                    if (entries.findAny().isEmpty()) {
+                        Files.delete(dir);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     public static void zipDirectory(@NotNull Path directory, @NotNull Path out) throws IOException {
         try (
             FileOutputStream outputStream = new FileOutputStream(out.toString());
@@ -68,6 +133,52 @@ public final class FileUtils {
 
     }
 
+    /**
+     * Add a file, or a directory and everything in it, to a zip archive.
+     *
+     * @param source      File or directory to add.
+     * @param zipOut      Archive to add to. Not closed by this method.
+     * @param entryPrefix Entry name of the directory <code>source</code> is added in: empty or ending with
+     *                    <code>/</code>.
+     * @throws IOException if a file can't be read or the archive can't be written
+     */
+    public static void addToZip(@NotNull Path source,
+                                @NotNull ZipOutputStream zipOut,
+                                @NotNull String entryPrefix) throws IOException {
+        Path relativeTo = source.toAbsolutePath().getParent();
+        Files.walkFileTree(source.toAbsolutePath(), new FileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                zipOut.putNextEntry(new ZipEntry(entryPrefix + relativeTo.relativize(dir) + "/"));
+                zipOut.closeEntry();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                zipOut.putNextEntry(new ZipEntry(entryPrefix + relativeTo.relativize(file)));
+                try (InputStream input = Files.newInputStream(file)) {
+                    input.transferTo(zipOut);
+                }
+                zipOut.closeEntry();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                throw exc;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     public static void serialize(Object obj, @NotNull File file) throws IOException {
         try (FileOutputStream fos = new FileOutputStream(file);
              ObjectOutputStream out = new ObjectOutputStream(fos)) {
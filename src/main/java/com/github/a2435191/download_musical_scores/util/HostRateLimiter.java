@@ -0,0 +1,272 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Paces requests with one token bucket per host, adapting each bucket's rate to the host's feedback.
+ * <p>
+ * The rate grows additively while requests succeed and is halved on <code>429</code>/<code>503</code>.
+ * <code>Retry-After</code> pauses the host for as long as it asks, and Reddit-style
+ * <code>X-Ratelimit-Remaining</code>/<code>X-Ratelimit-Reset</code> headers set the rate to what the host
+ * says is left. This keeps each host just under its limit, instead of bursting until it refuses and then idling.
+ *
+ * @see HttpUtils#send(java.net.http.HttpClient, java.net.http.HttpRequest, HttpResponse.BodyHandler)
+ */
+@ThreadSafe
+public final class HostRateLimiter {
+    private static volatile @NotNull HostRateLimiter shared = new HostRateLimiter(2, 5);
+
+    /**
+     * Lowest rate a host is slowed down to, in requests per second.
+     */
+    private static final double MIN_RATE = 1.0 / 30;
+    /**
+     * Highest rate a host is sped up to, in requests per second.
+     */
+    private static final double MAX_RATE = 50;
+    /**
+     * Rate added after each successful request, in requests per second.
+     */
+    private static final double RATE_INCREASE = 0.05;
+    /**
+     * How long a host is paused after a <code>429</code>/<code>503</code> that doesn't say how long to wait.
+     */
+    private static final Duration DEFAULT_BACKOFF = Duration.ofSeconds(10);
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private final @NotNull Map<@NotNull String, @NotNull Bucket> buckets = new ConcurrentHashMap<>();
+    private final double initialRate;
+    private final double burst;
+    private final boolean unlimited;
+
+    private HostRateLimiter(double initialRate, double burst, boolean unlimited) {
+        this.initialRate = initialRate;
+        this.burst = burst;
+        this.unlimited = unlimited;
+    }
+
+    /**
+     * Create a new instance.
+     *
+     * @param initialRate Starting rate of each host, in requests per second.
+     * @param burst       Maximum number of requests a host that has been idle can make without waiting.
+     */
+    public HostRateLimiter(double initialRate, double burst) {
+        this(initialRate, burst, false);
+    }
+
+    /**
+     * Create an instance that never makes a request wait, e.g. for tests and benchmarks against a local server.
+     *
+     * @return a new instance
+     */
+    @Contract(" -> new")
+    public static @NotNull HostRateLimiter unlimited() {
+        return new HostRateLimiter(MAX_RATE, MAX_RATE, true);
+    }
+
+    /**
+     * Get the instance shared by every HTTP request this program makes.
+     *
+     * @return the shared instance
+     */
+    public static @NotNull HostRateLimiter getShared() {
+        return shared;
+    }
+
+    /**
+     * Replace the instance shared by every HTTP request this program makes.
+     * Requests that are already waiting keep waiting on the old instance.
+     *
+     * @param limiter The new shared instance.
+     * @return The instance it replaced.
+     */
+    public static @NotNull HostRateLimiter setShared(@NotNull HostRateLimiter limiter) {
+        HostRateLimiter old = shared;
+        shared = limiter;
+        return old;
+    }
+
+    /**
+     * Parse a <code>Retry-After</code> header.
+     *
+     * @param value Either a number of seconds or an HTTP date.
+     * @return How long to wait from now, or <code>null</code> if <code>value</code> can't be parsed.
+     */
+    static @Nullable Duration parseRetryAfter(@NotNull String value) {
+        String trimmed = value.trim();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(trimmed)));
+        } catch (NumberFormatException e) {
+            // not a number, so it should be a date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME);
+            Duration wait = Duration.between(ZonedDateTime.now(date.getZone()), date);
+            return wait.isNegative() ? Duration.ZERO : wait;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private static @NotNull Optional<Double> doubleHeader(@NotNull Function<String, Optional<String>> headers,
+                                                          @NotNull String name) {
+        try {
+            return headers.apply(name).map(Double::parseDouble);
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private @NotNull Bucket bucket(@NotNull String host) {
+        return buckets.computeIfAbsent(host.toLowerCase(Locale.ROOT), $ -> new Bucket(initialRate, burst));
+    }
+
+    /**
+     * Wait until a request to <code>host</code> is allowed.
+     * If the calling thread is interrupted, returns early with the interrupt flag set.
+     *
+     * @param host Host the request is for.
+     */
+    public void acquire(@NotNull String host) {
+        if (unlimited) {
+            return;
+        }
+        long waitNanos = bucket(host).reserve(System.nanoTime());
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adapt the rate of <code>host</code> to a response from it.
+     *
+     * @param host     Host the response came from.
+     * @param response The response. Only its status code and headers are used.
+     */
+    public void onResponse(@NotNull String host, @NotNull HttpResponse<?> response) {
+        onResponse(host, response.statusCode(), response.headers()::firstValue);
+    }
+
+    /**
+     * Adapt the rate of <code>host</code> to a response from it, for responses that aren't from
+     * {@link java.net.http.HttpClient}.
+     *
+     * @param host    Host the response came from.
+     * @param status  Status code of the response.
+     * @param headers Gets the first value of a header of the response by its (case-insensitive) name.
+     */
+    public void onResponse(@NotNull String host, int status, @NotNull Function<String, Optional<String>> headers) {
+        if (unlimited) {
+            return;
+        }
+        final Bucket bucket = bucket(host);
+        final long now = System.nanoTime();
+
+        @Nullable Duration retryAfter = headers
+            .apply("Retry-After")
+            .map(HostRateLimiter::parseRetryAfter)
+            .orElse(null);
+
+        if (status == TOO_MANY_REQUESTS || status == SERVICE_UNAVAILABLE) {
+            bucket.slowDown(now, retryAfter == null ? DEFAULT_BACKOFF : retryAfter);
+            return;
+        }
+        if (retryAfter != null) {
+            bucket.pause(now, retryAfter);
+        }
+
+        Optional<Double> remaining = doubleHeader(headers, "X-Ratelimit-Remaining");
+        Optional<Double> reset = doubleHeader(headers, "X-Ratelimit-Reset");
+        if (remaining.isPresent() && reset.isPresent()) {
+            if (remaining.get() < 1) {
+                bucket.pause(now, Duration.ofMillis((long) (reset.get() * 1000)));
+            } else {
+                bucket.setRate(remaining.get() / Math.max(reset.get(), 1));
+            }
+        } else if (status >= 200 && status < 400) {
+            bucket.speedUp();
+        }
+    }
+
+    /**
+     * Token bucket that hands out reservations: a request that has to wait takes its token in advance and sleeps
+     * until it's due, so waiting requests are released one after another at the bucket's rate.
+     */
+    private static final class Bucket {
+        private final double burst;
+        private double rate;
+        private double storedTokens;
+        /**
+         * When the next token is due. May be in the future, once tokens have been reserved in advance.
+         */
+        private long nextFreeNanos = System.nanoTime();
+
+        Bucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.storedTokens = burst;
+        }
+
+        private void refill(long now) {
+            if (now > nextFreeNanos) {
+                storedTokens = Math.min(burst, storedTokens + (now - nextFreeNanos) * rate / 1e9);
+                nextFreeNanos = now;
+            }
+        }
+
+        /**
+         * Take a token.
+         *
+         * @return How long to wait before using it, in nanoseconds.
+         */
+        synchronized long reserve(long now) {
+            refill(now);
+            long waitNanos = nextFreeNanos - now;
+            double fromStore = Math.min(1, storedTokens);
+            storedTokens -= fromStore;
+            nextFreeNanos += (long) ((1 - fromStore) / rate * 1e9);
+            return waitNanos;
+        }
+
+        synchronized void pause(long now, @NotNull Duration duration) {
+            refill(now);
+            storedTokens = 0;
+            nextFreeNanos = Math.max(nextFreeNanos, now + duration.toNanos());
+        }
+
+        synchronized void slowDown(long now, @NotNull Duration duration) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            pause(now, duration);
+        }
+
+        synchronized void speedUp() {
+            rate = Math.min(MAX_RATE, rate + RATE_INCREASE);
+        }
+
+        synchronized void setRate(double newRate) {
+            rate = Math.max(MIN_RATE, Math.min(MAX_RATE, newRate));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of shared {@link HttpClient}s.
+ * <p>
+ * Every client keeps its own connection pool and selector thread, so building one per request or per file
+ * throws away keep-alive connections and forces a new TLS handshake every time.
+ * Instead, one client is built per distinct configuration and reused by everything that asks for it.
+ * Clients prefer HTTP/2, so requests to the same host are multiplexed over one connection where the server allows it.
+ */
+@ThreadSafe
+public final class HttpClients {
+    private static final @NotNull Map<@NotNull Key, @NotNull HttpClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private HttpClients() {
+    }
+
+    /**
+     * Get the shared client for a configuration, creating it if necessary.
+     *
+     * @param redirect       Redirect policy of the client.
+     * @param connectTimeout Connect timeout of the client. <code>null</code> means no timeout.
+     * @return A client shared with every other caller using the same configuration.
+     */
+    public static @NotNull HttpClient get(@NotNull HttpClient.Redirect redirect, @Nullable Duration connectTimeout) {
+        return CLIENTS.computeIfAbsent(new Key(redirect, connectTimeout), HttpClients::create);
+    }
+
+    /**
+     * Get the shared client equivalent to {@link HttpClient#newHttpClient()}.
+     *
+     * @return A client that never follows redirects and has no connect timeout.
+     */
+    public static @NotNull HttpClient getDefault() {
+        return get(HttpClient.Redirect.NEVER, null);
+    }
+
+    private static @NotNull HttpClient create(@NotNull Key key) {
+        HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(key.redirect);
+        if (key.connectTimeout != null) {
+            builder.connectTimeout(key.connectTimeout);
+        }
+        return builder.build();
+    }
+
+    private record Key(@NotNull HttpClient.Redirect redirect, @Nullable Duration connectTimeout) {
+    }
+}
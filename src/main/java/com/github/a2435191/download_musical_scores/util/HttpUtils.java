@@ -2,11 +2,25 @@ package com.github.a2435191.download_musical_scores.util;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public final class HttpUtils {
+    /**
+     * Name of the {@link Metrics} counter of responses per host, see
+     * {@link #sendAsync(HttpClient, HttpRequest, HttpResponse.BodyHandler)}.
+     */
+    public static final String RESPONSES_METRIC = "http_responses_total";
+    private static final String SUCCESS = "success";
+    private static final String RATE_LIMITED = "rate_limited";
+    private static final String FAILURE = "failure";
+    private static final int TOO_MANY_REQUESTS = 429;
+
     public static @NotNull String urlEncode(@NotNull Map<?, ?> map, @NotNull Collection<?> list) {
         return map
             .entrySet()
@@ -15,4 +29,54 @@ public final class HttpUtils {
             .collect(Collectors.joining("&")) +
                    list.stream().map(Object::toString).collect(Collectors.joining("&"));
     }
+
+    /**
+     * Send a request once {@link HostRateLimiter#getShared()} allows it, and report the response back to it.
+     * Every response (or failure to get one) is counted in {@link #RESPONSES_METRIC}.
+     *
+     * @param client  Client to send with.
+     * @param request Request to send.
+     * @param handler Handler for the response body.
+     * @param <T>     Type of the response body.
+     * @return Future for the response. The calling thread blocks until the request may be sent.
+     */
+    public static <T> @NotNull CompletableFuture<HttpResponse<T>> sendAsync(@NotNull HttpClient client,
+                                                                          @NotNull HttpRequest request,
+                                                                          @NotNull HttpResponse.BodyHandler<T> handler) {
+        final HostRateLimiter limiter = HostRateLimiter.getShared();
+        limiter.acquire(request.uri().getHost());
+        return client.sendAsync(request, handler).whenComplete((response, ex) -> {
+            if (response == null) {
+                countResponse(request.uri().getHost(), FAILURE);
+                return;
+            }
+            // the limiter paces the host the request was sent to, even if it was redirected elsewhere
+            limiter.onResponse(request.uri().getHost(), response);
+            final int status = response.statusCode();
+            countResponse(response.uri().getHost(), status == TOO_MANY_REQUESTS ? RATE_LIMITED : status < 400 ? SUCCESS : FAILURE);
+        });
+    }
+
+    private static void countResponse(@NotNull String host, @NotNull String outcome) {
+        Metrics.getShared().counter(
+            RESPONSES_METRIC,
+            "HTTP requests by host and outcome: success (2xx/3xx), rate_limited (429) or failure",
+            "host", host, "outcome", outcome
+        ).increment();
+    }
+
+    /**
+     * Blocking version of {@link #sendAsync(HttpClient, HttpRequest, HttpResponse.BodyHandler)}.
+     *
+     * @param client  Client to send with.
+     * @param request Request to send.
+     * @param handler Handler for the response body.
+     * @param <T>     Type of the response body.
+     * @return The response, whatever its status code.
+     */
+    public static <T> @NotNull HttpResponse<T> send(@NotNull HttpClient client,
+                                                   @NotNull HttpRequest request,
+                                                   @NotNull HttpResponse.BodyHandler<T> handler) {
+        return sendAsync(client, request, handler).join();
+    }
 }
@@ -3,23 +3,42 @@ package com.github.a2435191.download_musical_scores.util;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.*;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
  * Run {@link CompletableFuture}s in batches.
+ * <p>
+ * Jobs are admitted through a {@link Semaphore} with one permit per running job; nothing is locked while jobs are
+ * added, started or completed. Whichever thread adds a job or frees a permit starts the waiting jobs that now fit,
+ * in a drain loop that only one thread runs at a time (so jobs that complete immediately don't recurse).
  *
  * @param <T> The type of the {@link CompletableFuture}.
  */
+@ThreadSafe
 public final class JobsQueue<T> {
 
-    private final Queue<Supplier<CompletableFutureReferenceWrapper>> waiting = new ConcurrentLinkedQueue<>();
-    private final Set<CompletableFutureReferenceWrapper> running = new HashSet<>();
-    private final Queue<T> output = new ArrayDeque<>();
+    private final Queue<Job<T>> waiting = new ConcurrentLinkedQueue<>();
+    private final Queue<T> output = new ConcurrentLinkedQueue<>();
+    private final Semaphore permits;
     private final int maxJobsRunningAtOnce;
+    /**
+     * Number of threads that asked for a drain since the current drain loop last checked. Non-zero while draining.
+     */
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    /**
+     * Number of jobs added but not completed yet. {@link #joinAll()} waits on {@link #idle} for it to reach zero.
+     */
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Object idle = new Object();
 
     /**
      * Initialize a new {@link JobsQueue} instance.
@@ -27,23 +46,10 @@ public final class JobsQueue<T> {
      * @param maxJobsRunningAtOnce The maxmimum number of {@link CompletableFuture}s that will run simultaneously.
      */
     public JobsQueue(int maxJobsRunningAtOnce) {
+        this.permits = new Semaphore(maxJobsRunningAtOnce);
         this.maxJobsRunningAtOnce = maxJobsRunningAtOnce;
     }
 
-    private void recycleQueue(CompletableFutureReferenceWrapper wrapper, @Nullable T result) {
-        synchronized (this) {
-            if (result != null) {
-                this.output.add(result);
-            }
-
-            this.running.remove(wrapper);
-            if (!this.waiting.isEmpty()) {
-                this.running.add(this.waiting.remove().get());
-            }
-            System.out.println("running : " + running + ", waiting size: " + waiting.size());
-        }
-    }
-
     /**
      * Enqueue a future.
      *
@@ -51,59 +57,99 @@ public final class JobsQueue<T> {
      * @param name                      Useful for debugging.
      */
     public void add(Supplier<CompletableFuture<T>> completableFutureSupplier, @Nullable String name) {
-        Supplier<CompletableFutureReferenceWrapper> wrappedSupplier = () -> {
-            CompletableFutureReferenceWrapper wrapper = new CompletableFutureReferenceWrapper(null, name);
-            CompletableFuture<T> originalFuture = completableFutureSupplier.get();
-
-            @SuppressWarnings("UnnecessaryLocalVariable")
-            CompletableFuture<Void> wrappedFuture = originalFuture
-                .exceptionally(ex -> {
-                    recycleQueue(wrapper, null);
-                    throw new RuntimeException(ex);
-                })
-                .thenAccept(
-                    result -> recycleQueue(wrapper, result)
-                );
-            wrapper.future = wrappedFuture;
-            return wrapper;
-        };
-        synchronized (this) {
-            if (this.running.size() < this.maxJobsRunningAtOnce) {
-                this.running.add(wrappedSupplier.get());
-            } else {
-                this.waiting.add(wrappedSupplier);
-            }
-        }
+        this.unfinished.incrementAndGet();
+        this.waiting.add(new Job<>(completableFutureSupplier, name));
+        this.drain();
     }
 
     /**
-     * Wait for all running and waiting futures to complete before returning.
+     * Start waiting jobs while there are free permits.
      */
-    public void joinAll() {
-        System.out.println("called joinAll");
-        // not only must we join all futures in running, we must wait for those in waiting to trickle out as well
-        while (true) {
-            final boolean breakFlag;
-            synchronized (this.waiting) {
-                breakFlag = this.waiting.isEmpty();
+    private void drain() {
+        if (this.drainRequests.getAndIncrement() != 0) {
+            return; // the thread already draining will loop again
+        }
+        int requests = 1;
+        do {
+            while (!this.waiting.isEmpty() && this.permits.tryAcquire()) {
+                Job<T> job = this.waiting.poll();
+                if (job == null) {
+                    this.permits.release();
+                    break;
+                }
+                this.start(job);
             }
+            requests = this.drainRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    private void start(@NotNull Job<T> job) {
+        CompletableFuture<T> future;
+        try {
+            future = job.supplier.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
 
-            final List<CompletableFutureReferenceWrapper> wrappers;
-            synchronized (this.running) {
-                wrappers = new ArrayList<>(this.running);
+        future.whenComplete((result, ex) -> {
+            if (ex != null) {
+                this.failed.incrementAndGet();
+                System.err.println("job " + job.name + " failed");
+                ex.printStackTrace();
+            } else if (result != null) {
+                this.output.add(result);
             }
 
-            for (CompletableFutureReferenceWrapper wrapper : wrappers) {
-                assert wrapper.future != null;
-                try {
-                    wrapper.future.join();
-                } catch (CompletionException e) {
-                    e.printStackTrace();
+            this.permits.release();
+            this.drain();
+            if (this.unfinished.decrementAndGet() == 0) {
+                synchronized (this.idle) {
+                    this.idle.notifyAll();
                 }
             }
+        });
+    }
+
+    /**
+     * Get the number of jobs that have started and not completed yet.
+     *
+     * @return A snapshot, which may be stale by the time it's returned.
+     */
+    public int getRunning() {
+        return this.maxJobsRunningAtOnce - this.permits.availablePermits();
+    }
+
+    /**
+     * Get the number of jobs that are waiting for a running job to complete before they start.
+     *
+     * @return A snapshot, which may be stale by the time it's returned.
+     */
+    public int getWaiting() {
+        return Math.max(0, this.unfinished.get() - this.getRunning());
+    }
+
+    /**
+     * Get the number of jobs that have completed exceptionally.
+     *
+     * @return A snapshot, which may be stale by the time it's returned.
+     */
+    public int getFailed() {
+        return this.failed.get();
+    }
 
-            if (breakFlag) {
-                break;
+    /**
+     * Wait for all running and waiting futures to complete before returning.
+     * Blocks without polling; returns early only if the calling thread is interrupted.
+     */
+    public void joinAll() {
+        synchronized (this.idle) {
+            while (this.unfinished.get() != 0) {
+                try {
+                    this.idle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
             }
         }
     }
@@ -116,30 +162,16 @@ public final class JobsQueue<T> {
      * If <code>T</code> is {@link Void}, returns an empty list.
      */
     public @NotNull List<@NotNull T> getAll() {
-        synchronized (this.output) {
-            List<@NotNull T> out = new ArrayList<>(this.output);
-            this.output.clear();
-            return out;
+        List<@NotNull T> out = new ArrayList<>();
+        T result;
+        while ((result = this.output.poll()) != null) {
+            out.add(result);
         }
+        return out;
     }
 
 
-    private static class CompletableFutureReferenceWrapper {
-        @Nullable CompletableFuture<Void> future;
-
-        @SuppressWarnings("CanBeFinal")
-        @Nullable String name;
-
-
-        CompletableFutureReferenceWrapper(@SuppressWarnings("SameParameterValue") @Nullable CompletableFuture<Void> future, @Nullable String name) {
-            this.future = future;
-            this.name = name;
-        }
-
-        @Override
-        public String toString() {
-            return "name: " + this.name;
-        }
+    private record Job<T>(@NotNull Supplier<CompletableFuture<T>> supplier, @Nullable String name) {
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,355 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of counters, gauges and histograms, each identified by a name and a set of labels
+ * (e.g. <code>http_responses_total{host="www.reddit.com",outcome="success"}</code>).
+ * <p>
+ * Recording is lock-free, so instruments can be updated on hot paths. The current values can be read in the
+ * Prometheus text format (see {@link MetricsServer}) or over JMX (see {@link #registerMBean()}).
+ */
+@ThreadSafe
+public final class Metrics {
+    private static final Metrics SHARED = new Metrics();
+    /**
+     * Name of the MBean registered by {@link #registerMBean()}.
+     */
+    public static final String MBEAN_NAME = "com.github.a2435191.download_musical_scores:type=Metrics";
+    /**
+     * Upper bounds of the default histogram buckets, in seconds: from a quick API call to a large download.
+     */
+    public static final double[] DEFAULT_SECONDS_BUCKETS = {
+        0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800
+    };
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final @NotNull Map<@NotNull String, @NotNull Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Get the registry every part of this program records to.
+     *
+     * @return the shared instance
+     */
+    public static @NotNull Metrics getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Get (or create) a counter.
+     *
+     * @param name   Metric name, e.g. <code>http_responses_total</code>.
+     * @param help   Description of the metric, the same for every set of labels.
+     * @param labels Alternating label names and values.
+     * @return The counter with these labels.
+     */
+    public @NotNull Counter counter(@NotNull String name, @NotNull String help, @NotNull String @NotNull ... labels) {
+        return (Counter) family(name, help, Type.COUNTER).instruments
+            .computeIfAbsent(formatLabels(labels), $ -> new Counter());
+    }
+
+    /**
+     * Get (or create) a histogram.
+     *
+     * @param name    Metric name, e.g. <code>downloader_resolve_seconds</code>.
+     * @param help    Description of the metric, the same for every set of labels.
+     * @param buckets Upper bounds of the buckets, in increasing order. Ignored if the histogram already exists.
+     * @param labels  Alternating label names and values.
+     * @return The histogram with these labels.
+     */
+    public @NotNull Histogram histogram(@NotNull String name,
+                                        @NotNull String help,
+                                        double @NotNull [] buckets,
+                                        @NotNull String @NotNull ... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).instruments
+            .computeIfAbsent(formatLabels(labels), $ -> new Histogram(buckets));
+    }
+
+    /**
+     * Register a gauge, replacing any gauge with the same name and labels.
+     *
+     * @param name   Metric name, e.g. <code>jobs_running</code>.
+     * @param help   Description of the metric, the same for every set of labels.
+     * @param value  Reads the current value. Called whenever the metrics are read, from any thread.
+     * @param labels Alternating label names and values.
+     */
+    public void gauge(@NotNull String name,
+                      @NotNull String help,
+                      @NotNull DoubleSupplier value,
+                      @NotNull String @NotNull ... labels) {
+        family(name, help, Type.GAUGE).instruments.put(formatLabels(labels), new Gauge(value));
+    }
+
+    private @NotNull Family family(@NotNull String name, @NotNull String help, @NotNull Type type) {
+        Family family = families.computeIfAbsent(name, $ -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already a " + family.type.text);
+        }
+        return family;
+    }
+
+    /**
+     * Format labels the way the Prometheus text format does, e.g. <code>{host="a",outcome="b"}</code>.
+     *
+     * @param labels Alternating label names and values.
+     * @return The formatted labels, or an empty string if there are none.
+     */
+    private static @NotNull String formatLabels(@NotNull String @NotNull ... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    /**
+     * Add a label to formatted labels.
+     */
+    private static @NotNull String withLabel(@NotNull String labels, @NotNull String name, @NotNull String value) {
+        String label = formatLabels(name, value);
+        return labels.isEmpty() ? label : labels.substring(0, labels.length() - 1) + "," + label.substring(1);
+    }
+
+    private static @NotNull String formatValue(double value) {
+        if (value == Double.POSITIVE_INFINITY) {
+            return "+Inf";
+        }
+        if (value == (long) value) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Read every sample, e.g. the count of each bucket of a histogram.
+     *
+     * @return Values by sample name with labels, e.g. <code>jobs_running</code> or
+     * <code>downloader_resolve_seconds_bucket{downloader="GoogleDriveDownloader",le="0.5"}</code>.
+     */
+    public @NotNull Map<@NotNull String, @NotNull Double> getSamples() {
+        Map<String, Double> out = new LinkedHashMap<>();
+        families.forEach((name, family) ->
+            family.instruments.forEach((labels, instrument) -> instrument.addSamples(name, labels, out)));
+        return out;
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format (version <code>0.0.4</code>).
+     *
+     * @return The metrics, one sample per line.
+     */
+    public @NotNull String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        families.forEach((name, family) -> {
+            out.append("# HELP ").append(name).append(' ')
+                .append(family.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.text).append('\n');
+            Map<String, Double> samples = new LinkedHashMap<>();
+            family.instruments.forEach((labels, instrument) -> instrument.addSamples(name, labels, samples));
+            samples.forEach((sample, value) -> out.append(sample).append(' ').append(formatValue(value)).append('\n'));
+        });
+        return out.toString();
+    }
+
+    /**
+     * Expose every sample as a read-only attribute of an MBean named {@link #MBEAN_NAME} on the platform MBean server,
+     * e.g. for JConsole or VisualVM. Does nothing if it's already registered.
+     *
+     * @throws RuntimeException if the MBean can't be registered.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(MBEAN_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            // already exposed
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram");
+
+        final @NotNull String text;
+
+        Type(@NotNull String text) {
+            this.text = text;
+        }
+    }
+
+    private record Family(@NotNull String help,
+                          @NotNull Type type,
+                          @NotNull Map<@NotNull String, @NotNull Instrument> instruments) {
+        Family(@NotNull String help, @NotNull Type type) {
+            this(help, type, new ConcurrentSkipListMap<>());
+        }
+    }
+
+    private interface Instrument {
+        void addSamples(@NotNull String name, @NotNull String labels, @NotNull Map<String, Double> out);
+    }
+
+    /**
+     * Value that only goes up, e.g. a number of requests or bytes.
+     */
+    public static final class Counter implements Instrument {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            if (amount < 0) {
+                throw new IllegalArgumentException("counters only go up");
+            }
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void addSamples(@NotNull String name, @NotNull String labels, @NotNull Map<String, Double> out) {
+            out.put(name + labels, (double) get());
+        }
+    }
+
+    private record Gauge(@NotNull DoubleSupplier value) implements Instrument {
+        @Override
+        public void addSamples(@NotNull String name, @NotNull String labels, @NotNull Map<String, Double> out) {
+            out.put(name + labels, value.getAsDouble());
+        }
+    }
+
+    /**
+     * Distribution of observed values, e.g. latencies, counted in cumulative buckets.
+     */
+    public static final class Histogram implements Instrument {
+        private final double @NotNull [] bounds;
+        private final @NotNull LongAdder @NotNull [] counts; // not cumulative, the last one is +Inf
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double @NotNull [] bounds) {
+            this.bounds = bounds.clone();
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = Arrays.binarySearch(bounds, value);
+            counts[bucket >= 0 ? bucket : -bucket - 1].increment(); // upper bounds are inclusive
+            sum.add(value);
+        }
+
+        /**
+         * Observe a duration in seconds.
+         *
+         * @param startNanos {@link System#nanoTime()} at the start of the duration, which ends now.
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / NANOS_PER_SECOND);
+        }
+
+        @Override
+        public void addSamples(@NotNull String name, @NotNull String labels, @NotNull Map<String, Double> out) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                double bound = i < bounds.length ? bounds[i] : Double.POSITIVE_INFINITY;
+                out.put(name + "_bucket" + withLabel(labels, "le", formatValue(bound)), (double) cumulative);
+            }
+            out.put(name + "_sum" + labels, sum.sum());
+            out.put(name + "_count" + labels, (double) cumulative);
+        }
+    }
+
+    /**
+     * Exposes {@link #getSamples()} as attributes.
+     */
+    private final class MBean implements DynamicMBean {
+        @Override
+        public @NotNull Object getAttribute(@NotNull String attribute) throws AttributeNotFoundException {
+            @Nullable Double value = getSamples().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(@NotNull Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public @NotNull AttributeList setAttributes(@NotNull AttributeList attributes) {
+            return new AttributeList(); // none are writable
+        }
+
+        @Override
+        public @NotNull AttributeList getAttributes(@NotNull String @NotNull [] attributes) {
+            Map<String, Double> samples = getSamples();
+            AttributeList out = new AttributeList();
+            for (String attribute : attributes) {
+                @Nullable Double value = samples.get(attribute);
+                if (value != null) {
+                    out.add(new Attribute(attribute, value));
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public @NotNull Object invoke(String actionName, Object[] params, String[] signature)
+            throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public @NotNull MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = getSamples().keySet().stream()
+                .map(sample -> new MBeanAttributeInfo(sample, Double.class.getName(), sample, true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Metrics.class.getName(), "Download metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a {@link Metrics} registry at <code>/metrics</code> in the Prometheus text format, for Prometheus
+ * (or <code>curl</code>) to scrape.
+ */
+public final class MetricsServer implements AutoCloseable {
+    /**
+     * Path the metrics are served at.
+     */
+    public static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final int METHOD_NOT_ALLOWED = 405;
+
+    private final @NotNull HttpServer server;
+    private final @NotNull Metrics metrics;
+
+    private MetricsServer(@NotNull HttpServer server, @NotNull Metrics metrics) {
+        this.server = server;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start serving in the background.
+     *
+     * @param address Address to listen on. Port <code>0</code> picks a free port.
+     * @param metrics Registry to serve.
+     * @return The running server. Close it to stop.
+     * @throws IOException if the address can't be bound.
+     */
+    @Contract("_, _ -> new")
+    public static @NotNull MetricsServer start(@NotNull InetSocketAddress address, @NotNull Metrics metrics)
+        throws IOException {
+        HttpServer httpServer = HttpServer.create(address, 0);
+        MetricsServer metricsServer = new MetricsServer(httpServer, metrics);
+        httpServer.createContext(PATH, metricsServer::handle);
+        httpServer.start(); // on a single background thread, scrapes are rare
+        return metricsServer;
+    }
+
+    /**
+     * Address the server is listening on.
+     *
+     * @return the bound address, with the actual port.
+     */
+    public @NotNull InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(METHOD_NOT_ALLOWED, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -3,6 +3,7 @@ package com.github.a2435191.download_musical_scores.util;
 import com.github.a2435191.download_musical_scores.reddit.RedditClient;
 import org.apache.commons.validator.routines.UrlValidator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
 import java.util.*;
@@ -10,35 +11,25 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
-@SuppressWarnings({"RegExpRedundantEscape", "RegExpUnnecessaryNonCapturingGroup"})
 public class URLTextExtractor {
     private static final Pattern HTML_URL_REGEX = Pattern.compile("<a href=\"(.+?)\">");
 
-    private static final String MARKDOWN_BOLD_OR_ITALICS = "(?:\\*{0,2})";
-
-    private static final Pattern MARKDOWN_URL_REGEX = Pattern.compile(
-        MARKDOWN_BOLD_OR_ITALICS
-            + "\\[(.+)\\]\\(.+\\)"
-            + MARKDOWN_BOLD_OR_ITALICS
-    );
-
-    private static final Pattern STANDALONE_URL_REGEX = Pattern.compile(
-        "^"
-            + MARKDOWN_BOLD_OR_ITALICS
-            + "(?:((?:http:\\/\\/)|(?:https:\\/\\/)|(?:www\\.)).+)"
-            + MARKDOWN_BOLD_OR_ITALICS
-            + "$"
-    );
+    /**
+     * Prefixes of a standalone URL, which may be wrapped in up to two <code>*</code>s of markdown bold or italics.
+     */
+    private static final String[] STANDALONE_URL_PREFIXES = {"http://", "https://", "www."};
+    private static final int MAX_MARKDOWN_STARS = 2;
 
     private static final String REMOVED = "[removed]";
     private static final String DELETED = "[deleted]";
 
+    private static final UrlValidator VALIDATOR = new UrlValidator();
+
     private URLTextExtractor() {
     }
 
     private static Collection<@NotNull String> removeInvalidURLS(@NotNull Collection<String> urls) {
-        UrlValidator validator = new UrlValidator();
-        return urls.stream().filter(validator::isValid).toList();
+        return urls.stream().filter(VALIDATOR::isValid).toList();
     }
 
 
@@ -70,80 +61,257 @@ public class URLTextExtractor {
      * @see URLTextExtractor#extractURLsFromRedditPost(JSONObject, String, boolean)
      */
     public static String @NotNull [] extractURLsFromRedditPost(@NotNull JSONObject data, @NotNull String subredditName, boolean alwaysGetHTMLFromReddit) throws BadRequestStatusException {
-        Set<@NotNull String> unfiltered = extractURLsFromRedditPostNoFilter(data, subredditName, alwaysGetHTMLFromReddit);
+        Set<@NotNull String> unfiltered = extractURLsWithoutHTML(data);
+        if (needsHTML(data, unfiltered, alwaysGetHTMLFromReddit)) {
+            addURLsFromHTML(RedditClient.getPostHTML(data.getString("id"), subredditName), unfiltered);
+        }
         return removeInvalidURLS(unfiltered).toArray(new String[0]);
     }
 
+    /**
+     * Get the URLs contained inside many Reddit posts, e.g. a page of search results.
+     * Same as calling {@link #extractURLsFromRedditPost(JSONObject, String, boolean)} on each post, except that the
+     * posts that need their HTML from reddit.com get it with as few requests as possible
+     * (see {@link RedditClient#getPostHTMLs(Collection)}).
+     *
+     * @param posts                   JSON objects, see {@link #extractURLsFromRedditPost(JSONObject, String, boolean)}.
+     * @param alwaysGetHTMLFromReddit See {@link #extractURLsFromRedditPost(JSONObject, String, boolean)}.
+     * @return Array of URLs for each post, in the same order as <code>posts</code>.
+     * @throws BadRequestStatusException if HTTP status is non-<code>200</code>
+     */
+    public static @NotNull List<String @NotNull []> extractURLsFromRedditPosts(@NotNull List<@NotNull JSONObject> posts,
+                                                                              boolean alwaysGetHTMLFromReddit)
+        throws BadRequestStatusException {
+        final List<Set<String>> unfiltered = new ArrayList<>(posts.size());
+        final List<String> idsNeedingHTML = new ArrayList<>();
+        for (JSONObject data : posts) {
+            Set<String> urls = extractURLsWithoutHTML(data);
+            unfiltered.add(urls);
+            if (needsHTML(data, urls, alwaysGetHTMLFromReddit)) {
+                idsNeedingHTML.add(data.getString("id"));
+            }
+        }
+
+        final Map<String, String> htmls = idsNeedingHTML.isEmpty()
+                                              ? Map.of()
+                                              : RedditClient.getPostHTMLs(idsNeedingHTML);
+        final List<String[]> out = new ArrayList<>(posts.size());
+        for (int i = 0; i < posts.size(); i++) {
+            final Set<String> urls = unfiltered.get(i);
+            final @Nullable String html = htmls.get(posts.get(i).getString("id"));
+            if (html != null) {
+                addURLsFromHTML(html, urls);
+            }
+            out.add(removeInvalidURLS(urls).toArray(new String[0]));
+        }
+        return out;
+    }
+
     private static boolean selftextIsEmpty(@NotNull String selftext) {
         return selftext.equals(REMOVED) || selftext.equals(DELETED) || selftext.isEmpty();
     }
 
-    private static @NotNull Collection<String> extractBase64Urls(@NotNull String selftext) {
-        Base64.Decoder decoder = Base64.getDecoder();
-        List<String> out = new ArrayList<>();
-        for (String line : selftext.split("\n")) {
-            try {
-                out.add(new String(decoder.decode(line)));
-            } catch (IllegalArgumentException e) {
-                // no-op
+    /**
+     * Find the candidate URLs of a selftext in a single pass over its lines. For each line, the candidates are:
+     * <ul>
+     *     <li>the line decoded as Base64, since some URLs are encoded in base 64</li>
+     *     <li>the line without whitespace, since some URLs are separated by spaces</li>
+     *     <li>the text of a markdown link <code>[text](url)</code>, which is usually the URL itself</li>
+     *     <li>space-separated words starting with <code>http://</code>, <code>https://</code> or <code>www.</code>,
+     *     possibly in markdown bold or italics</li>
+     * </ul>
+     * Candidates still have to be checked with {@link #removeInvalidURLS(Collection)}.
+     *
+     * @param selftext Non-empty selftext.
+     * @param out      Set to add the candidates to.
+     */
+    private static void scanSelftext(@NotNull String selftext, @NotNull Set<@NotNull String> out) {
+        int lineStart = 0;
+        while (true) {
+            int lineEnd = selftext.indexOf('\n', lineStart);
+            boolean isLastLine = lineEnd < 0;
+            if (isLastLine) {
+                lineEnd = selftext.length();
+            }
+            boolean isTrailingEmptyLine = isLastLine && lineStart == lineEnd && lineStart != 0;
+            if (!isTrailingEmptyLine) {
+                scanBase64(selftext, lineStart, lineEnd, out);
+                scanLine(selftext, lineStart, lineEnd, lineStart == 0, isLastLine, out);
+            }
+            if (isLastLine) {
+                return;
             }
+            lineStart = lineEnd + 1;
         }
-        return out;
     }
 
-    private static Set<@NotNull String> extractURLsFromRedditPostNoFilter(
-        @NotNull JSONObject data,
-        @NotNull String subredditName,
-        boolean alwaysGetHTMLFromReddit
-    ) throws BadRequestStatusException {
-        if (data.getBoolean("is_self")) //noinspection DanglingJavadoc
-        {
-            /**
-             See {@link RedditClient#getPostHTML(String, String)} apiNote for why we do this
-             */
-            final String selftext;
-
-            selftext = data.getString("selftext").replace("\\_", "_");
+    private static boolean isBase64Char(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                   || c == '+' || c == '/' || c == '=';
+    }
 
-            Set<String> out = new HashSet<>();
-            if (selftextIsEmpty(selftext)) {
-                return Set.of();
+    /**
+     * Decode a line as Base64. Lines with characters outside the Base64 alphabet are skipped without trying,
+     * since most lines aren't Base64 and a failed decode is expensive.
+     */
+    private static void scanBase64(@NotNull String text, int start, int end, @NotNull Set<@NotNull String> out) {
+        for (int i = start; i < end; i++) {
+            if (!isBase64Char(text.charAt(i))) {
+                return;
             }
+        }
+        try {
+            out.add(new String(Base64.getDecoder().decode(text.substring(start, end))));
+        } catch (IllegalArgumentException e) {
+            // not Base64 after all, e.g. bad padding
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Characters a line of markdown ends at, besides <code>\n</code>.
+     */
+    private static boolean isOtherLineTerminator(char c) {
+        return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Find all candidates but the Base64 one in a <code>\n</code>-terminated line.
+     *
+     * @param isFirstLine Whether the line starts the text; otherwise its first word is glued to the previous line.
+     * @param isLastLine  Whether the line ends the text; otherwise its last word is glued to the next line.
+     */
+    private static void scanLine(@NotNull String text, int start, int end,
+                                 boolean isFirstLine, boolean isLastLine,
+                                 @NotNull Set<@NotNull String> out) {
+        // a \r\n line ending is one terminator, not a \r followed by an empty line
+        final int contentEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+        StringBuilder withoutWhitespace = new StringBuilder(contentEnd - start);
 
-            out.addAll(extractBase64Urls(selftext)); // some URLs are encoded in base 64
-            out.addAll(selftext.lines().map(
-                    s -> s.replaceAll("\\s", ""))
-                .toList()); // some URLs are separated by spaces
+        int markdownStart = start; // start of the current run of text without any line terminator
+        int wordStart = start;
+        boolean wordHasLineTerminator = false;
+        for (int i = start; i <= end; i++) {
+            final boolean atEnd = i == end;
+            final char c = atEnd ? '\n' : text.charAt(i);
 
-            {
-                Matcher matcher = MARKDOWN_URL_REGEX.matcher(selftext);
-                while (matcher.find()) {
-                    out.add(matcher.group(1));
+            if (atEnd || c == '\r') {
+                if (!atEnd || contentEnd == end) { // a final \r already ended the last segment
+                    out.add(withoutWhitespace.toString());
                 }
+                withoutWhitespace.setLength(0);
+            } else if (!isWhitespace(c)) {
+                withoutWhitespace.append(c);
             }
 
+            if (atEnd || isOtherLineTerminator(c)) {
+                scanMarkdownLink(text, markdownStart, i, out);
+                markdownStart = i + 1;
+            }
 
-            out.addAll(
-                Arrays.stream(selftext.split("\s+"))
-                    .filter(STANDALONE_URL_REGEX.asMatchPredicate())
-                    .toList()
-            );
+            if (atEnd || c == ' ') {
+                if (i > wordStart && !wordHasLineTerminator
+                        && (wordStart > start || isFirstLine) && (!atEnd || isLastLine)) {
+                    scanStandaloneURL(text, wordStart, i, out);
+                }
+                wordStart = i + 1;
+                wordHasLineTerminator = false;
+            } else if (isOtherLineTerminator(c)) {
+                wordHasLineTerminator = true;
+            }
+        }
+    }
 
-            if (out.isEmpty() || alwaysGetHTMLFromReddit) {
-                // Otherwise, if PushShift data isn't enough, query the html via Reddit.
-                // One issue with this is that deleted posts come up empty.
-                String html = RedditClient.getPostHTML(data.getString("id"), subredditName);
-                Matcher matcher = HTML_URL_REGEX.matcher(html);
+    /**
+     * Find the markdown link of a run of text without line terminators. As links are matched greedily, there is at
+     * most one: its text runs from the first <code>[</code> to the last <code>](</code> that is followed by a
+     * non-empty url and a <code>)</code>.
+     */
+    private static void scanMarkdownLink(@NotNull String text, int start, int end, @NotNull Set<@NotNull String> out) {
+        int openBracket = text.indexOf('[', start);
+        if (openBracket < 0 || openBracket >= end) {
+            return;
+        }
+        int closeParen = text.lastIndexOf(')', end - 1);
+        for (int i = closeParen - 3; i >= openBracket + 2; i--) {
+            if (text.charAt(i) == ']' && text.charAt(i + 1) == '(') {
+                out.add(text.substring(openBracket + 1, i));
+                return;
+            }
+        }
+    }
 
-                while (matcher.find()) {
-                    out.add(matcher.group(1));
-                }
+    /**
+     * Add a space-separated word if it is a URL, possibly wrapped in markdown bold or italics (which are kept).
+     */
+    private static void scanStandaloneURL(@NotNull String text, int start, int end, @NotNull Set<@NotNull String> out) {
+        int stars = 0;
+        while (stars <= MAX_MARKDOWN_STARS && start + stars < end && text.charAt(start + stars) == '*') {
+            stars++;
+        }
+        if (stars > MAX_MARKDOWN_STARS) {
+            return;
+        }
+        for (String prefix : STANDALONE_URL_PREFIXES) {
+            if (text.startsWith(prefix, start + stars) && end - (start + stars) > prefix.length()) {
+                out.add(text.substring(start, end));
+                return;
             }
-            return out;
+        }
+    }
 
+    /**
+     * Whether a post's HTML should be fetched from reddit.com, because the PushShift data isn't enough.
+     * One issue with this is that deleted posts come up empty.
+     *
+     * @param urlsWithoutHTML The result of {@link #extractURLsWithoutHTML(JSONObject)} for <code>data</code>.
+     */
+    private static boolean needsHTML(@NotNull JSONObject data,
+                                     @NotNull Set<@NotNull String> urlsWithoutHTML,
+                                     boolean alwaysGetHTMLFromReddit) {
+        return data.getBoolean("is_self")
+                   && !selftextIsEmpty(data.getString("selftext").replace("\\_", "_"))
+                   && (urlsWithoutHTML.isEmpty() || alwaysGetHTMLFromReddit);
+    }
+
+    private static void addURLsFromHTML(@NotNull String html, @NotNull Set<@NotNull String> out) {
+        Matcher matcher = HTML_URL_REGEX.matcher(html);
+        while (matcher.find()) {
+            out.add(matcher.group(1));
+        }
+    }
+
+    /**
+     * Get the (unfiltered) URLs of a post from the PushShift data alone.
+     *
+     * @return A mutable set.
+     */
+    private static Set<@NotNull String> extractURLsWithoutHTML(@NotNull JSONObject data) {
+        if (data.getBoolean("is_self")) {
+            return extractCandidates(data.getString("selftext"));
         }
         // otherwise, the post is a link post
-        return Set.of(data.getString("url"));
+        return new HashSet<>(Set.of(data.getString("url")));
+
+    }
 
+    /**
+     * Get the candidate URLs of a selftext, see {@link #scanSelftext(String, Set)}.
+     *
+     * @param selftext Selftext as PushShift returns it.
+     * @return A mutable set, empty if the post was removed or deleted.
+     */
+    static @NotNull Set<@NotNull String> extractCandidates(@NotNull String selftext) {
+        // see RedditClient#getPostHTML(String, String) apiNote for why we do this
+        final String unescaped = selftext.replace("\\_", "_");
+
+        Set<String> out = new HashSet<>();
+        if (!selftextIsEmpty(unescaped)) {
+            scanSelftext(unescaped, out);
+        }
+        return out;
     }
 }
@@ -0,0 +1,109 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.github.a2435191.download_musical_scores.reddit.RedditPostInfo;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Write {@link FailedLinks} to a file and read them back, as one run leaves them for the next.
+ */
+class FailedLinksTest {
+    private static final RedditPostInfo OLDER = new RedditPostInfo(
+        "u1a2b3", 1_650_000_000L, "/r/MusicalScores/comments/u1a2b3/into_the_woods/",
+        "Into the Woods, \"Jr.\" (Full Score)\nrev. 2 \\ with cuts, \"\"",
+        new String[]{
+            "https://drive.google.com/drive/folders/1AbC",
+            "https://mega.nz/folder/AbCd#EfGh",
+            "https://we.tl/t-AbC,123",
+        });
+    private static final RedditPostInfo NEWER = new RedditPostInfo(
+        "u9z8y7", 1_660_000_000L, "/r/MusicalScores/comments/u9z8y7/six/",
+        "Six (Band Parts)",
+        new String[]{"https://www.dropbox.com/s/abc/six.zip?dl=0", "https://www.sendspace.com/file/a1"});
+
+    @TempDir
+    Path directory;
+
+    private static void assertSamePost(@NotNull RedditPostInfo expected, @NotNull RedditPostInfo actual) {
+        assertEquals(expected.id(), actual.id());
+        assertEquals(expected.timestamp(), actual.timestamp());
+        assertEquals(expected.redditURLPath(), actual.redditURLPath());
+        assertEquals(expected.title(), actual.title());
+        assertArrayEquals(expected.scoreURLs(), actual.scoreURLs());
+    }
+
+    private @NotNull IOException assertReadFails(@NotNull String csv) throws IOException {
+        Path path = directory.resolve("failed-links.csv");
+        Files.writeString(path, csv);
+        IOException e = assertThrows(IOException.class, () -> FailedLinks.read(path));
+        assertTrue(e.getMessage().contains(path.toString()), e.getMessage());
+        return e;
+    }
+
+    @Test
+    void roundTripKeepsPostsAndLinkNumbers() throws IOException {
+        Path path = directory.resolve("failed-links.csv");
+        FailedLinks written = new FailedLinks();
+        written.add(OLDER, 2);
+        written.add(OLDER, 0);
+        written.add(NEWER, 1);
+
+        written.write(path);
+        FailedLinks read = FailedLinks.read(path);
+
+        List<RedditPostInfo> posts = read.getPosts();
+        assertEquals(2, posts.size());
+        assertSamePost(NEWER, posts.get(0));
+        assertSamePost(OLDER, posts.get(1));
+        assertTrue(read.contains(OLDER.id(), 0));
+        assertFalse(read.contains(OLDER.id(), 1));
+        assertTrue(read.contains(OLDER.id(), 2));
+        assertFalse(read.contains(NEWER.id(), 0));
+        assertTrue(read.contains(NEWER.id(), 1));
+        assertFalse(read.containsPost("u0none"));
+        assertFalse(Files.exists(directory.resolve("failed-links.csv.tmp")));
+
+        // and writing what was read gives the same file
+        String firstWrite = Files.readString(path);
+        read.write(path);
+        assertEquals(firstWrite, Files.readString(path));
+    }
+
+    @Test
+    void missingFileHasNoLinks() throws IOException {
+        FailedLinks read = FailedLinks.read(directory.resolve("failed-links.csv"));
+
+        assertEquals(List.of(), read.getPosts());
+    }
+
+    @Test
+    void shortRowIsRejected() throws IOException {
+        assertReadFails("\"u1a2b3\",\"1650000000\",\"/r/MusicalScores/comments/u1a2b3/\"\n");
+    }
+
+    @Test
+    void malformedNumberIsRejected() throws IOException {
+        IOException e = assertReadFails(
+            "\"u1a2b3\",\"yesterday\",\"/r/MusicalScores/comments/u1a2b3/\",\"Title\",\"0\",\"https://we.tl/t-A\"\n");
+
+        assertTrue(e.getCause() instanceof NumberFormatException);
+    }
+
+    @Test
+    void linkNumberOutsideThePostIsRejected() throws IOException {
+        assertReadFails(
+            "\"u1a2b3\",\"1650000000\",\"/r/MusicalScores/comments/u1a2b3/\",\"Title\",\"1\",\"https://we.tl/t-A\"\n");
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.a2435191.download_musical_scores;
+
+import com.github.a2435191.download_musical_scores.downloaders.AbstractFileDownloader;
+import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.filetree.URLFileNodeWithKnownName;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link MusicalScoresDownloader#download(String, Path, PersistentDownloadData)} against a local HTTP server that
+ * answers conditional requests: a link that is a single file, downloaded again over the copy of an earlier run, and a
+ * folder whose files download while it is being listed.
+ */
+class MusicalScoresDownloaderTest {
+    private static final String NAME = "score.pdf";
+    private static final String ETAG = "\"v1\"";
+    /**
+     * Path of the link to the folder of {@link #listFolder(AbstractFileDownloader.FileSink)}.
+     */
+    private static final String FOLDER = "/folders/show";
+
+    @TempDir
+    Path directory;
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final CountDownLatch firstFileSent = new CountDownLatch(1);
+    private byte[] contents;
+    private LocalServer server;
+    private String url;
+    private Path target;
+    private MusicalScoresDownloader downloader;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        contents = new byte[100_000];
+        new Random(42).nextBytes(contents);
+        server = LocalServer.start("/" + NAME, this::serve);
+        url = server.url("/" + NAME).toString();
+        target = directory.resolve("Some Show (Full Score)");
+
+        AbstractFileDownloader.DownloaderManager manager = new AbstractFileDownloader.DownloaderManager();
+        manager.put(() -> new AbstractFileDownloader() {
+            @Override
+            public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url) throws IOException {
+                return getFileTreeRoot(url, file -> {
+                });
+            }
+
+            @Override
+            public @NotNull AbstractFileNode getFileTreeRoot(@NotNull String url, @NotNull FileSink sink)
+                throws IOException {
+                if (url.endsWith(FOLDER)) {
+                    return listFolder(sink);
+                }
+                AbstractFileNode file = new URLFileNodeWithKnownName(NAME, url);
+                sink.accept(file);
+                return file;
+            }
+        }, "127.0.0.1");
+        downloader = new MusicalScoresDownloader("MusicalScores", directory, manager,
+            data -> data != null && data.overwrite(), (info, idx) -> false, PersistentDownloadDataIndex.empty(),
+            1, Runnable::run, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private void serve(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+            fullResponses.incrementAndGet();
+            exchange.sendResponseHeaders(200, contents.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(contents);
+            }
+            firstFileSent.countDown();
+        }
+    }
+
+    /**
+     * Look up <code>Show/a.pdf</code> and <code>Show/Parts/b.pdf</code> the way a folder listing would: the second file
+     * is only found once the first has been downloaded.
+     *
+     * @throws IOException if the first file isn't downloaded while the folder is being listed.
+     */
+    private @NotNull AbstractFileNode listFolder(@NotNull AbstractFileDownloader.FileSink sink) throws IOException {
+        lookups.incrementAndGet();
+        AbstractFileNode root = new URLFileNodeWithKnownName("Show");
+        AbstractFileNode first = new URLFileNodeWithKnownName("a.pdf", url);
+        root.addChild(first);
+        sink.accept(first);
+        try {
+            if (!firstFileSent.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("a.pdf wasn't downloaded while the folder was listed");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        AbstractFileNode parts = new URLFileNodeWithKnownName("Parts");
+        AbstractFileNode second = new URLFileNodeWithKnownName("b.pdf", url);
+        parts.addChild(second);
+        root.addChild(parts);
+        sink.accept(second);
+        return root;
+    }
+
+    /**
+     * Download the link for the first time, as an earlier run would have.
+     */
+    private @NotNull PersistentDownloadData downloadFirst() throws IOException {
+        MusicalScoresDownloader.Downloaded first = downloader.download(url, target, null);
+        return new PersistentDownloadData("abc123", target, 0, URI.create(url), LocalDateTime.now(), true,
+            first.sha256(), first.validators());
+    }
+
+    private @NotNull List<String> filesInTarget() throws IOException {
+        try (Stream<Path> paths = Files.list(target)) {
+            return paths.map(path -> path.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    @Test
+    void intactCopyIsRevalidated() throws IOException {
+        PersistentDownloadData previous = downloadFirst();
+
+        MusicalScoresDownloader.Downloaded again = downloader.download(url, target, previous);
+
+        assertFalse(again.modified());
+        assertEquals(previous.sha256(), again.sha256());
+        assertEquals(1, fullResponses.get());
+    }
+
+    @Test
+    void truncatedCopyIsReplaced() throws IOException {
+        PersistentDownloadData previous = downloadFirst();
+        Files.write(target.resolve(NAME), Arrays.copyOf(contents, 1000)); // e.g. cut short by a full disk
+
+        MusicalScoresDownloader.Downloaded again = downloader.download(url, target, previous);
+
+        assertTrue(again.modified());
+        assertEquals(previous.sha256(), again.sha256());
+        assertArrayEquals(contents, Files.readAllBytes(target.resolve(NAME)));
+        assertEquals(List.of(NAME), filesInTarget());
+
+        // and the repaired copy is revalidated from then on
+        assertFalse(downloader.download(url, target, previous).modified());
+        assertEquals(2, fullResponses.get());
+    }
+
+    @Test
+    void copyNextToAnotherFileIsReplaced() throws IOException {
+        PersistentDownloadData previous = downloadFirst();
+        Files.writeString(target.resolve("Score (old name).pdf"), "not from this link");
+
+        MusicalScoresDownloader.Downloaded again = downloader.download(url, target, previous);
+
+        assertTrue(again.modified());
+        assertArrayEquals(contents, Files.readAllBytes(target.resolve(NAME)));
+        assertEquals(List.of(NAME), filesInTarget());
+    }
+
+    @Test
+    void folderFilesDownloadWhileItIsListed() throws IOException {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            MusicalScoresDownloader concurrent = new MusicalScoresDownloader("MusicalScores", directory,
+                downloader.manager, data -> false, (info, idx) -> false, PersistentDownloadDataIndex.empty(),
+                2, executor, null);
+            String folderUrl = server.url(FOLDER).toString();
+
+            MusicalScoresDownloader.Downloaded downloaded = concurrent.download(folderUrl, target, null);
+
+            assertTrue(downloaded.modified());
+            assertArrayEquals(contents, Files.readAllBytes(target.resolve("Show").resolve("a.pdf")));
+            assertArrayEquals(contents, Files.readAllBytes(target.resolve("Show").resolve("Parts").resolve("b.pdf")));
+
+            // the finished tree is cached, and its files are handed over all at once
+            Path again = directory.resolve("Some Show (Full Score) (1)");
+            assertEquals(downloaded.sha256(), concurrent.download(folderUrl, again, null).sha256());
+            assertArrayEquals(contents, Files.readAllBytes(again.resolve("Show").resolve("Parts").resolve("b.pdf")));
+            assertEquals(1, lookups.get());
+            assertEquals(4, fullResponses.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
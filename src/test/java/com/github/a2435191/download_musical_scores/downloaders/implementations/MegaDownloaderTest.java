@@ -0,0 +1,425 @@
+package com.github.a2435191.download_musical_scores.downloaders.implementations;
+
+import com.github.a2435191.download_musical_scores.filetree.AbstractFileNode;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link MegaDownloader} and {@link MegaFileNode} against a local stand-in for Mega's API and download servers,
+ * serving a shared folder and a file link encrypted the way Mega encrypts them: node keys under the folder key
+ * (AES-ECB), names under the node keys (AES-CBC) and contents with AES-CTR, with the MAC of the contents in each file
+ * key.
+ */
+class MegaDownloaderTest {
+    private static final Pattern DOWNLOAD_PATH_REGEX = Pattern.compile("^/dl/(\\w+)/(\\d+)-(\\d+)$");
+    private static final String FOLDER_HANDLE = "fOlDeR01";
+    private static final String FILE_HANDLE = "fIlE0001";
+    private static final String OWNER_HANDLE = "oWnEr001";
+    private static final String SHARE_HANDLE = "sHaRe001";
+    private static final String SUBFOLDER_HANDLE = "sUbFoLd1";
+    private static final String SCORE_HANDLE = "sCoRe001";
+    private static final String PARTS_HANDLE = "pArTs001";
+    private static final String LARGE_HANDLE = "lArGe001";
+    /**
+     * Spans the first two MAC chunks and ends partway through a block.
+     */
+    private static final int SMALL_SIZE = 300_037;
+    /**
+     * Large enough to be downloaded in segments, with MAC chunks of every size.
+     */
+    private static final int LARGE_SIZE = 9 * 1024 * 1024 + 37;
+    private static final int FIRST_MAC_CHUNK = 128 * 1024;
+    private static final int MAX_MAC_CHUNK = 1024 * 1024;
+    private static final int BLOCK_SIZE = 16;
+
+    @TempDir
+    Path directory;
+    private final Random random = new Random(2435191);
+    /**
+     * Files the stand-in serves, by handle.
+     */
+    private final Map<String, Fixture> files = new ConcurrentHashMap<>();
+    private final List<String> downloadRanges = new CopyOnWriteArrayList<>();
+    /**
+     * Whether downloads have a byte flipped, as if corrupted on the way.
+     */
+    private final AtomicBoolean corrupt = new AtomicBoolean();
+    private byte[] folderKey;
+    private byte[] shareKey;
+    private byte[] subfolderKey;
+    private LocalServer server;
+    private String baseUrl;
+
+    @BeforeEach
+    void setUp() throws IOException, GeneralSecurityException {
+        folderKey = randomBytes(16);
+        shareKey = randomBytes(16);
+        subfolderKey = randomBytes(16);
+        files.put(SCORE_HANDLE, newFixture("Full Score.pdf", SMALL_SIZE));
+        files.put(PARTS_HANDLE, newFixture("Reed 1.pdf", SMALL_SIZE / 3));
+        files.put(FILE_HANDLE, newFixture("Vocal Book.pdf", SMALL_SIZE * 2 + 5));
+
+        server = new LocalServer()
+            .handle("/cs", this::serveApi)
+            .handle("/dl/", this::serveDownload)
+            .start();
+        baseUrl = server.baseUrl();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private byte @NotNull [] randomBytes(int length) {
+        byte[] out = new byte[length];
+        random.nextBytes(out);
+        return out;
+    }
+
+    private static @NotNull String base64(byte @NotNull [] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static byte @NotNull [] encryptEcb(byte @NotNull [] key, byte @NotNull [] plain)
+        throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(plain);
+    }
+
+    /**
+     * Encrypt the attributes of a node with just a name, as Mega does: <code>MEGA</code> and a JSON object,
+     * zero-padded to whole blocks and encrypted with AES-CBC and a zero IV.
+     */
+    private static @NotNull String encryptName(byte @NotNull [] aesKey, @NotNull String name)
+        throws GeneralSecurityException {
+        byte[] text = ("MEGA{\"n\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8);
+        byte[] padded = Arrays.copyOf(text, (text.length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE);
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+        return base64(cipher.doFinal(padded));
+    }
+
+    /**
+     * Mega's file MAC, one block at a time: a CBC-MAC per chunk (128 KiB, 256 KiB, ... 1 MiB, 1 MiB, ...) with the
+     * nonce twice as IV, each folded into the file MAC by XOR and AES-ECB, condensed to <code>[w0^w1, w2^w3]</code>.
+     */
+    private static byte @NotNull [] referenceMac(byte @NotNull [] aesKey, byte @NotNull [] nonce, byte @NotNull [] plain)
+        throws GeneralSecurityException {
+        Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+        ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+        byte[] fileMac = new byte[BLOCK_SIZE];
+        for (int start = 0, chunkSize = FIRST_MAC_CHUNK; start < plain.length;
+             start += chunkSize, chunkSize = Math.min(chunkSize + FIRST_MAC_CHUNK, MAX_MAC_CHUNK)) {
+            byte[] chunkMac = ByteBuffer.allocate(BLOCK_SIZE).put(nonce).put(nonce).array();
+            int end = Math.min(plain.length, start + chunkSize);
+            for (int block = start; block < end; block += BLOCK_SIZE) {
+                for (int i = 0; i < BLOCK_SIZE && block + i < end; i++) {
+                    chunkMac[i] ^= plain[block + i];
+                }
+                chunkMac = ecb.doFinal(chunkMac);
+            }
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                fileMac[i] ^= chunkMac[i];
+            }
+            fileMac = ecb.doFinal(fileMac);
+        }
+        byte[] condensed = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            condensed[i] = (byte) (fileMac[i] ^ fileMac[i + 4]);
+            condensed[i + 4] = (byte) (fileMac[i + 8] ^ fileMac[i + 12]);
+        }
+        return condensed;
+    }
+
+    private @NotNull Fixture newFixture(@NotNull String name, int size) throws GeneralSecurityException {
+        byte[] plain = randomBytes(size);
+        byte[] aesKey = randomBytes(16);
+        byte[] nonce = randomBytes(8);
+        byte[] nonceAndMac = ByteBuffer.allocate(BLOCK_SIZE).put(nonce).put(referenceMac(aesKey, nonce, plain)).array();
+        byte[] fileKey = new byte[32];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            fileKey[i] = (byte) (aesKey[i] ^ nonceAndMac[i]);
+            fileKey[i + BLOCK_SIZE] = nonceAndMac[i];
+        }
+
+        Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+        ctr.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"),
+            new IvParameterSpec(ByteBuffer.allocate(BLOCK_SIZE).put(nonce).putLong(0).array()));
+        return new Fixture(name, plain, ctr.doFinal(plain), aesKey, fileKey);
+    }
+
+    private @NotNull JSONObject folderNode(@NotNull String handle, @NotNull String parent, byte @NotNull [] key,
+                                           @NotNull String name) throws GeneralSecurityException {
+        return new JSONObject()
+            .put("h", handle)
+            .put("p", parent)
+            .put("t", 1)
+            .put("a", encryptName(key, name))
+            .put("k", SHARE_HANDLE + ":" + base64(encryptEcb(folderKey, key)));
+    }
+
+    private @NotNull JSONObject fileNode(@NotNull String handle, @NotNull String parent)
+        throws GeneralSecurityException {
+        Fixture file = files.get(handle);
+        return new JSONObject()
+            .put("h", handle)
+            .put("p", parent)
+            .put("t", 0)
+            .put("s", file.plain.length)
+            .put("a", encryptName(file.aesKey, file.name))
+            // the key under the share comes after one under a key this link doesn't have
+            .put("k", OWNER_HANDLE + ":" + base64(randomBytes(32))
+                          + "/" + SHARE_HANDLE + ":" + base64(encryptEcb(folderKey, file.fileKey)));
+    }
+
+    /**
+     * Answer <code>a:f</code> (list the shared folder) and <code>a:g</code> (a file's size, attributes and
+     * download URL, by public handle <code>p</code> or by handle <code>n</code> in the folder).
+     */
+    private void serveApi(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            JSONObject command = new JSONArray(
+                new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getJSONObject(0);
+            Object result;
+            try {
+                result = answer(command, exchange.getRequestURI().getQuery());
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            byte[] body = new JSONArray().put(result).toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private @NotNull Object answer(@NotNull JSONObject command, @NotNull String query)
+        throws GeneralSecurityException {
+        final int eargs = -2;
+        final int enoent = -9;
+        boolean inFolder = query.contains("n=" + FOLDER_HANDLE);
+        switch (command.getString("a")) {
+            case "f" -> {
+                if (!inFolder) {
+                    return eargs;
+                }
+                return new JSONObject().put("f", new JSONArray()
+                    .put(folderNode(SHARE_HANDLE, OWNER_HANDLE, shareKey, "Some Show"))
+                    .put(folderNode(SUBFOLDER_HANDLE, SHARE_HANDLE, subfolderKey, "Parts"))
+                    .put(fileNode(SCORE_HANDLE, SHARE_HANDLE))
+                    .put(fileNode(PARTS_HANDLE, SUBFOLDER_HANDLE)));
+            }
+            case "g" -> {
+                String handle = inFolder ? command.optString("n", "") : command.optString("p", "");
+                Fixture file = files.get(handle);
+                if (file == null || (!inFolder && !handle.equals(FILE_HANDLE))) {
+                    return enoent;
+                }
+                JSONObject result = new JSONObject().put("s", file.plain.length);
+                if (command.optInt("g", 0) == 1) {
+                    result.put("g", baseUrl + "/dl/" + handle);
+                }
+                if (!inFolder) {
+                    result.put("at", encryptName(file.aesKey, file.name));
+                }
+                return result;
+            }
+            default -> {
+                return eargs;
+            }
+        }
+    }
+
+    /**
+     * Serve <code>/dl/&lt;handle&gt;/&lt;start&gt;-&lt;end&gt;</code>, as Mega's download servers do.
+     */
+    private void serveDownload(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Matcher matcher = DOWNLOAD_PATH_REGEX.matcher(exchange.getRequestURI().getPath());
+            Fixture file = matcher.matches() ? files.get(matcher.group(1)) : null;
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            int start = Integer.parseInt(matcher.group(2));
+            int end = Integer.parseInt(matcher.group(3));
+            downloadRanges.add(start + "-" + end);
+            byte[] body = Arrays.copyOfRange(file.encrypted, start, end + 1);
+            if (corrupt.get() && start <= file.plain.length / 2 && file.plain.length / 2 <= end) {
+                body[file.plain.length / 2 - start] ^= 1;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    private @NotNull MegaDownloader newDownloader() {
+        return new MegaDownloader(10, URI.create(baseUrl), MegaDownloader.DOWNLOAD_SEGMENTS);
+    }
+
+    private @NotNull MegaFileNode newFileNode(@NotNull String handle, int segments) {
+        Fixture file = files.get(handle);
+        return new MegaFileNode(file.name, handle, file.plain.length, file.fileKey,
+            () -> baseUrl + "/dl/" + handle, segments);
+    }
+
+    /**
+     * Save a node and everything under it.
+     */
+    private static @NotNull Path saveTree(@NotNull AbstractFileNode node, @NotNull Path parentDir) throws IOException {
+        Path saved = node.saveToDisk(parentDir);
+        for (AbstractFileNode child : node.getChildren()) {
+            saveTree(child, saved);
+        }
+        return saved;
+    }
+
+    @Test
+    void folderLinkDecryptsKeysNamesAndContents() throws IOException {
+        AbstractFileNode root = newDownloader().getFileTreeRoot(
+            "https://mega.nz/folder/" + FOLDER_HANDLE + "#" + base64(folderKey));
+
+        Path saved = saveTree(root, directory);
+
+        assertEquals("Some Show", saved.getFileName().toString());
+        assertArrayEquals(files.get(SCORE_HANDLE).plain, Files.readAllBytes(saved.resolve("Full Score.pdf")));
+        assertArrayEquals(files.get(PARTS_HANDLE).plain, Files.readAllBytes(saved.resolve("Parts/Reed 1.pdf")));
+    }
+
+    @Test
+    void subfolderLinkOnlyHasThatFolder() throws IOException {
+        AbstractFileNode root = newDownloader().getFileTreeRoot(
+            "https://mega.nz/folder/" + FOLDER_HANDLE + "#" + base64(folderKey) + "/folder/" + SUBFOLDER_HANDLE);
+
+        Path saved = saveTree(root, directory);
+
+        assertEquals("Parts", saved.getFileName().toString());
+        assertEquals(1, root.getChildren().size());
+        assertArrayEquals(files.get(PARTS_HANDLE).plain, Files.readAllBytes(saved.resolve("Reed 1.pdf")));
+    }
+
+    @Test
+    void fileLinkDecryptsNameAndContents() throws IOException {
+        Fixture file = files.get(FILE_HANDLE);
+
+        Path saved = newDownloader()
+            .getFileTreeRoot("https://mega.nz/file/" + FILE_HANDLE + "#" + base64(file.fileKey))
+            .saveToDisk(directory);
+
+        assertEquals("Vocal Book.pdf", saved.getFileName().toString());
+        assertArrayEquals(file.plain, Files.readAllBytes(saved));
+    }
+
+    @Test
+    void wrongFolderKeyIsRejected() {
+        assertThrows(IOException.class, () -> newDownloader().getFileTreeRoot(
+            "https://mega.nz/folder/" + FOLDER_HANDLE + "#" + base64(randomBytes(16))));
+    }
+
+    @Test
+    void segmentedDownloadPassesMacCheck() throws IOException, GeneralSecurityException {
+        files.put(LARGE_HANDLE, newFixture("Conductor Score.pdf", LARGE_SIZE));
+
+        Path saved = newFileNode(LARGE_HANDLE, 4).saveToDisk(directory);
+
+        assertArrayEquals(files.get(LARGE_HANDLE).plain, Files.readAllBytes(saved));
+        assertEquals(2, downloadRanges.size()); // one segment per 4 MiB at most
+    }
+
+    @Test
+    void corruptDownloadFailsMacCheck() {
+        corrupt.set(true);
+
+        IOException e = assertThrows(IOException.class, () -> newFileNode(SCORE_HANDLE, 1).saveToDisk(directory));
+
+        assertTrue(e.getMessage().contains("MAC"), e.getMessage());
+        assertEquals(3, downloadRanges.size()); // each attempt starts over instead of resuming the corrupt data
+        assertTrue(directory.toFile().list().length == 0, "corrupt file left behind");
+    }
+
+    @Test
+    void macMatchesReference() throws IOException, GeneralSecurityException {
+        for (int size : new int[]{1, 15, 16, 17, FIRST_MAC_CHUNK - 1, FIRST_MAC_CHUNK, FIRST_MAC_CHUNK + 1,
+            3 * FIRST_MAC_CHUNK + 5, 5 * MAX_MAC_CHUNK + 3}) {
+            byte[] plain = randomBytes(size);
+            byte[] aesKey = randomBytes(16);
+            byte[] nonce = randomBytes(8);
+            byte[] expected = referenceMac(aesKey, nonce, plain);
+
+            assertArrayEquals(expected, MegaCrypto.computeMac(aesKey, nonce, new ByteArrayInputStream(plain)),
+                "size " + size);
+            assertArrayEquals(expected, MegaCrypto.computeMac(aesKey, nonce, new Trickle(plain, random)),
+                "size " + size + ", read unevenly");
+        }
+    }
+
+    /**
+     * A file the stand-in serves.
+     *
+     * @param aesKey  Key of the contents and name.
+     * @param fileKey The 32-byte key Mega gives out: <code>aesKey</code> mixed with the nonce and the MAC.
+     */
+    private record Fixture(@NotNull String name, byte @NotNull [] plain, byte @NotNull [] encrypted,
+                           byte @NotNull [] aesKey, byte @NotNull [] fileKey) {
+    }
+
+    /**
+     * Returns a random number of bytes per read, so reads don't line up with blocks or chunks.
+     */
+    private static final class Trickle extends FilterInputStream {
+        private final @NotNull Random random;
+
+        Trickle(byte @NotNull [] bytes, @NotNull Random random) {
+            super(new ByteArrayInputStream(bytes));
+            this.random = random;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 1 + random.nextInt(40_000)));
+        }
+    }
+}
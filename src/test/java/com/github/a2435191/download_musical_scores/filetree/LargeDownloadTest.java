@@ -0,0 +1,90 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import com.github.a2435191.download_musical_scores.util.ContentIndex;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Download a file several times larger than the heap (see <code>maxHeapSize</code> in build.gradle) from a local HTTP
+ * server. If any part of the download were held in memory, this would run out of it.
+ */
+class LargeDownloadTest {
+    private static final long FILE_SIZE = 256L * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String NAME = "archive.zip";
+
+    @TempDir
+    Path directory;
+    private LocalServer server;
+    private URI url;
+
+    /**
+     * Write the file a chunk at a time, so that the server doesn't hold it in memory either.
+     */
+    private static void writeContents(@NotNull OutputStream out) throws IOException {
+        Random random = new Random(42);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long written = 0; written < FILE_SIZE; written += CHUNK_SIZE) {
+            random.nextBytes(chunk);
+            out.write(chunk);
+        }
+    }
+
+    private static byte @NotNull [] expectedDigest() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(ContentIndex.ALGORITHM);
+        writeContents(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        return digest.digest();
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = LocalServer.start("/" + NAME, LargeDownloadTest::serve);
+        url = server.url("/" + NAME);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private static void serve(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.sendResponseHeaders(200, FILE_SIZE);
+            try (OutputStream body = exchange.getResponseBody()) {
+                writeContents(body);
+            }
+        }
+    }
+
+    @Test
+    void downloadsFileLargerThanHeap() throws IOException, NoSuchAlgorithmException {
+        assumeTrue(Runtime.getRuntime().maxMemory() < FILE_SIZE, "the heap must be smaller than the file");
+
+        MessageDigest digest = MessageDigest.getInstance(ContentIndex.ALGORITHM);
+        Path saved = new URLFileNodeWithKnownName(NAME, url).saveToDisk(directory, digest);
+
+        assertEquals(directory.resolve(NAME), saved);
+        assertEquals(FILE_SIZE, Files.size(saved));
+        assertArrayEquals(expectedDigest(), digest.digest());
+    }
+}
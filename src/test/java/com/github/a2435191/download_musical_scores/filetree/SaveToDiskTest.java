@@ -0,0 +1,109 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * {@link AbstractFileNodeStreamDownloader#saveToDisk(Path)} of a {@link URLFileNodeWithKnownName} against a local
+ * HTTP server.
+ */
+class SaveToDiskTest {
+    private static final String NAME = "score.pdf";
+
+    @TempDir
+    Path directory;
+    private final AtomicInteger requests = new AtomicInteger();
+    /**
+     * If set, the server sends the headers and waits for this before sending the body.
+     */
+    private volatile CountDownLatch bodyHeld;
+    private volatile boolean bodySent;
+    private byte[] contents;
+    private LocalServer server;
+    private URI url;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        contents = new byte[100_000];
+        new Random(42).nextBytes(contents);
+
+        server = LocalServer.start("/" + NAME, this::serve);
+        url = server.url("/" + NAME);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private void serve(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, contents.length);
+            CountDownLatch held = bodyHeld;
+            if (held != null) {
+                try {
+                    held.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            bodySent = true;
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(contents);
+            }
+        }
+    }
+
+    @Test
+    void savesFile() throws IOException {
+        Path saved = new URLFileNodeWithKnownName(NAME, url).saveToDisk(directory);
+
+        assertEquals(directory.resolve(NAME), saved);
+        assertArrayEquals(contents, Files.readAllBytes(saved));
+        assertFalse(Files.exists(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_SUFFIX)));
+    }
+
+    @Test
+    void existingFileFailsBeforeTheBody() throws IOException {
+        Files.writeString(directory.resolve(NAME), "already here");
+        // left by an earlier run, before the file got there some other way
+        Files.write(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_SUFFIX), new byte[10]);
+        Files.writeString(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_VALIDATOR_SUFFIX), "\"v1\"");
+        bodyHeld = new CountDownLatch(1);
+
+        try {
+            assertThrows(FileAlreadyExistsException.class,
+                () -> new URLFileNodeWithKnownName(NAME, url).saveToDisk(directory));
+            assertFalse(bodySent);
+        } finally {
+            bodyHeld.countDown();
+        }
+        assertEquals(1, requests.get());
+        assertEquals("already here", Files.readString(directory.resolve(NAME)));
+        assertFalse(Files.exists(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_SUFFIX)));
+        assertFalse(Files.exists(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_VALIDATOR_SUFFIX)));
+    }
+}
@@ -0,0 +1,205 @@
+package com.github.a2435191.download_musical_scores.filetree;
+
+import com.github.a2435191.download_musical_scores.util.BadRequestStatusException;
+import com.github.a2435191.download_musical_scores.util.LocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Segmented downloads of a {@link URLFileNodeWithKnownName} (see {@link URLFileNodeWithKnownName#setSegments(int)})
+ * against a local HTTP server that answers <code>Range</code> requests.
+ */
+class SegmentedDownloadTest {
+    private static final Pattern RANGE_REGEX = Pattern.compile("^bytes=(\\d+)-(\\d+)$");
+    private static final String NAME = "score.pdf";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @TempDir
+    Path directory;
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private long fileSize;
+    /**
+     * Whether the first segment (not the probe) fails, while the others are sent slowly.
+     */
+    private boolean failFirstSegment;
+    private CountDownLatch slowSegments;
+    private final AtomicInteger slowSegmentsCutOff = new AtomicInteger();
+    private LocalServer server;
+    private URI url;
+
+    /**
+     * Contents of the file, computed rather than stored so the test doesn't need a large heap.
+     */
+    private static byte byteAt(long position) {
+        return (byte) (position * 31 + (position >>> 11));
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = LocalServer.start("/" + NAME, this::serve);
+        url = server.url("/" + NAME);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private void serve(@NotNull HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            Matcher matcher = RANGE_REGEX.matcher(range == null ? "" : range);
+            if (!matcher.matches()) {
+                ranges.add("");
+                exchange.sendResponseHeaders(200, fileSize);
+                writeRange(exchange.getResponseBody(), 0, fileSize - 1, false);
+                return;
+            }
+
+            long start = Long.parseLong(matcher.group(1));
+            long end = Long.parseLong(matcher.group(2));
+            ranges.add(start + "-" + end);
+            if (failFirstSegment && start == 0 && end > 0) {
+                sleep(200);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            exchange.sendResponseHeaders(206, end - start + 1);
+            boolean slow = failFirstSegment && end > 0;
+            try {
+                writeRange(exchange.getResponseBody(), start, end, slow);
+            } catch (IOException e) {
+                if (slow) {
+                    slowSegmentsCutOff.incrementAndGet();
+                }
+                throw e;
+            } finally {
+                if (slow) {
+                    slowSegments.countDown();
+                }
+            }
+        }
+    }
+
+    private static void writeRange(@NotNull OutputStream out, long start, long end, boolean slow) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long position = start; position <= end; ) {
+            int length = (int) Math.min(CHUNK_SIZE, end + 1 - position);
+            for (int i = 0; i < length; i++) {
+                chunk[i] = byteAt(position + i);
+            }
+            out.write(chunk, 0, length);
+            out.flush();
+            position += length;
+            if (slow) {
+                sleep(50);
+            }
+        }
+        out.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertContents(@NotNull Path path, long size) throws IOException {
+        assertEquals(size, Files.size(path));
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long position = 0;
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                for (int i = 0; i < read; i++, position++) {
+                    if (chunk[i] != byteAt(position)) {
+                        throw new AssertionError("byte " + position + " differs");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void largeFileIsSplitIntoRanges() throws IOException {
+        fileSize = 16L * 1024 * 1024;
+
+        Path saved = new URLFileNodeWithKnownName(NAME, url).setSegments(4).saveToDisk(directory);
+
+        assertContents(saved, fileSize);
+        assertEquals(5, ranges.size());
+        assertEquals(Set.of("0-0", "0-4194303", "4194304-8388607", "8388608-12582911", "12582912-16777215"),
+            Set.copyOf(ranges));
+    }
+
+    @Test
+    void existingFileIsNotDownloaded() throws IOException {
+        fileSize = 16L * 1024 * 1024;
+        Files.writeString(directory.resolve(NAME), "already here");
+
+        assertThrows(FileAlreadyExistsException.class,
+            () -> new URLFileNodeWithKnownName(NAME, url).setSegments(4).saveToDisk(directory));
+
+        assertEquals(List.of(), ranges);
+        assertEquals("already here", Files.readString(directory.resolve(NAME)));
+        assertFalse(Files.exists(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_SUFFIX)));
+    }
+
+    @Test
+    void smallFileOfKnownSizeIsNotProbed() throws IOException {
+        fileSize = 100_000;
+
+        Path saved = new URLFileNodeWithKnownName(NAME, url).setSegments(4).setSize(fileSize).saveToDisk(directory);
+
+        assertContents(saved, fileSize);
+        assertEquals(List.of(""), ranges);
+    }
+
+    @Test
+    void failedSegmentStopsTheOthers() throws InterruptedException {
+        fileSize = 32L * 1024 * 1024; // each slow segment would take several seconds
+        failFirstSegment = true;
+        slowSegments = new CountDownLatch(3);
+
+        long started = System.nanoTime();
+        assertThrows(BadRequestStatusException.class,
+            () -> new URLFileNodeWithKnownName(NAME, url).setSegments(4).saveToDisk(directory));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(3), "didn't wait for the other segments");
+
+        assertTrue(slowSegments.await(10, TimeUnit.SECONDS), "other segments still running");
+        assertEquals(3, slowSegmentsCutOff.get());
+        assertFalse(Files.exists(directory.resolve(NAME + AbstractFileNodeStreamDownloader.PART_SUFFIX)));
+        assertFalse(Files.exists(directory.resolve(NAME)));
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HostRateLimiterTest {
+    private static long timeAcquire(HostRateLimiter limiter, String host) {
+        long start = System.nanoTime();
+        limiter.acquire(host);
+        return Duration.ofNanos(System.nanoTime() - start).toMillis();
+    }
+
+    @Test
+    void retryAfterPausesOnlyThatHost() {
+        HostRateLimiter limiter = new HostRateLimiter(1000, 10);
+        Map<String, String> headers = Map.of("Retry-After", "1");
+
+        limiter.onResponse("files.example.com", 429, name -> Optional.ofNullable(headers.get(name)));
+
+        assertTrue(timeAcquire(limiter, "files.example.com") >= 900);
+        assertTrue(timeAcquire(limiter, "other.example.com") < 100);
+    }
+
+    @Test
+    void loopbackIsPacedLikeAnyHost() {
+        HostRateLimiter limiter = new HostRateLimiter(1, 1);
+
+        timeAcquire(limiter, "127.0.0.1");
+        timeAcquire(limiter, "127.0.0.1"); // takes the next token in advance
+
+        assertTrue(timeAcquire(limiter, "127.0.0.1") >= 900);
+        assertTrue(timeAcquire(HostRateLimiter.unlimited(), "127.0.0.1") < 100);
+    }
+
+    @Test
+    void parsesRetryAfter() {
+        assertEquals(Duration.ofSeconds(30), HostRateLimiter.parseRetryAfter(" 30 "));
+        assertEquals(Duration.ZERO, HostRateLimiter.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertNull(HostRateLimiter.parseRetryAfter("soon"));
+    }
+}
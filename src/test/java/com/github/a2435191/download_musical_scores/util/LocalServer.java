@@ -0,0 +1,99 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An HTTP server on a free loopback port that stands in for a remote host in tests and benchmarks.
+ * <p>
+ * While it is open, the shared {@link HostRateLimiter} is replaced by {@link HostRateLimiter#unlimited()}, which
+ * would otherwise pace the server like a remote host. {@link #close()} stops the server and puts the shared limiter
+ * back.
+ */
+public final class LocalServer implements AutoCloseable {
+    private final @NotNull HttpServer server;
+    private final @NotNull ExecutorService executor = Executors.newCachedThreadPool();
+    private final @NotNull HostRateLimiter sharedLimiter;
+
+    /**
+     * Bind a server, which doesn't answer until {@link #start()} is called.
+     *
+     * @throws IOException if no loopback port can be bound.
+     */
+    public LocalServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        sharedLimiter = HostRateLimiter.setShared(HostRateLimiter.unlimited());
+    }
+
+    /**
+     * Bind and start a server with a single handler.
+     *
+     * @param path    Path the handler answers, and every path under it.
+     * @param handler Handler of the requests.
+     * @return the started server.
+     * @throws IOException if no loopback port can be bound.
+     */
+    public static @NotNull LocalServer start(@NotNull String path, @NotNull HttpHandler handler) throws IOException {
+        return new LocalServer().handle(path, handler).start();
+    }
+
+    /**
+     * Answer the requests under a path.
+     *
+     * @param path    Path the handler answers, and every path under it.
+     * @param handler Handler of the requests.
+     * @return this
+     */
+    @Contract("_, _ -> this")
+    public @NotNull LocalServer handle(@NotNull String path, @NotNull HttpHandler handler) {
+        server.createContext(path, handler);
+        return this;
+    }
+
+    /**
+     * Start answering requests, each on its own thread.
+     *
+     * @return this
+     */
+    @Contract(" -> this")
+    public @NotNull LocalServer start() {
+        server.start();
+        return this;
+    }
+
+    /**
+     * Get the URL of a path on the server.
+     *
+     * @param path Absolute path, e.g. <code>/score.pdf</code>.
+     * @return <code>http://127.0.0.1:&lt;port&gt;</code> followed by <code>path</code>.
+     */
+    public @NotNull URI url(@NotNull String path) {
+        return URI.create(baseUrl() + path);
+    }
+
+    /**
+     * Get the URL of the server, without a trailing slash.
+     *
+     * @return <code>http://127.0.0.1:&lt;port&gt;</code>
+     */
+    public @NotNull String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        HostRateLimiter.setShared(sharedLimiter);
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How {@link URLTextExtractor} found the candidate URLs of a selftext before its single-pass scanner: a Base64 pass,
+ * a whitespace-stripping pass, a markdown regex and a standalone URL regex. Kept verbatim as the oracle of
+ * {@link URLTextExtractorTest}.
+ */
+@SuppressWarnings({"RegExpRedundantEscape", "RegExpUnnecessaryNonCapturingGroup"})
+final class RegexURLTextExtractor {
+    private static final String MARKDOWN_BOLD_OR_ITALICS = "(?:\\*{0,2})";
+
+    private static final Pattern MARKDOWN_URL_REGEX = Pattern.compile(
+        MARKDOWN_BOLD_OR_ITALICS
+            + "\\[(.+)\\]\\(.+\\)"
+            + MARKDOWN_BOLD_OR_ITALICS
+    );
+
+    private static final Pattern STANDALONE_URL_REGEX = Pattern.compile(
+        "^"
+            + MARKDOWN_BOLD_OR_ITALICS
+            + "(?:((?:http:\\/\\/)|(?:https:\\/\\/)|(?:www\\.)).+)"
+            + MARKDOWN_BOLD_OR_ITALICS
+            + "$"
+    );
+
+    private static final String REMOVED = "[removed]";
+    private static final String DELETED = "[deleted]";
+
+    private RegexURLTextExtractor() {
+    }
+
+    private static boolean selftextIsEmpty(@NotNull String selftext) {
+        return selftext.equals(REMOVED) || selftext.equals(DELETED) || selftext.isEmpty();
+    }
+
+    private static @NotNull Collection<String> extractBase64Urls(@NotNull String selftext) {
+        Base64.Decoder decoder = Base64.getDecoder();
+        List<String> out = new ArrayList<>();
+        for (String line : selftext.split("\n")) {
+            try {
+                out.add(new String(decoder.decode(line)));
+            } catch (IllegalArgumentException e) {
+                // no-op
+            }
+        }
+        return out;
+    }
+
+    /**
+     * See {@link URLTextExtractor#extractCandidates(String)}.
+     */
+    static @NotNull Set<@NotNull String> extractCandidates(@NotNull String rawSelftext) {
+        final String selftext = rawSelftext.replace("\\_", "_");
+
+        Set<String> out = new HashSet<>();
+        if (selftextIsEmpty(selftext)) {
+            return out;
+        }
+
+        out.addAll(extractBase64Urls(selftext)); // some URLs are encoded in base 64
+        out.addAll(selftext.lines().map(
+                s -> s.replaceAll("\\s", ""))
+            .toList()); // some URLs are separated by spaces
+
+        {
+            Matcher matcher = MARKDOWN_URL_REGEX.matcher(selftext);
+            while (matcher.find()) {
+                out.add(matcher.group(1));
+            }
+        }
+
+
+        out.addAll(
+            Arrays.stream(selftext.split("\s+"))
+                .filter(STANDALONE_URL_REGEX.asMatchPredicate())
+                .toList()
+        );
+        return out;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.a2435191.download_musical_scores.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Check the single-pass scanner of {@link URLTextExtractor} against the regex passes it replaced
+ * ({@link RegexURLTextExtractor}): both must find exactly the same candidate URLs.
+ */
+class URLTextExtractorTest {
+    /**
+     * Separates the selftexts in <code>selftexts.txt</code>.
+     */
+    private static final String CORPUS_SEPARATOR = "\n%%\n";
+    private static final int FUZZ_CASES = 50_000;
+    /**
+     * Pieces fuzzed selftexts are made of: every kind of line terminator and whitespace the scanner treats
+     * specially, markdown syntax, URL prefixes and plain words.
+     */
+    private static final String[] FUZZ_TOKENS = {
+        "\n", "\n", "\r", "\r\n", "\u0085", "\u2028", "\u2029", " ", " ", "  ", "\t", "\u000B", "\f",
+        "[", "]", "(", ")", "](", "*", "**", "***", "\\_", "_",
+        "http://", "https://", "www.", "drive.google.com/", "file/d/1AbC", "?usp=sharing", "mega.nz/#F!x",
+        "score", "Reed 2", "a", "=", "+", "/",
+        "[removed]", "[deleted]",
+    };
+    private static final String[] FUZZ_URLS = {
+        "https://drive.google.com/drive/folders/1AbCdEfGh",
+        "https://we.tl/t-AbCdEf1234",
+        "www.sendspace.com/file/abc123",
+    };
+
+    private static @NotNull List<@NotNull String> readCorpus() throws IOException {
+        try (InputStream in = URLTextExtractorTest.class.getResourceAsStream("selftexts.txt")) {
+            assertNotNull(in, "selftexts.txt is missing");
+            String corpus = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return List.of(corpus.strip().split(CORPUS_SEPARATOR));
+        }
+    }
+
+    private static @NotNull String fuzzSelftext(@NotNull Random random) {
+        StringBuilder selftext = new StringBuilder();
+        for (int i = 0, length = random.nextInt(30); i < length; i++) {
+            int pick = random.nextInt(FUZZ_TOKENS.length + 2);
+            if (pick < FUZZ_TOKENS.length) {
+                selftext.append(FUZZ_TOKENS[pick]);
+            } else { // a whole line that is a Base64-encoded URL, possibly cut short
+                String url = FUZZ_URLS[random.nextInt(FUZZ_URLS.length)];
+                String encoded = Base64.getEncoder().encodeToString(url.getBytes(StandardCharsets.UTF_8));
+                if (pick == FUZZ_TOKENS.length) {
+                    encoded = encoded.substring(0, random.nextInt(encoded.length() + 1));
+                }
+                selftext.append('\n').append(encoded).append('\n');
+            }
+        }
+        return selftext.toString();
+    }
+
+    private static void assertSameCandidates(@NotNull String selftext) {
+        assertEquals(RegexURLTextExtractor.extractCandidates(selftext), URLTextExtractor.extractCandidates(selftext),
+            "selftext " + escape(selftext));
+    }
+
+    private static @NotNull String escape(@NotNull String text) {
+        StringBuilder out = new StringBuilder("\"");
+        text.chars().forEach(c -> out.append(
+            c < ' ' || c > '~' ? String.format("\\u%04x", c) : String.valueOf((char) c)));
+        return out.append('"').toString();
+    }
+
+    @Test
+    void corpusMatchesRegexImplementation() throws IOException {
+        List<String> corpus = readCorpus();
+        assertTrue(corpus.size() > 10);
+        for (String selftext : corpus) {
+            assertSameCandidates(selftext);
+        }
+    }
+
+    @Test
+    void fuzzedSelftextsMatchRegexImplementation() {
+        Random random = new Random(2435191);
+        for (int i = 0; i < FUZZ_CASES; i++) {
+            assertSameCandidates(fuzzSelftext(random));
+        }
+    }
+
+    @Test
+    void findsMarkdownBareAndBase64URLs() {
+        String encoded = Base64.getEncoder().encodeToString(
+            "https://mega.nz/folder/AbCd#EfGh".getBytes(StandardCharsets.UTF_8));
+        Set<String> candidates = URLTextExtractor.extractCandidates(
+            "Score: [https://drive.google.com/drive/folders/1A](https://drive.google.com/drive/folders/1A)\n"
+                + "parts at **https://we.tl/t-AbC** too\n"
+                + encoded + "\n"
+                + "h t t p s : / / w w w . s e n d s p a c e . c o m / f i l e / a 1\n");
+
+        assertTrue(candidates.contains("https://drive.google.com/drive/folders/1A"));
+        assertTrue(candidates.contains("**https://we.tl/t-AbC**"));
+        assertTrue(candidates.contains("https://mega.nz/folder/AbCd#EfGh"));
+        assertTrue(candidates.contains("https://www.sendspace.com/file/a1"));
+    }
+
+    @Test
+    void removedAndDeletedPostsHaveNoCandidates() {
+        assertEquals(Set.of(), URLTextExtractor.extractCandidates("[removed]"));
+        assertEquals(Set.of(), URLTextExtractor.extractCandidates("[deleted]"));
+        assertEquals(Set.of(), URLTextExtractor.extractCandidates(""));
+    }
+}